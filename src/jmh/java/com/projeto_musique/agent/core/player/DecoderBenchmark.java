@@ -0,0 +1,53 @@
+package com.projeto_musique.agent.core.player;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the bundled 5 second MP3 files through mp3spi, from memory to stereo PCM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+public class DecoderBenchmark {
+
+    /**
+     * Bundled file to decode.
+     */
+    @Param({"stereo-128k.mp3", "mono-64k.mp3"})
+    private String file;
+
+    private byte[] mp3;
+
+    private byte[] pcm;
+
+    @Setup
+    public void setUp() throws IOException {
+        try (InputStream in = DecoderBenchmark.class.getResourceAsStream("/audio/" + file)) {
+            if (in == null)
+                throw new IOException("Missing benchmark file: " + file);
+            mp3 = in.readAllBytes();
+        }
+        pcm = new byte[64 * 1024];
+    }
+
+    @Benchmark
+    public long decode() throws Exception {
+        long total = 0;
+        try (AudioInputStream in = Decoder.openPcm(new ByteArrayInputStream(mp3), Mixer.CHANNELS)) {
+            int read;
+            while ((read = in.read(pcm)) > 0)
+                total += read;
+        }
+        return total;
+    }
+
+}
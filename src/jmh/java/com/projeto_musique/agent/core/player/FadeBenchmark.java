@@ -0,0 +1,79 @@
+package com.projeto_musique.agent.core.player;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one mix cycle of the playback loop while every voice fades over the whole cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+public class FadeBenchmark {
+
+    /**
+     * Frames per mix cycle, as in the player.
+     */
+    private static final int FRAMES = 2048;
+
+    /**
+     * Number of voices mixed together.
+     */
+    @Param({"1", "4"})
+    private int voices;
+
+    /**
+     * Shape of the fades.
+     */
+    @Param({"LINEAR", "S_CURVE"})
+    private GainRamp.Curve curve;
+
+    private Mixer mixer;
+
+    private Voice[] mixed;
+
+    private GainRamp down;
+
+    private GainRamp up;
+
+    private byte[] output;
+
+    private boolean fadingDown;
+
+    @Setup
+    public void setUp() {
+        short[] pcm = new short[FRAMES * Mixer.CHANNELS];
+        Random random = new Random(42);
+        for (int s = 0; s < pcm.length; s++)
+            pcm[s] = (short) (random.nextGaussian() * 6000);
+
+        mixer = new Mixer(FRAMES, voice -> {
+        });
+        mixed = new Voice[voices];
+        for (int v = 0; v < voices; v++) {
+            mixed[v] = new MixerBenchmark.LoopingVoice(pcm);
+            mixer.addVoice(mixed[v]);
+        }
+
+        down = new GainRamp(0.2f, GainRamp.NOW, FRAMES, curve);
+        up = new GainRamp(1.0f, GainRamp.NOW, FRAMES, curve);
+        output = new byte[FRAMES * Mixer.FRAME_SIZE];
+        mixer.mix(output, FRAMES);
+    }
+
+    @Benchmark
+    public byte[] mixWhileFading() {
+        fadingDown = !fadingDown;
+        for (Voice voice : mixed)
+            voice.rampGain(fadingDown ? down : up);
+
+        mixer.mix(output, FRAMES);
+        return output;
+    }
+
+}
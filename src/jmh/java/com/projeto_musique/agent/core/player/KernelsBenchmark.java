@@ -0,0 +1,78 @@
+package com.projeto_musique.agent.core.player;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar and vectorized PCM kernels side by side, on one mixer cycle worth of samples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC", "--add-modules=jdk.incubator.vector"})
+public class KernelsBenchmark {
+
+    /**
+     * Frames per cycle, as in the player.
+     */
+    private static final int FRAMES = 2048;
+
+    @Param({"scalar", "vector"})
+    private String kernel;
+
+    private PcmKernels kernels;
+
+    private byte[] mono;
+
+    private byte[] stereo;
+
+    private short[] samples;
+
+    private int[] accumulator;
+
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        kernels = kernel.equals("vector") ? new VectorKernels() : new ScalarKernels();
+
+        Random random = new Random(42);
+        mono = new byte[FRAMES * 2];
+        stereo = new byte[FRAMES * 4];
+        random.nextBytes(mono);
+        random.nextBytes(stereo);
+        samples = new short[FRAMES * Mixer.CHANNELS];
+        accumulator = new int[FRAMES * Mixer.CHANNELS];
+        output = new byte[FRAMES * Mixer.FRAME_SIZE];
+        kernels.decode(stereo, samples, 0, FRAMES, 2);
+    }
+
+    @Benchmark
+    public short[] monoToStereo() {
+        kernels.decode(mono, samples, 0, FRAMES, 1);
+        return samples;
+    }
+
+    @Benchmark
+    public short[] decodeStereo() {
+        kernels.decode(stereo, samples, 0, FRAMES, 2);
+        return samples;
+    }
+
+    @Benchmark
+    public int[] accumulate() {
+        kernels.accumulate(samples, accumulator, FRAMES * Mixer.CHANNELS, 0.7f);
+        return accumulator;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        kernels.encode(accumulator, output, FRAMES * Mixer.CHANNELS);
+        return output;
+    }
+
+}
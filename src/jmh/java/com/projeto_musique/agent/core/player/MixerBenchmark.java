@@ -0,0 +1,76 @@
+package com.projeto_musique.agent.core.player;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one mix cycle of the playback loop with constant gains.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+public class MixerBenchmark {
+
+    /**
+     * Frames per mix cycle, as in the player.
+     */
+    private static final int FRAMES = 2048;
+
+    /**
+     * Number of voices mixed together.
+     */
+    @Param({"1", "2", "4", "8"})
+    private int voices;
+
+    private Mixer mixer;
+
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        short[] pcm = new short[FRAMES * Mixer.CHANNELS];
+        Random random = new Random(42);
+        for (int s = 0; s < pcm.length; s++)
+            pcm[s] = (short) (random.nextGaussian() * 6000);
+
+        mixer = new Mixer(FRAMES, voice -> {
+        });
+        for (int v = 0; v < voices; v++)
+            mixer.addVoice(new LoopingVoice(pcm));
+
+        output = new byte[FRAMES * Mixer.FRAME_SIZE];
+        mixer.mix(output, FRAMES);
+    }
+
+    @Benchmark
+    public byte[] mix() {
+        mixer.mix(output, FRAMES);
+        return output;
+    }
+
+    /**
+     * Voice repeating the same block forever.
+     */
+    static final class LoopingVoice extends Voice {
+
+        private final short[] pcm;
+
+        LoopingVoice(short[] pcm) {
+            super(0.5f);
+            this.pcm = pcm;
+        }
+
+        @Override
+        protected int read(short[] buffer, int frames) {
+            System.arraycopy(pcm, 0, buffer, 0, frames * Mixer.CHANNELS);
+            return frames;
+        }
+
+    }
+
+}
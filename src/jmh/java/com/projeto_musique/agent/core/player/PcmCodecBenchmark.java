@@ -0,0 +1,52 @@
+package com.projeto_musique.agent.core.player;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of decoded PCM bytes to the interleaved stereo samples read by the mixer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+public class PcmCodecBenchmark {
+
+    /**
+     * Frames per conversion, as in the player.
+     */
+    private static final int FRAMES = 2048;
+
+    private byte[] mono;
+
+    private byte[] stereo;
+
+    private short[] samples;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mono = new byte[FRAMES * 2];
+        stereo = new byte[FRAMES * 4];
+        random.nextBytes(mono);
+        random.nextBytes(stereo);
+        samples = new short[FRAMES * Mixer.CHANNELS];
+    }
+
+    @Benchmark
+    public short[] monoToStereo() {
+        PcmCodec.decode(mono, samples, 0, FRAMES, 1);
+        return samples;
+    }
+
+    @Benchmark
+    public short[] stereo() {
+        PcmCodec.decode(stereo, samples, 0, FRAMES, 2);
+        return samples;
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.projeto_musique.agent.core.player;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of decoded PCM to the output rate, per chunk read by the player.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+public class ResamplerBenchmark {
+
+    /**
+     * Frames per read, as in the player.
+     */
+    private static final int FRAMES = 2048;
+
+    @Param({"44100:48000", "48000:44100", "22050:48000"})
+    private String rates;
+
+    @Param({"1", "2"})
+    private int channels;
+
+    private Resampler resampler;
+
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        String[] pair = rates.split(":");
+        byte[] pcm = new byte[Integer.parseInt(pair[0]) * channels * 2];
+        new Random(42).nextBytes(pcm);
+
+        resampler = new Resampler(new LoopingStream(pcm), channels, Integer.parseInt(pair[0]), Integer.parseInt(pair[1]));
+        output = new byte[FRAMES * channels * 2];
+    }
+
+    @Benchmark
+    public byte[] read() throws IOException {
+        int filled = 0;
+        while (filled < output.length)
+            filled += resampler.read(output, filled, output.length - filled);
+        return output;
+    }
+
+    /**
+     * Endless source replaying the same PCM.
+     */
+    static final class LoopingStream extends InputStream {
+
+        private final byte[] pcm;
+
+        private int position;
+
+        LoopingStream(byte[] pcm) {
+            this.pcm = pcm;
+        }
+
+        @Override
+        public int read() {
+            int value = pcm[position] & 0xff;
+            position = (position + 1) % pcm.length;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, pcm.length - position);
+            System.arraycopy(pcm, position, b, off, n);
+            position = (position + n) % pcm.length;
+            return n;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.projeto_musique.agent.models;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a login response, as a string through the mapper and as a stream through a cached reader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+public class LoginResultBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ObjectReader reader = mapper.readerFor(LoginResult.class);
+
+    private byte[] json;
+
+    @Setup
+    public void setUp() throws IOException {
+        try (InputStream in = LoginResultBenchmark.class.getResourceAsStream("/login-result.json")) {
+            if (in == null)
+                throw new IOException("Missing benchmark file: login-result.json");
+            json = in.readAllBytes();
+        }
+    }
+
+    @Benchmark
+    public LoginResult mapperFromString() throws IOException {
+        return mapper.readValue(new String(json, StandardCharsets.UTF_8), LoginResult.class);
+    }
+
+    @Benchmark
+    public LoginResult readerFromStream() throws IOException {
+        return reader.readValue(new ByteArrayInputStream(json));
+    }
+
+}
@@ -2,10 +2,20 @@ package com.projeto_musique.agent;
 
 import com.projeto_musique.agent.core.ConnectionMode;
 import com.projeto_musique.agent.core.Engine;
+import com.projeto_musique.agent.core.Workers;
+import com.projeto_musique.agent.core.player.AdCache;
 import com.projeto_musique.agent.core.player.SoundPlayer;
 import com.projeto_musique.agent.core.player.MP3;
+import com.projeto_musique.agent.core.player.OutputTuner;
+import com.projeto_musique.agent.core.player.Zone;
+import com.projeto_musique.agent.metrics.MetricsServer;
+import com.projeto_musique.agent.metrics.ProcessMetrics;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
 /**
  * Bootstrap class for the project.
  * Only the Engine should be wired up.
@@ -24,12 +34,14 @@ final class Bootstrap {
     public static Engine setup() {
         log.info("Bootstrapping the application...");
 
-        SoundPlayer soundPlayer = getSoundOutput();
+        Workers workers = new Workers(Properties.WORKER_IO_THREADS, Properties.WORKER_QUEUE_CAPACITY);
+        SoundPlayer soundPlayer = getSoundOutput(workers);
         ConnectionMode mode = getConnectionMode();
 
-        Engine engine = new Engine(soundPlayer, mode);
+        Engine engine = new Engine(soundPlayer, mode, workers);
 
         Runtime.getRuntime().addShutdownHook(new Thread(engine::stop));
+        startMetricsServer();
 
         log.info("Application bootstrapped successfully.");
 
@@ -41,12 +53,85 @@ final class Bootstrap {
      * should be chosen.
      * It should recognize the hardware it is running in and possibly read some properties.
      *
+     * @param workers runtime for the background work of the player
      * @return SoundOutput
      */
-    private static SoundPlayer getSoundOutput() {
+    private static SoundPlayer getSoundOutput(Workers workers) {
         log.debug("Using sound player: {}", "MP3");
 
-        return new MP3();
+        AdCache adCache = new AdCache(
+                Path.of(Properties.getEnv(Properties.ENV_AD_CACHE_DIR_KEY, Properties.DEFAULT_AD_CACHE_DIR)),
+                Properties.AD_CACHE_MEMORY_BYTES,
+                Properties.AD_CACHE_DISK_BYTES,
+                Double.parseDouble(Properties.getEnv(Properties.ENV_AD_TARGET_LUFS_KEY, String.valueOf(Properties.DEFAULT_AD_TARGET_LUFS)).trim()),
+                workers.io()
+        );
+
+        return new MP3(adCache, workers, getBufferSeconds(), getOutputTuner(), getZones());
+    }
+
+    /**
+     * Reads the zones served by this agent, one output device each, see {@link Zone#parseAll(String)}.
+     *
+     * @return the zones, at least one
+     */
+    private static List<Zone> getZones() {
+        List<Zone> zones = Zone.parseAll(Properties.getEnv(Properties.ENV_OUTPUT_ZONES_KEY, ""));
+        log.debug("Output zones: {}", zones);
+
+        return zones;
+    }
+
+    /**
+     * Creates the tuner of the output latency, starting from the profile learned by a previous run.
+     *
+     * @return OutputTuner
+     */
+    private static OutputTuner getOutputTuner() {
+        int minMillis = Integer.parseInt(Properties.getEnv(Properties.ENV_OUTPUT_MIN_MS_KEY, String.valueOf(Properties.DEFAULT_OUTPUT_MIN_MS)).trim());
+        int maxMillis = Integer.parseInt(Properties.getEnv(Properties.ENV_OUTPUT_MAX_MS_KEY, String.valueOf(Properties.DEFAULT_OUTPUT_MAX_MS)).trim());
+        log.debug("Output latency between {} and {} ms", minMillis, maxMillis);
+
+        return new OutputTuner(
+                Path.of(Properties.getEnv(Properties.ENV_OUTPUT_PROFILE_FILE_KEY, Properties.DEFAULT_OUTPUT_PROFILE_FILE)),
+                minMillis,
+                maxMillis,
+                Properties.OUTPUT_INITIAL_MS
+        );
+    }
+
+    /**
+     * Reads how many seconds of the live stream are buffered, trading latency for resilience.
+     *
+     * @return buffer depth in seconds, within the supported bounds
+     */
+    private static int getBufferSeconds() {
+        String value = Properties.getEnv(Properties.ENV_BUFFER_SECONDS_KEY, String.valueOf(Properties.DEFAULT_BUFFER_SECONDS));
+        int seconds = Math.max(Properties.MIN_BUFFER_SECONDS, Math.min(Properties.MAX_BUFFER_SECONDS, Integer.parseInt(value.trim())));
+        log.debug("Buffer depth: {} seconds", seconds);
+
+        return seconds;
+    }
+
+    /**
+     * Serves the metrics for scraping, unless disabled with a port of 0.
+     * A port that cannot be bound only costs the metrics, never the playback.
+     */
+    private static void startMetricsServer() {
+        String host = Properties.getEnv(Properties.ENV_METRICS_HOST_KEY, Properties.DEFAULT_METRICS_HOST);
+        int port = Integer.parseInt(Properties.getEnv(Properties.ENV_METRICS_PORT_KEY, String.valueOf(Properties.DEFAULT_METRICS_PORT)).trim());
+        if (port == 0) {
+            log.info("Metrics endpoint disabled");
+            return;
+        }
+
+        ProcessMetrics.register();
+        try {
+            MetricsServer server = MetricsServer.start(host, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        } catch (IOException e) {
+            log.error("Unable to serve metrics on {}:{}", host, port, e);
+        }
     }
 
     /**
@@ -56,9 +141,11 @@ final class Bootstrap {
      * @return ConnectionMode
      */
     private static ConnectionMode getConnectionMode() {
-        log.debug("Connection mode: {}", "ONLINE");
+        ConnectionMode mode = ConnectionMode.of(
+                Properties.getEnv(Properties.ENV_CONNECTION_MODE_KEY, ConnectionMode.ONLINE.name()));
+        log.debug("Connection mode: {}", mode);
 
-        return ConnectionMode.ONLINE;
+        return mode;
     }
 
 }
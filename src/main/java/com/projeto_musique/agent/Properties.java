@@ -5,10 +5,100 @@ package com.projeto_musique.agent;
  */
 public class Properties {
 
-    public static final String BASE_URL = "https://musique-app-backend-cd4dd444979b.herokuapp.com";
+    public static final String ENV_BASE_URL_KEY = "BASE_URL";
+
+    public static final String DEFAULT_BASE_URL = "https://musique-app-backend-cd4dd444979b.herokuapp.com";
+
+    public static final String BASE_URL = getEnv(ENV_BASE_URL_KEY, DEFAULT_BASE_URL);
 
     public static final String ENV_USERNAME_KEY = "USERNAME";
 
     public static final String ENV_PASSWORD_KEY = "PASSWORD";
 
+    public static final String ENV_CONNECTION_MODE_KEY = "CONNECTION_MODE";
+
+    public static final String ENV_LIBRARY_DIR_KEY = "LIBRARY_DIR";
+
+    public static final String DEFAULT_LIBRARY_DIR = "library";
+
+    public static final String ENV_BUFFER_SECONDS_KEY = "BUFFER_SECONDS";
+
+    public static final int DEFAULT_BUFFER_SECONDS = 6;
+
+    public static final int MIN_BUFFER_SECONDS = 2;
+
+    public static final int MAX_BUFFER_SECONDS = 30;
+
+    public static final int WORKER_IO_THREADS = 8;
+
+    public static final int WORKER_QUEUE_CAPACITY = 32;
+
+    public static final String ENV_AD_CACHE_DIR_KEY = "AD_CACHE_DIR";
+
+    public static final String DEFAULT_AD_CACHE_DIR = "cache/ads";
+
+    public static final long AD_CACHE_MEMORY_BYTES = 32L * 1024 * 1024;
+
+    public static final long AD_CACHE_DISK_BYTES = 512L * 1024 * 1024;
+
+    public static final String ENV_TOKEN_FILE_KEY = "TOKEN_FILE";
+
+    public static final String DEFAULT_TOKEN_FILE = "cache/tokens.json";
+
+    public static final String ENV_METRICS_HOST_KEY = "METRICS_HOST";
+
+    public static final String DEFAULT_METRICS_HOST = "0.0.0.0";
+
+    public static final String ENV_METRICS_PORT_KEY = "METRICS_PORT";
+
+    public static final int DEFAULT_METRICS_PORT = 9464;
+
+    public static final String ENV_OUTPUT_PROFILE_FILE_KEY = "OUTPUT_PROFILE_FILE";
+
+    public static final String DEFAULT_OUTPUT_PROFILE_FILE = "cache/output.profile";
+
+    public static final String ENV_OUTPUT_MIN_MS_KEY = "OUTPUT_MIN_MS";
+
+    public static final int DEFAULT_OUTPUT_MIN_MS = 40;
+
+    public static final String ENV_OUTPUT_MAX_MS_KEY = "OUTPUT_MAX_MS";
+
+    public static final int DEFAULT_OUTPUT_MAX_MS = 500;
+
+    public static final int OUTPUT_INITIAL_MS = 200;
+
+    public static final String ENV_OUTPUT_SAMPLE_RATE_KEY = "OUTPUT_SAMPLE_RATE";
+
+    public static final String ENV_OUTPUT_ZONES_KEY = "OUTPUT_ZONES";
+
+    public static final String ENV_AD_TARGET_LUFS_KEY = "AD_TARGET_LUFS";
+
+    public static final double DEFAULT_AD_TARGET_LUFS = -16.0;
+
+    public static final String ENV_RECONNECT_BASE_MS_KEY = "RECONNECT_BASE_MS";
+
+    public static final long DEFAULT_RECONNECT_BASE_MS = 1000;
+
+    public static final String ENV_RECONNECT_MAX_MS_KEY = "RECONNECT_MAX_MS";
+
+    public static final long DEFAULT_RECONNECT_MAX_MS = 300000;
+
+    public static final int CIRCUIT_FAILURE_THRESHOLD = 3;
+
+    public static final String ENV_HEADLESS_SPEED_KEY = "HEADLESS_SPEED";
+
+    public static final double DEFAULT_HEADLESS_SPEED = 1.0;
+
+    /**
+     * Reads an environment variable, falling back to a default when it is not set.
+     *
+     * @param key          of the environment variable
+     * @param defaultValue used when the variable is missing or blank
+     * @return the value to use
+     */
+    public static String getEnv(String key, String defaultValue) {
+        String value = System.getenv(key);
+        return value == null || value.isBlank() ? defaultValue : value;
+    }
+
 }
@@ -35,4 +35,20 @@ public enum ConnectionMode {
         this.mode = mode;
     }
 
+    /**
+     * Parses a configured mode, given either as its number or its name.
+     *
+     * @param value number or name of the mode
+     * @return the matching mode
+     * @throws IllegalArgumentException if no mode matches
+     */
+    public static ConnectionMode of(String value) {
+        for (ConnectionMode connectionMode : values()) {
+            if (connectionMode.name().equalsIgnoreCase(value.trim()) || String.valueOf(connectionMode.mode).equals(value.trim()))
+                return connectionMode;
+        }
+
+        throw new IllegalArgumentException("Invalid connection mode: " + value);
+    }
+
 }
@@ -1,31 +1,99 @@
 package com.projeto_musique.agent.core;
 
 import com.projeto_musique.agent.Properties;
+import com.projeto_musique.agent.core.commands.Command;
+import com.projeto_musique.agent.core.commands.CommandQueue;
+import com.projeto_musique.agent.core.connectivity.Backoff;
 import com.projeto_musique.agent.core.connectivity.Login;
+import com.projeto_musique.agent.core.connectivity.ReconnectPolicy;
 import com.projeto_musique.agent.core.connectivity.SocketManager;
 import com.projeto_musique.agent.core.connectivity.Stream;
+import com.projeto_musique.agent.core.connectivity.TokenManager;
+import com.projeto_musique.agent.core.library.LocalLibrary;
+import com.projeto_musique.agent.core.library.Playlist;
+import com.projeto_musique.agent.core.player.AdPriority;
 import com.projeto_musique.agent.core.player.SoundPlayer;
+import com.projeto_musique.agent.http.Client;
+import com.projeto_musique.agent.logging.RateLimitFilter;
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Gauge;
+import com.projeto_musique.agent.metrics.Metrics;
 import com.projeto_musique.agent.models.GetStreamResult;
-import com.projeto_musique.agent.models.LoginResult;
 import com.projeto_musique.agent.models.SoundData;
 import com.projeto_musique.agent.models.exceptions.ConnectionException;
 import com.projeto_musique.agent.models.exceptions.RequestException;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 /**
  * This is the core of the application. All the process should pass in this class.
  * The "Musique" works by logging in the app and getting access to the music.
  * After the login, the Engine should call the sound output with the data of the music that it should play.
  * <p>
  * This class is also responsible to check the connection with the network if it operates in online mode.
+ * It runs as a state machine (see {@link EngineState}) driven by events from the player and the socket.
+ * While playing, the engine thread blocks on its event queue and costs no CPU; playback failures
+ * bring it back to setting everything up again, after a delay given by the {@link ReconnectPolicy}.
  */
 @Slf4j
-public final class Engine {
+public final class Engine implements SoundPlayer.Listener {
+
+    /**
+     * How long the engine tolerates a degraded player before acting on it.
+     */
+    private static final long DEGRADED_TIMEOUT_MS = 60000;
+
+    /**
+     * Commands from the server waiting to be executed before new ones are rejected.
+     */
+    private static final int COMMAND_QUEUE_CAPACITY = 16;
+
+    /**
+     * Current state, as the ordinal of {@link EngineState}.
+     */
+    private static final Gauge STATE = Metrics.gauge("agent_engine_state",
+            "Engine state: 0 logging in, 1 connecting, 2 playing, 3 degraded, 4 reconnecting, 5 stopped");
+
+    /**
+     * Playbacks set up again after a failure.
+     */
+    private static final Counter RESTARTS = Metrics.counter("agent_engine_restarts_total",
+            "Times the engine set playback up again after a failure");
+
+    /**
+     * Events handled by the engine thread.
+     */
+    private enum Event {
+        PLAYING,
+        DEGRADED,
+        RECOVERED,
+        FAILED,
+        SOCKET_DOWN,
+        SOCKET_UP,
+        STOP
+    }
 
     /**
-     * Login logic for the app.
+     * Backoff and circuit breakers of the connections to the backend.
      */
-    private final Login login;
+    private final ReconnectPolicy reconnect = new ReconnectPolicy();
+
+    /**
+     * Delays before setting playback up again, reset once playing.
+     */
+    private final Backoff retries = reconnect.newBackoff();
+
+    /**
+     * Access token of the app, persisted and refreshed in the background.
+     */
+    private final TokenManager tokens;
 
     /**
      * Stream logic for the app.
@@ -37,6 +105,11 @@ public final class Engine {
      */
     private final SocketManager socketManager;
 
+    /**
+     * Commands received from the server, executed one at a time.
+     */
+    private final CommandQueue commands = new CommandQueue(this::execute, COMMAND_QUEUE_CAPACITY);
+
     /**
      * The specific output.
      */
@@ -47,24 +120,66 @@ public final class Engine {
      */
     private final ConnectionMode connectionMode;
 
+    /**
+     * Runtime for the background work, shut down with the engine.
+     */
+    private final Workers workers;
+
     /**
      * Thread running the engine.
      */
     private final Thread runningThread;
 
     /**
-     * Indicates if the application is running.
+     * Events waiting to be handled by the engine thread.
      */
-    private boolean running;
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
 
-    public Engine(SoundPlayer soundPlayer, ConnectionMode connectionMode) {
-        this.login = new Login();
+    /**
+     * Current state of the engine.
+     */
+    @Getter
+    private volatile EngineState state = EngineState.STOPPED;
+
+    /**
+     * Sound data currently played. Only touched by the engine thread.
+     */
+    private SoundData soundData;
+
+    /**
+     * Whether the player reported it is degraded. Only touched by the engine thread.
+     */
+    private boolean playerDegraded;
+
+    /**
+     * Whether the socket is down while playing. Only touched by the engine thread.
+     */
+    private boolean socketDown;
+
+    /**
+     * Socket still joining for the next playback, if any. Only touched by the engine thread.
+     */
+    private CompletableFuture<Boolean> pendingSocket;
+
+    /**
+     * Socket joining for the current playback, ignored once a newer playback started.
+     */
+    private volatile CompletableFuture<Boolean> watchedSocket;
+
+    public Engine(SoundPlayer soundPlayer, ConnectionMode connectionMode, Workers workers) {
         this.stream = new Stream();
-        this.socketManager = new SocketManager(this);
+        this.socketManager = new SocketManager(this, commands, reconnect.socket(), workers);
         this.soundPlayer = soundPlayer;
         this.connectionMode = connectionMode;
+        this.workers = workers;
+        this.tokens = new TokenManager(
+                new Login(),
+                Path.of(Properties.getEnv(Properties.ENV_TOKEN_FILE_KEY, Properties.DEFAULT_TOKEN_FILE)),
+                workers
+        );
 
-        this.runningThread = createRunningThread();
+        this.soundPlayer.setListener(this);
+        this.runningThread = new Thread(this::run, "Engine-Thread");
     }
 
     /**
@@ -73,8 +188,12 @@ public final class Engine {
     public void start() {
         log.info("Starting application in {} mode", connectionMode.name());
 
-        running = true;
+        synchronized (this) {
+            state = EngineState.LOGGING_IN;
+            STATE.set(state.ordinal());
+        }
         runningThread.start();
+        commands.start();
 
         log.info("Application started successfully.");
     }
@@ -82,10 +201,31 @@ public final class Engine {
     /**
      * Play an advertisement.
      */
-    public void playAd(String substring) {
-        log.info("Playing advertisement: {}", substring);
+    public void playAd(String adUrl, AdPriority priority) {
+        log.info("Playing advertisement: {} ({})", adUrl, priority);
 
-        soundPlayer.playAd(substring);
+        soundPlayer.playAd(adUrl, priority);
+    }
+
+    /**
+     * Prepare an advertisement ahead of time.
+     */
+    public void prefetchAd(String adUrl) {
+        log.info("Prefetching advertisement: {}", adUrl);
+
+        soundPlayer.prefetchAd(adUrl);
+    }
+
+    /**
+     * Executes a command received from the server. Runs on the command thread.
+     *
+     * @param command to be executed
+     */
+    private void execute(Command command) {
+        if (command instanceof Command.PlayAd playAd)
+            playAd(playAd.url(), playAd.priority());
+        else if (command instanceof Command.PrefetchAd prefetchAd)
+            prefetchAd(prefetchAd.url());
     }
 
     /**
@@ -94,45 +234,251 @@ public final class Engine {
     public void stop() {
         log.info("Stopping the application...");
 
-        running = false;
+        transition(EngineState.STOPPED);
+        events.offer(Event.STOP);
+        commands.stop();
         soundPlayer.stop();
         socketManager.closeSocket();
+        workers.shutdown(2, TimeUnit.SECONDS);
 
         log.info("Application stopped.");
     }
 
+    @Override
+    public void onPlaying() {
+        events.offer(Event.PLAYING);
+    }
+
+    @Override
+    public void onDegraded() {
+        events.offer(Event.DEGRADED);
+    }
+
+    @Override
+    public void onRecovered() {
+        events.offer(Event.RECOVERED);
+    }
+
+    @Override
+    public void onFailed(Exception cause) {
+        log.error("Playback failed", cause);
+        events.offer(Event.FAILED);
+    }
+
     /**
-     * Create the main running thread.
-     *
-     * @return the created thread.
+     * Called by the socket manager when the socket is lost.
      */
-    @SuppressWarnings("BusyWait")
-    private Thread createRunningThread() {
-        return new Thread(() -> {
-            while (running) {
-                try {
-                    try {
-                        log.info("Trying to connect...");
-                        SoundData soundData = getSoundData();
-                        if (soundData == null) {
-                            log.error("Unable to get sound data");
-                            Thread.sleep(5000);
-                            continue;
-                        }
-
-                        log.info("Connected successfully. Playing sound...");
-                        soundPlayer.play(soundData);
-                        while (true) Thread.onSpinWait();
-                    } catch (ConnectionException | RequestException e) {
-                        log.error(e.getMessage(), e);
-                        Thread.sleep(5000);
+    public void onSocketDisconnected() {
+        events.offer(Event.SOCKET_DOWN);
+    }
+
+    /**
+     * Called by the socket manager when the socket joined again.
+     */
+    public void onSocketJoined() {
+        events.offer(Event.SOCKET_UP);
+    }
+
+    /**
+     * Main loop of the engine thread.
+     */
+    private void run() {
+        try {
+            while (state != EngineState.STOPPED) {
+                switch (state) {
+                    case LOGGING_IN -> startPlayback();
+                    case RECONNECTING -> {
+                        if (!awaitStop(retryDelayMs()))
+                            startPlayback();
+                    }
+                    case PLAYING -> handle(events.take());
+                    case DEGRADED -> {
+                        Event event = events.poll(DEGRADED_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        if (event == null)
+                            onDegradedTimeout();
+                        else
+                            handle(event);
+                    }
+                    default -> {
+                        log.error("Unexpected engine state: {}", state);
+                        transition(EngineState.RECONNECTING);
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    log.error("Engine thread interrupted", e);
                 }
             }
-        }, "Engine-Thread");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (state != EngineState.STOPPED)
+                log.error("Engine thread interrupted", e);
+        }
+
+        log.info("Engine thread finished.");
+    }
+
+    /**
+     * Get the sound data and hand it to the player, or move to RECONNECTING to try again later.
+     */
+    private void startPlayback() {
+        try {
+            log.info(RateLimitFilter.REPEATED, "Trying to connect...");
+            soundPlayer.prepare();
+            SoundData data = getSoundData();
+            if (data != null) {
+                log.info("Connected successfully. Playing sound...");
+                play(data);
+                return;
+            }
+
+            log.error("Unable to get sound data");
+        } catch (ConnectionException | RequestException e) {
+            log.error(e.getMessage(), e);
+        }
+
+        transition(EngineState.RECONNECTING);
+    }
+
+    /**
+     * Delay before setting playback up again: the next one of the backoff, stretched until the
+     * circuit breakers of the login and the stream let requests through again.
+     *
+     * @return the delay, in milliseconds
+     */
+    private long retryDelayMs() {
+        long delayMs = Math.max(retries.nextDelayMs(), reconnect.remainingMs());
+        log.info(RateLimitFilter.REPEATED, "Setting playback up again in {} ms", delayMs);
+        return delayMs;
+    }
+
+    /**
+     * Wait for the given delay, returning early if the engine is stopped.
+     * Other events received meanwhile are stale and dropped.
+     *
+     * @param delayMs how long to wait
+     * @return true if the engine was stopped
+     * @throws InterruptedException if the engine thread is interrupted while waiting
+     */
+    private boolean awaitStop(long delayMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        long remaining;
+        while (state != EngineState.STOPPED && (remaining = deadline - System.nanoTime()) > 0) {
+            if (events.poll(remaining, TimeUnit.NANOSECONDS) == Event.STOP)
+                transition(EngineState.STOPPED);
+        }
+        return state == EngineState.STOPPED;
+    }
+
+    /**
+     * Hand sound data to the player, dropping the events of any previous playback.
+     *
+     * @param data to be played
+     */
+    private void play(SoundData data) {
+        events.clear();
+        soundData = data;
+        socketDown = false;
+        playerDegraded = data.streamURL() == null && connectionMode == ConnectionMode.ONLINE_AND_OFFLINE;
+
+        if (state != EngineState.STOPPED) {
+            soundPlayer.play(data);
+            watchSocket();
+            updatePlayingState();
+        }
+    }
+
+    /**
+     * Report the socket as down if the one still joining for this playback does not join in time.
+     * When it joins later, the socket manager reports it as up again.
+     */
+    private void watchSocket() {
+        CompletableFuture<Boolean> socket = pendingSocket;
+        pendingSocket = null;
+        watchedSocket = socket;
+        if (socket == null)
+            return;
+
+        socket.whenComplete((joined, e) -> {
+            if (!Boolean.TRUE.equals(joined) && watchedSocket == socket) {
+                log.warn("Socket did not join, playing without commands until it does");
+                onSocketDisconnected();
+            }
+        });
+    }
+
+    /**
+     * Apply an event received while playing.
+     *
+     * @param event to be handled
+     */
+    private void handle(Event event) {
+        switch (event) {
+            case PLAYING -> {
+                playerDegraded = false;
+                retries.reset();
+            }
+            case RECOVERED -> playerDegraded = false;
+            case DEGRADED -> playerDegraded = true;
+            case SOCKET_DOWN -> socketDown = true;
+            case SOCKET_UP -> socketDown = false;
+            case FAILED -> {
+                soundPlayer.stop();
+                socketManager.closeSocket();
+                transition(EngineState.RECONNECTING);
+                return;
+            }
+            case STOP -> {
+                transition(EngineState.STOPPED);
+                return;
+            }
+        }
+
+        updatePlayingState();
+    }
+
+    /**
+     * Act on a player that stayed degraded for too long.
+     * An online-only player is set up again from scratch; a player that started from the local
+     * library tries to get the stream back; a player failing over to local content is left alone
+     * since its stream reconnects by itself.
+     */
+    private void onDegradedTimeout() {
+        if (!playerDegraded)
+            return;
+
+        if (connectionMode == ConnectionMode.ONLINE) {
+            log.warn("Stream degraded for too long, reconnecting");
+            handle(Event.FAILED);
+        } else if (soundData.streamURL() == null) {
+            try {
+                String streamUrl = connect();
+                if (streamUrl != null)
+                    play(new SoundData(streamUrl, soundData.playlist()));
+            } catch (ConnectionException | RequestException e) {
+                log.warn(RateLimitFilter.REPEATED, "Still unable to connect: {}", e.getMessage());
+            }
+            updatePlayingState();
+        }
+    }
+
+    /**
+     * Move to PLAYING or DEGRADED depending on the player and the socket.
+     */
+    private void updatePlayingState() {
+        transition(playerDegraded || socketDown ? EngineState.DEGRADED : EngineState.PLAYING);
+    }
+
+    /**
+     * Change the state of the engine. Once stopped, the engine stays stopped.
+     *
+     * @param next state
+     */
+    private synchronized void transition(EngineState next) {
+        if (state == next || state == EngineState.STOPPED)
+            return;
+
+        log.info("Engine state: {} -> {}", state, next);
+        state = next;
+        STATE.set(next.ordinal());
+        if (next == EngineState.RECONNECTING)
+            RESTARTS.inc();
     }
 
     /**
@@ -145,31 +491,106 @@ public final class Engine {
     private SoundData getSoundData() throws ConnectionException, RequestException {
         switch (connectionMode) {
             case ONLINE -> {
-                String username = System.getenv(Properties.ENV_USERNAME_KEY);
-                String password = System.getenv(Properties.ENV_PASSWORD_KEY);
-                LoginResult loginResult = login.request(username, password);
-                if (loginResult == null)
-                    return null;
-
-                boolean success = socketManager.openSocket(loginResult.getAccessToken().getToken());
-                if (!success)
-                    return null;
-
-                GetStreamResult streamResult = stream.request(loginResult.getAccessToken().getToken());
-
-                String rawStreamUrl = streamResult.getStream();
-                String streamUrl = rawStreamUrl.substring(9, rawStreamUrl.indexOf(".mp3\"") + 4);
-                return new SoundData(streamUrl);
+                String streamUrl = connect();
+                return streamUrl == null ? null : new SoundData(streamUrl);
             }
             case OFFLINE -> {
-                // TODO: 02/04/2025 Implement OFFLINE mode
+                transition(EngineState.CONNECTING);
+                Playlist playlist = openPlaylist();
+                return playlist == null ? null : new SoundData(playlist);
             }
             case ONLINE_AND_OFFLINE -> {
-                // TODO: 02/04/2025 Implement OFFLINE/ONLINE mode
+                Playlist playlist = openPlaylist();
+                try {
+                    String streamUrl = connect();
+                    if (streamUrl != null)
+                        return new SoundData(streamUrl, playlist);
+                } catch (ConnectionException | RequestException e) {
+                    if (playlist == null)
+                        throw e;
+                    log.error("Unable to connect, starting from the local library: {}", e.getMessage());
+                }
+                return playlist == null ? null : new SoundData(playlist);
             }
         }
 
         throw new IllegalArgumentException("Invalid connection mode");
     }
 
+    /**
+     * Log in if the cached token cannot be used, then open the socket and get the URL of the
+     * stream concurrently. Requests are refused while the circuit breaker of their endpoint is
+     * open. The URL is returned as soon as it is known; the socket keeps joining in the background
+     * and is watched once playback started.
+     *
+     * @return the stream URL.
+     * @throws ConnectionException if a connection error occurs.
+     * @throws RequestException    if a request error occurs.
+     */
+    private String connect() throws ConnectionException, RequestException {
+        transition(EngineState.LOGGING_IN);
+        String username = System.getenv(Properties.ENV_USERNAME_KEY);
+        String password = System.getenv(Properties.ENV_PASSWORD_KEY);
+        String accessToken = reconnect.auth().call(() -> tokens.accessToken(username, password));
+
+        transition(EngineState.CONNECTING);
+        CompletableFuture<Boolean> socketJoined = socketManager.openSocketAsync(() -> socketToken(username, password));
+
+        GetStreamResult streamResult;
+        try {
+            streamResult = reconnect.stream().call(() -> Client.await(stream.requestAsync(accessToken)));
+        } catch (RequestException e) {
+            // An unreachable or overloaded backend says nothing about the token.
+            if (!e.isRetryable())
+                tokens.invalidate();
+            socketManager.closeSocket();
+            throw e;
+        } catch (ConnectionException e) {
+            socketManager.closeSocket();
+            throw e;
+        }
+        pendingSocket = socketJoined;
+
+        String rawStreamUrl = streamResult.getStream();
+        return rawStreamUrl.substring(9, rawStreamUrl.indexOf(".mp3\"") + 4);
+    }
+
+    /**
+     * Gets the access token for a connection attempt of the socket, refreshed or logged in again
+     * if the one the socket was opened with has expired.
+     *
+     * @param username of the agent
+     * @param password of the agent
+     * @return the access token, or null if none can be had right now
+     */
+    private String socketToken(String username, String password) {
+        try {
+            return reconnect.auth().call(() -> tokens.accessToken(username, password));
+        } catch (ConnectionException | RequestException e) {
+            log.warn("No access token for the socket: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Open the local library as a playlist.
+     *
+     * @return the playlist, or null if the library is missing or empty.
+     */
+    private Playlist openPlaylist() {
+        Path libraryDir = Path.of(Properties.getEnv(Properties.ENV_LIBRARY_DIR_KEY, Properties.DEFAULT_LIBRARY_DIR));
+        try {
+            LocalLibrary library = LocalLibrary.open(libraryDir);
+            if (library.isEmpty()) {
+                log.error("No track found in the local library: {}", libraryDir);
+                return null;
+            }
+
+            return new Playlist(library);
+        } catch (IOException e) {
+            log.error("Unable to open the local library: {}", libraryDir, e);
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,39 @@
+package com.projeto_musique.agent.core;
+
+/**
+ * Lifecycle states of the {@link Engine}.
+ */
+public enum EngineState {
+
+    /**
+     * Authenticating against the backend.
+     */
+    LOGGING_IN,
+
+    /**
+     * Logged in, opening the socket and looking the stream up, or opening the local library.
+     */
+    CONNECTING,
+
+    /**
+     * Sound is playing and every connection is healthy.
+     */
+    PLAYING,
+
+    /**
+     * Sound is playing, but the stream is starving, the player fell back to local content
+     * or the socket is down.
+     */
+    DEGRADED,
+
+    /**
+     * Playback failed and the engine is setting everything up again.
+     */
+    RECONNECTING,
+
+    /**
+     * The engine is not running.
+     */
+    STOPPED
+
+}
@@ -0,0 +1,287 @@
+package com.projeto_musique.agent.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Managed runtime for the background work of the agent.
+ * <p>
+ * Blocking I/O (stream connections, ad downloads and decodes) runs on a bounded pool with a
+ * bounded queue, so a burst of requests can neither create unbounded threads nor pile up
+ * unbounded work. Timed work runs on a single scheduler thread. Every thread is a daemon with
+ * a small stack, and everything is shut down together when the engine stops.
+ * </p>
+ */
+@Slf4j
+public final class Workers {
+
+    /**
+     * Stack size of the worker threads. Decoding and HTTP need far less than the 1 MB default.
+     */
+    private static final long STACK_SIZE = 256 * 1024;
+
+    /**
+     * Delay before a delayed task rejected by a saturated pool is offered again.
+     */
+    private static final long REJECTED_RETRY_MS = 1000;
+
+    /**
+     * Pool running blocking I/O.
+     */
+    private final ThreadPoolExecutor io;
+
+    /**
+     * Scheduler running timed work.
+     */
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    public Workers(int ioThreads, int ioQueueCapacity) {
+        this.io = new ThreadPoolExecutor(
+                ioThreads,
+                ioThreads,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ioQueueCapacity),
+                threadFactory("Agent-IO")
+        );
+        this.io.allowCoreThreadTimeOut(true);
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, threadFactory("Agent-Scheduler"));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * @return executor running blocking I/O, rejecting work once its queue is full
+     */
+    public Executor io() {
+        return io;
+    }
+
+    /**
+     * @return scheduler for timed work
+     */
+    public ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Runs blocking work on the I/O pool.
+     *
+     * @param description of the work, used in logs
+     * @param task        to be run
+     * @return the future of the task, or null if it was rejected because the pool is saturated or shut down
+     */
+    public Future<?> submit(String description, Runnable task) {
+        try {
+            return io.submit(guarded(description, task));
+        } catch (RejectedExecutionException e) {
+            log.warn("Dropping background task, workers saturated or stopped: {}", description);
+            return null;
+        }
+    }
+
+    /**
+     * Runs work on the I/O pool after a delay. If the pool is saturated when the delay elapses,
+     * the work is offered again a second later instead of being dropped.
+     *
+     * @param description of the work, used in logs
+     * @param task        to be run
+     * @param delay       before running
+     * @param unit        of the delay
+     * @return the future of the task, cancelling it whether it is still waiting or already
+     * running, or null if the workers are shut down
+     */
+    public Future<?> submitLater(String description, Runnable task, long delay, TimeUnit unit) {
+        DelayedTask delayed = new DelayedTask(description, task);
+        return delayed.schedule(delay, unit) ? delayed : null;
+    }
+
+    /**
+     * Stops accepting work, interrupts running tasks and waits for them to finish.
+     *
+     * @param timeout to wait for
+     * @param unit    of the timeout
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        log.info("Shutting the workers down...");
+
+        scheduler.shutdownNow();
+        io.shutdownNow();
+        try {
+            if (!io.awaitTermination(timeout, unit))
+                log.warn("Some background tasks did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wraps a task so that its failures are logged instead of being kept in its future.
+     *
+     * @param description of the work, used in logs
+     * @param task        to be run
+     * @return the wrapped task
+     */
+    private static Runnable guarded(String description, Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Background task failed: {}", description, e);
+            }
+        };
+    }
+
+    /**
+     * Work waiting on the scheduler, then running on the I/O pool. Its future follows whichever
+     * stage the work is in, so cancelling it also interrupts the work once it runs.
+     */
+    private final class DelayedTask implements Runnable, Future<Object> {
+
+        /**
+         * Description of the work, used in logs.
+         */
+        private final String description;
+
+        /**
+         * Work to be run.
+         */
+        private final Runnable task;
+
+        /**
+         * Completed once the work ran or was cancelled.
+         */
+        private final CompletableFuture<Object> done = new CompletableFuture<>();
+
+        /**
+         * Future of the current stage: the scheduling, then the work on the pool.
+         */
+        private volatile Future<?> current;
+
+        /**
+         * Set once the work is cancelled.
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Whether the cancellation may interrupt the work.
+         */
+        private volatile boolean interrupt;
+
+        private DelayedTask(String description, Runnable task) {
+            this.description = description;
+            this.task = task;
+        }
+
+        /**
+         * Schedules the hand over to the pool.
+         *
+         * @param delay before handing over
+         * @param unit  of the delay
+         * @return false if the workers are shut down
+         */
+        private boolean schedule(long delay, TimeUnit unit) {
+            try {
+                current = scheduler.schedule(this, delay, unit);
+                return true;
+            } catch (RejectedExecutionException e) {
+                log.warn("Dropping delayed task, workers stopped: {}", description);
+                done.cancel(false);
+                return false;
+            }
+        }
+
+        /**
+         * Hands the work over to the pool, or schedules another attempt if it is saturated.
+         */
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+
+            Runnable work = guarded(description, task);
+            try {
+                current = io.submit(() -> {
+                    try {
+                        work.run();
+                    } finally {
+                        done.complete(null);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (io.isShutdown()) {
+                    log.warn("Dropping delayed task, workers stopped: {}", description);
+                    done.cancel(false);
+                    return;
+                }
+                log.warn("Workers saturated, retrying delayed task in {} ms: {}", REJECTED_RETRY_MS, description);
+                schedule(REJECTED_RETRY_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            if (cancelled)
+                current.cancel(interrupt);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            interrupt = mayInterruptIfRunning;
+            cancelled = true;
+            boolean result = done.cancel(false);
+            Future<?> stage = current;
+            if (stage != null)
+                stage.cancel(mayInterruptIfRunning);
+            return result;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return done.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.isDone();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return done.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return done.get(timeout, unit);
+        }
+
+    }
+
+    /**
+     * Creates daemon threads with a small stack and numbered names.
+     *
+     * @param prefix of the thread names
+     * @return the thread factory
+     */
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(null, task, prefix + "-" + counter.incrementAndGet(), STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.projeto_musique.agent.core.commands;
+
+import com.projeto_musique.agent.core.player.AdPriority;
+
+/**
+ * Command received from the server through the socket, parsed once on arrival by the
+ * {@link CommandParser}.
+ */
+public sealed interface Command permits Command.PlayAd, Command.PrefetchAd {
+
+    /**
+     * @return identifier given by the server, echoed in the acks, or null if there is none
+     */
+    String id();
+
+    /**
+     * @return URL of the audio the command is about
+     */
+    String url();
+
+    /**
+     * @return identifies the commands that have the same effect, whatever their id
+     */
+    default String key() {
+        return getClass().getSimpleName() + " " + url();
+    }
+
+    /**
+     * Play an advertisement over the main sound.
+     *
+     * @param id       given by the server, or null
+     * @param url      of the ad
+     * @param priority of the spot in the ad queue
+     */
+    record PlayAd(String id, String url, AdPriority priority) implements Command {
+
+    }
+
+    /**
+     * Download and decode an advertisement so that it plays instantly later.
+     *
+     * @param id  given by the server, or null
+     * @param url of the ad
+     */
+    record PrefetchAd(String id, String url) implements Command {
+
+    }
+
+}
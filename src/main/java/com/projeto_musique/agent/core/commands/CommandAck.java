@@ -0,0 +1,12 @@
+package com.projeto_musique.agent.core.commands;
+
+/**
+ * Acknowledgement of a command sent back to the server.
+ *
+ * @param id     of the command, or null if it had none
+ * @param status of the command
+ * @param error  reason of a rejection or failure, or null
+ */
+public record CommandAck(String id, CommandStatus status, String error) {
+
+}
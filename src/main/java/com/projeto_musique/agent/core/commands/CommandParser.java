@@ -0,0 +1,105 @@
+package com.projeto_musique.agent.core.commands;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.projeto_musique.agent.core.player.AdPriority;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Turns the payloads of the socket events into {@link Command}s.
+ */
+public final class CommandParser {
+
+    /**
+     * Mapper of the command payloads.
+     */
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private CommandParser() {
+    }
+
+    /**
+     * Parses the payload of a socket event. The payload is either the URL itself, or a JSON
+     * object holding it in {@code url} or else in its first field containing an HTTP URL,
+     * with an optional {@code id} and {@code priority} ({@code normal} or {@code urgent}), or a
+     * JSON array holding it.
+     *
+     * @param event   name of the socket event
+     * @param payload first argument of the event
+     * @return the command
+     * @throws IllegalArgumentException if the event is unknown or the payload has no valid URL
+     */
+    public static Command parse(String event, Object payload) {
+        String text = payload == null ? "" : payload.toString().trim();
+        String id = null;
+        String url = text;
+        AdPriority priority = AdPriority.NORMAL;
+
+        if (text.startsWith("{") || text.startsWith("[")) {
+            JsonNode json;
+            try {
+                json = mapper.readTree(text);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Malformed payload: " + e.getOriginalMessage());
+            }
+
+            id = json.hasNonNull("id") ? json.get("id").asText() : null;
+            url = json.hasNonNull("url") ? json.get("url").asText() : firstUrl(json);
+            if (json.hasNonNull("priority"))
+                priority = priority(json.get("priority").asText());
+        }
+
+        if (url == null || !isHttpUrl(url))
+            throw new IllegalArgumentException("No audio URL in payload: " + text);
+
+        return switch (event) {
+            case "playAudio" -> new Command.PlayAd(id, url, priority);
+            case "prefetchAudio" -> new Command.PrefetchAd(id, url);
+            default -> throw new IllegalArgumentException("Unknown command: " + event);
+        };
+    }
+
+    /**
+     * @param name of the priority in the payload
+     * @return the priority
+     * @throws IllegalArgumentException if the priority is unknown
+     */
+    private static AdPriority priority(String name) {
+        try {
+            return AdPriority.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown priority: " + name);
+        }
+    }
+
+    /**
+     * @param json object or array of the payload
+     * @return the first field or element holding an HTTP URL, or null
+     */
+    private static String firstUrl(JsonNode json) {
+        for (Iterator<JsonNode> fields = json.elements(); fields.hasNext(); ) {
+            JsonNode field = fields.next();
+            if (field.isTextual() && isHttpUrl(field.asText()))
+                return field.asText();
+        }
+        return null;
+    }
+
+    /**
+     * @param url to be checked
+     * @return true if it is an absolute HTTP or HTTPS URL
+     */
+    private static boolean isHttpUrl(String url) {
+        try {
+            URI uri = URI.create(url);
+            return uri.getHost() != null && ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.projeto_musique.agent.core.commands;
+
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Metrics;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue between the socket event thread and the execution of the commands.
+ * <p>
+ * {@link #offer(Command, Consumer)} never blocks: a command is either queued, dropped as a
+ * duplicate, or rejected when the queue is full, and the caller learns which right away.
+ * A command carrying an id is a duplicate only when one with the same id was seen recently, so
+ * the server can deliberately schedule the same ad twice. A command without an id is a duplicate
+ * when another one without an id and with the same effect is still queued or was executed within
+ * the coalescing window, so a burst of identical messages plays an ad once. A single thread
+ * executes the queued commands in order.
+ * </p>
+ */
+@Slf4j
+public final class CommandQueue {
+
+    /**
+     * Window in which a command identical to one just executed is dropped.
+     */
+    private static final long COALESCE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Number of recent ids and keys remembered for deduplication.
+     */
+    private static final int RECENT_CAPACITY = 256;
+
+    /**
+     * Commands received.
+     */
+    private static final Counter RECEIVED = Metrics.counter("agent_commands_received_total",
+            "Commands received from the server");
+
+    /**
+     * Commands dropped as duplicates.
+     */
+    private static final Counter COALESCED = Metrics.counter("agent_commands_coalesced_total",
+            "Commands dropped as duplicates of a recent one");
+
+    /**
+     * Commands rejected because the queue was full.
+     */
+    private static final Counter REJECTED = Metrics.counter("agent_commands_rejected_total",
+            "Commands rejected because the queue was full");
+
+    /**
+     * Commands whose execution failed.
+     */
+    private static final Counter FAILED = Metrics.counter("agent_commands_failed_total",
+            "Commands whose execution failed");
+
+    /**
+     * Executes the commands.
+     */
+    public interface Handler {
+
+        /**
+         * Called on the command thread, one command at a time.
+         *
+         * @param command to be executed
+         * @throws Exception if the command failed
+         */
+        void execute(Command command) throws Exception;
+
+    }
+
+    /**
+     * Queued command with the callback of its completion.
+     *
+     * @param command to be executed
+     * @param onDone  receives the final ack
+     */
+    private record Entry(Command command, Consumer<CommandAck> onDone) {
+
+    }
+
+    /**
+     * Executes the commands.
+     */
+    private final Handler handler;
+
+    /**
+     * Commands waiting to be executed.
+     */
+    private final BlockingQueue<Entry> queue;
+
+    /**
+     * Keys of the queued commands without an id.
+     */
+    private final Set<String> pendingKeys = new HashSet<>();
+
+    /**
+     * Ids seen recently, with the time they were received.
+     */
+    private final Map<String, Long> recentIds = recentMap();
+
+    /**
+     * Keys of the commands without an id executed recently, with the time they were executed.
+     */
+    private final Map<String, Long> recentKeys = recentMap();
+
+    /**
+     * Thread executing the commands.
+     */
+    private final Thread thread;
+
+    /**
+     * Set once the queue was stopped.
+     */
+    private volatile boolean stopped;
+
+    public CommandQueue(Handler handler, int capacity) {
+        this.handler = handler;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, "Command-Thread");
+        this.thread.setDaemon(true);
+        Metrics.gauge("agent_command_queue_depth", "Commands waiting to be executed", queue::size);
+    }
+
+    /**
+     * Starts executing the commands.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops executing the commands, dropping the ones still queued.
+     */
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+        queue.clear();
+    }
+
+    /**
+     * Queues a command without blocking.
+     *
+     * @param command to be executed
+     * @param onDone  receives the final ack once the command was executed
+     * @return {@link CommandStatus#QUEUED}, {@link CommandStatus#DUPLICATE} or {@link CommandStatus#BUSY}
+     */
+    public synchronized CommandStatus offer(Command command, Consumer<CommandAck> onDone) {
+        RECEIVED.inc();
+        long now = System.nanoTime();
+
+        if (isDuplicate(command, now)) {
+            log.debug("Dropping duplicate command: {}", command);
+            COALESCED.inc();
+            return CommandStatus.DUPLICATE;
+        }
+
+        if (stopped || !queue.offer(new Entry(command, onDone))) {
+            log.warn("Command queue full, rejecting: {}", command);
+            REJECTED.inc();
+            return CommandStatus.BUSY;
+        }
+
+        if (command.id() != null)
+            recentIds.put(command.id(), now);
+        else
+            pendingKeys.add(command.key());
+        return CommandStatus.QUEUED;
+    }
+
+    /**
+     * Commands with an id are told apart by their id only, the others by their key.
+     *
+     * @param command received
+     * @param now     time it was received
+     * @return whether the command repeats one queued or executed recently
+     */
+    private boolean isDuplicate(Command command, long now) {
+        if (command.id() != null)
+            return recentIds.containsKey(command.id());
+
+        Long executed = recentKeys.get(command.key());
+        return pendingKeys.contains(command.key()) || (executed != null && now - executed < COALESCE_NANOS);
+    }
+
+    /**
+     * Loop of the command thread.
+     */
+    private void run() {
+        while (!stopped) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            Command command = entry.command();
+            if (command.id() == null) {
+                synchronized (this) {
+                    pendingKeys.remove(command.key());
+                    recentKeys.put(command.key(), System.nanoTime());
+                }
+            }
+
+            CommandAck ack;
+            try {
+                handler.execute(command);
+                ack = new CommandAck(command.id(), CommandStatus.DONE, null);
+            } catch (Exception e) {
+                log.error("Command failed: {}", command, e);
+                FAILED.inc();
+                ack = new CommandAck(command.id(), CommandStatus.FAILED, e.toString());
+            }
+
+            try {
+                entry.onDone().accept(ack);
+            } catch (RuntimeException e) {
+                log.warn("Unable to acknowledge command {}: {}", command, e.toString());
+            }
+        }
+
+        log.info("Command thread finished.");
+    }
+
+    /**
+     * @return map keeping only the most recently inserted entries
+     */
+    private static Map<String, Long> recentMap() {
+        return new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > RECENT_CAPACITY;
+            }
+        };
+    }
+
+}
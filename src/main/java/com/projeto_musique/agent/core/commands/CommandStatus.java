@@ -0,0 +1,47 @@
+package com.projeto_musique.agent.core.commands;
+
+import java.util.Locale;
+
+/**
+ * What became of a command.
+ */
+public enum CommandStatus {
+
+    /**
+     * Accepted and waiting to be executed.
+     */
+    QUEUED,
+
+    /**
+     * Same as a command queued or executed shortly before, dropped.
+     */
+    DUPLICATE,
+
+    /**
+     * Dropped because too many commands are waiting.
+     */
+    BUSY,
+
+    /**
+     * Dropped because it could not be parsed.
+     */
+    INVALID,
+
+    /**
+     * Executed.
+     */
+    DONE,
+
+    /**
+     * Execution failed.
+     */
+    FAILED;
+
+    /**
+     * @return the name sent to the server
+     */
+    public String wireName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+}
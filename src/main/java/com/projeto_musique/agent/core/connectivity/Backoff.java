@@ -0,0 +1,56 @@
+package com.projeto_musique.agent.core.connectivity;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with decorrelated jitter.
+ * <p>
+ * Each delay is drawn at random between the base delay and three times the previous one, capped
+ * at a maximum. Agents that lost the backend at the same moment thus spread their attempts over
+ * a window that widens with every failure, instead of all retrying in step.
+ * </p>
+ */
+public final class Backoff {
+
+    /**
+     * Smallest delay, in milliseconds.
+     */
+    private final long baseMs;
+
+    /**
+     * Largest delay, in milliseconds.
+     */
+    private final long maxMs;
+
+    /**
+     * Last delay returned, or the base delay after a reset.
+     */
+    private long previousMs;
+
+    /**
+     * @param baseMs smallest delay, in milliseconds
+     * @param maxMs  largest delay, in milliseconds
+     */
+    public Backoff(long baseMs, long maxMs) {
+        this.baseMs = Math.max(1, baseMs);
+        this.maxMs = Math.max(this.baseMs, maxMs);
+        this.previousMs = this.baseMs;
+    }
+
+    /**
+     * @return the delay before the next attempt, in milliseconds
+     */
+    public synchronized long nextDelayMs() {
+        long upper = Math.min(maxMs, Math.max(baseMs, previousMs * 3));
+        previousMs = ThreadLocalRandom.current().nextLong(baseMs, upper + 1);
+        return previousMs;
+    }
+
+    /**
+     * Starts again from the base delay, after a success.
+     */
+    public synchronized void reset() {
+        previousMs = baseMs;
+    }
+
+}
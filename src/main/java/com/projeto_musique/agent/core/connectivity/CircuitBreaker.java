@@ -0,0 +1,247 @@
+package com.projeto_musique.agent.core.connectivity;
+
+import com.projeto_musique.agent.logging.RateLimitFilter;
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Gauge;
+import com.projeto_musique.agent.metrics.Metrics;
+import com.projeto_musique.agent.models.exceptions.ConnectionException;
+import com.projeto_musique.agent.models.exceptions.RequestException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling an endpoint of the backend while it keeps failing.
+ * <p>
+ * The breaker is closed while the endpoint answers. After a number of failures in a row, or as
+ * soon as the server asks for a delay with {@code Retry-After}, it opens for a delay drawn from
+ * its {@link Backoff}, or the delay asked if longer, and calls are refused without reaching the
+ * network. Once the delay is over the breaker is half open: a single trial call goes through while
+ * the others are still refused, its success closes the breaker and its failure opens it again
+ * right away for a longer delay.
+ * </p>
+ */
+@Slf4j
+public final class CircuitBreaker {
+
+    /**
+     * Longest {@code Retry-After} honored, in case the server sends an unreasonable one.
+     */
+    private static final Duration MAX_RETRY_AFTER = Duration.ofHours(1);
+
+    /**
+     * Time a trial call holds the half open breaker, after which another one is let through
+     * should its outcome never be recorded.
+     */
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * Times a breaker opened.
+     */
+    private static final Counter OPENED = Metrics.counter("agent_circuit_opened_total",
+            "Times a circuit breaker opened after failures of its endpoint");
+
+    /**
+     * States of a breaker.
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Functional interface for a call to the endpoint.
+     *
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+
+        T call() throws RequestException;
+
+    }
+
+    /**
+     * Name of the endpoint, as logged.
+     */
+    private final String name;
+
+    /**
+     * Failures in a row opening the breaker.
+     */
+    private final int failureThreshold;
+
+    /**
+     * Delays the breaker stays open.
+     */
+    private final Backoff backoff;
+
+    /**
+     * Current state, as the ordinal of {@link State}.
+     */
+    private final Gauge stateGauge;
+
+    /**
+     * Current state.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * Failures in a row.
+     */
+    private int failures;
+
+    /**
+     * {@link System#nanoTime()} until which the breaker stays open.
+     */
+    private long openUntil;
+
+    /**
+     * {@link System#nanoTime()} until which the trial call in flight holds the half open breaker,
+     * 0 if there is none.
+     */
+    private long probeUntil;
+
+    /**
+     * @param name             of the endpoint, as logged
+     * @param metricName       part of the name of the state metric
+     * @param failureThreshold failures in a row opening the breaker
+     * @param backoff          delays the breaker stays open
+     */
+    public CircuitBreaker(String name, String metricName, int failureThreshold, Backoff backoff) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.backoff = backoff;
+        this.stateGauge = Metrics.gauge("agent_circuit_" + metricName + "_state",
+                "Circuit breaker of " + name + ": 0 closed, 1 open, 2 half open");
+    }
+
+    /**
+     * Makes a call through the breaker. Failures where the server could not be reached or is
+     * overloaded count against the endpoint; any other answer shows it is up.
+     *
+     * @param call to the endpoint
+     * @param <T>  type of the result
+     * @return the result of the call
+     * @throws ConnectionException if the breaker is open and the call was not made
+     * @throws RequestException    if the call failed
+     */
+    public <T> T call(Call<T> call) throws ConnectionException, RequestException {
+        if (!tryAcquire())
+            throw new ConnectionException("Circuit of " + name + " open, next attempt in " + remainingMs() + " ms");
+
+        try {
+            T result = call.call();
+            success();
+            return result;
+        } catch (RequestException e) {
+            if (e.isRetryable())
+                failure(e.getRetryAfter());
+            else
+                success();
+            throw e;
+        } catch (RuntimeException e) {
+            failure(null);
+            throw e;
+        }
+    }
+
+    /**
+     * Whether a call may be made now. Once the breaker was open long enough, it turns half open
+     * and lets a single call through on trial; the caller must then record its outcome with
+     * {@link #success()}, {@link #failure(Duration)} or {@link #abandon()}.
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        switch (state) {
+            case CLOSED -> {
+                return true;
+            }
+            case OPEN -> {
+                if (now - openUntil < 0)
+                    return false;
+                setState(State.HALF_OPEN);
+            }
+            default -> {
+                if (probeUntil != 0 && now - probeUntil < 0)
+                    return false;
+            }
+        }
+        probeUntil = now + PROBE_TIMEOUT.toNanos();
+        return true;
+    }
+
+    /**
+     * Gives up a trial call without an outcome, letting the next caller make one.
+     */
+    public synchronized void abandon() {
+        probeUntil = 0;
+    }
+
+    /**
+     * Records a successful call, closing the breaker.
+     */
+    public synchronized void success() {
+        failures = 0;
+        probeUntil = 0;
+        backoff.reset();
+        if (state != State.CLOSED) {
+            log.info("Circuit of {} closed", name);
+            setState(State.CLOSED);
+        }
+    }
+
+    /**
+     * Records a failed call, opening the breaker if it failed too often or the server asked for a delay.
+     *
+     * @param retryAfter delay asked by the server, or null
+     * @return the delay before the next attempt, in milliseconds
+     */
+    public synchronized long failure(Duration retryAfter) {
+        failures++;
+        probeUntil = 0;
+        long delayMs = backoff.nextDelayMs();
+        if (retryAfter != null)
+            delayMs = Math.max(delayMs, Math.min(retryAfter.toMillis(), MAX_RETRY_AFTER.toMillis()));
+
+        if (state == State.HALF_OPEN || failures >= failureThreshold || retryAfter != null) {
+            if (state != State.OPEN) {
+                log.warn(RateLimitFilter.REPEATED, "Circuit of {} open for {} ms after {} failures", name, delayMs, failures);
+                OPENED.inc();
+            }
+            openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            setState(State.OPEN);
+        }
+        return delayMs;
+    }
+
+    /**
+     * @return how long calls are still refused, in milliseconds, 0 if they may be made
+     */
+    public synchronized long remainingMs() {
+        long now = System.nanoTime();
+        long remaining = switch (state) {
+            case OPEN -> openUntil - now;
+            case HALF_OPEN -> probeUntil == 0 ? 0 : probeUntil - now;
+            default -> 0;
+        };
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void setState(State next) {
+        state = next;
+        stateGauge.set(next.ordinal());
+    }
+
+}
@@ -3,12 +3,15 @@ package com.projeto_musique.agent.core.connectivity;
 import com.projeto_musique.agent.Properties;
 import com.projeto_musique.agent.http.Client;
 import com.projeto_musique.agent.http.Method;
+import com.projeto_musique.agent.logging.RateLimitFilter;
 import com.projeto_musique.agent.models.LoginRequest;
 import com.projeto_musique.agent.models.LoginResult;
+import com.projeto_musique.agent.models.RefreshRequest;
 import com.projeto_musique.agent.models.exceptions.RequestException;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class is responsible for the login process.
@@ -22,11 +25,20 @@ public class Login {
      * @return LoginResult
      */
     public LoginResult request(String username, String password) throws RequestException {
-        log.info("Logging username: {}", username);
+        return Client.await(requestAsync(username, password));
+    }
+
+    /**
+     * Logs into the app without blocking.
+     *
+     * @return LoginResult, or a future failed with a RequestException
+     */
+    public CompletableFuture<LoginResult> requestAsync(String username, String password) {
+        log.info(RateLimitFilter.REPEATED, "Logging username: {}", username);
 
         LoginRequest loginRequest = new LoginRequest(username, password);
 
-        return Client.send(
+        return Client.sendAsync(
                 Properties.BASE_URL + "/api/auth",
                 loginRequest,
                 Collections.emptyMap(),
@@ -35,4 +47,23 @@ public class Login {
         );
     }
 
+    /**
+     * Exchanges a refresh token for new tokens, without sending the credentials again.
+     *
+     * @param refreshToken from a previous login
+     * @return LoginResult with the new tokens
+     * @throws RequestException if the refresh token is rejected or the request fails
+     */
+    public LoginResult refresh(String refreshToken) throws RequestException {
+        log.info("Refreshing access token");
+
+        return Client.send(
+                Properties.BASE_URL + "/api/auth/refresh",
+                new RefreshRequest(refreshToken),
+                Collections.emptyMap(),
+                Method.POST,
+                LoginResult.class
+        );
+    }
+
 }
@@ -0,0 +1,93 @@
+package com.projeto_musique.agent.core.connectivity;
+
+import com.projeto_musique.agent.Properties;
+
+/**
+ * How the agent retries the backend after failures, shared by everything connecting to it.
+ * <p>
+ * Every retry waits a delay drawn by a {@link Backoff} with decorrelated jitter, configured with
+ * {@value Properties#ENV_RECONNECT_BASE_MS_KEY} and {@value Properties#ENV_RECONNECT_MAX_MS_KEY}.
+ * Each endpoint has its own {@link CircuitBreaker}, so an endpoint that keeps failing is left
+ * alone for a while, and for at least as long as the server asked with {@code Retry-After}.
+ * </p>
+ */
+public final class ReconnectPolicy {
+
+    /**
+     * Smallest delay before a retry, in milliseconds.
+     */
+    private final long baseMs;
+
+    /**
+     * Largest delay before a retry, in milliseconds.
+     */
+    private final long maxMs;
+
+    /**
+     * Breaker of the login and token refresh.
+     */
+    private final CircuitBreaker auth;
+
+    /**
+     * Breaker of the stream request.
+     */
+    private final CircuitBreaker stream;
+
+    /**
+     * Breaker of the command socket.
+     */
+    private final CircuitBreaker socket;
+
+    public ReconnectPolicy() {
+        this(Long.parseLong(Properties.getEnv(Properties.ENV_RECONNECT_BASE_MS_KEY, String.valueOf(Properties.DEFAULT_RECONNECT_BASE_MS)).trim()),
+                Long.parseLong(Properties.getEnv(Properties.ENV_RECONNECT_MAX_MS_KEY, String.valueOf(Properties.DEFAULT_RECONNECT_MAX_MS)).trim()));
+    }
+
+    /**
+     * @param baseMs smallest delay before a retry, in milliseconds
+     * @param maxMs  largest delay before a retry, in milliseconds
+     */
+    public ReconnectPolicy(long baseMs, long maxMs) {
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+        this.auth = new CircuitBreaker("/api/auth", "auth", Properties.CIRCUIT_FAILURE_THRESHOLD, newBackoff());
+        this.stream = new CircuitBreaker("/api/company/stream", "stream", Properties.CIRCUIT_FAILURE_THRESHOLD, newBackoff());
+        this.socket = new CircuitBreaker("socket.io", "socket", Properties.CIRCUIT_FAILURE_THRESHOLD, newBackoff());
+    }
+
+    /**
+     * @return a backoff with the delays of the policy, for retries not tied to one endpoint
+     */
+    public Backoff newBackoff() {
+        return new Backoff(baseMs, maxMs);
+    }
+
+    /**
+     * @return the breaker of the login and token refresh
+     */
+    public CircuitBreaker auth() {
+        return auth;
+    }
+
+    /**
+     * @return the breaker of the stream request
+     */
+    public CircuitBreaker stream() {
+        return stream;
+    }
+
+    /**
+     * @return the breaker of the command socket
+     */
+    public CircuitBreaker socket() {
+        return socket;
+    }
+
+    /**
+     * @return how long until the login and the stream request may both be tried, in milliseconds
+     */
+    public long remainingMs() {
+        return Math.max(auth.remainingMs(), stream.remainingMs());
+    }
+
+}
@@ -2,14 +2,30 @@ package com.projeto_musique.agent.core.connectivity;
 
 import com.projeto_musique.agent.Properties;
 import com.projeto_musique.agent.core.Engine;
+import com.projeto_musique.agent.core.Workers;
+import com.projeto_musique.agent.core.commands.Command;
+import com.projeto_musique.agent.core.commands.CommandAck;
+import com.projeto_musique.agent.core.commands.CommandParser;
+import com.projeto_musique.agent.core.commands.CommandQueue;
+import com.projeto_musique.agent.core.commands.CommandStatus;
+import com.projeto_musique.agent.logging.RateLimitFilter;
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Gauge;
+import com.projeto_musique.agent.metrics.Metrics;
+import io.socket.client.Ack;
 import io.socket.client.IO;
 import io.socket.client.Socket;
 import lombok.extern.slf4j.Slf4j;
+import org.json.JSONObject;
 
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Manages a Socket.IO connection to a specified server.
@@ -18,102 +34,319 @@ import java.util.concurrent.CountDownLatch;
  * a Socket.IO connection. This is used to receive audio commands
  * (e.g., play ads) from the server.
  * </p>
+ * <p>
+ * Commands are parsed on the socket event thread and handed to a {@link CommandQueue}, which
+ * never blocks. Each command is acknowledged when it is received, through the Socket.IO ack
+ * callback if the server asked for one, and again once it was executed, with a
+ * {@value #ACK_EVENT} event.
+ * </p>
+ * <p>
+ * The socket does not use the reconnection of the Socket.IO client: after a connection error or a
+ * disconnection from the server, the next attempt is scheduled after the delay of its
+ * {@link CircuitBreaker}, so a fleet of agents losing the backend together does not come back in
+ * step. Each attempt identifies with the access token current at that time.
+ * </p>
  */
 @Slf4j
 public class SocketManager {
 
+    /**
+     * Time allowed for the socket to connect, identify and join.
+     */
+    private static final long JOIN_TIMEOUT_MS = 15000;
+
+    /**
+     * Event acknowledging commands to the server.
+     */
+    private static final String ACK_EVENT = "commandAck";
+
+    /**
+     * Whether the socket is joined.
+     */
+    private static final Gauge JOINED = Metrics.gauge("agent_socket_joined",
+            "1 while the command socket is joined, 0 otherwise");
+
+    /**
+     * Connection errors of the socket.
+     */
+    private static final Counter CONNECT_ERRORS = Metrics.counter("agent_socket_connect_errors_total",
+            "Command socket connection errors");
+
     /**
      * Engine instance used to trigger playback of audio or ads.
      */
     private final Engine engine;
 
+    /**
+     * Queue the commands are handed to.
+     */
+    private final CommandQueue commands;
+
+    /**
+     * Breaker of the socket, giving the delays between connection attempts.
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * Runtime scheduling the connection attempts.
+     */
+    private final Workers workers;
+
     /**
      * The Socket.IO client instance used for the connection.
      */
     private Socket socket;
 
-    public SocketManager(Engine engine) {
+    /**
+     * Source of the access token of the socket being opened, asked again on every attempt.
+     */
+    private Supplier<String> accessToken;
+
+    /**
+     * Future of the socket being opened, identifying it until it is closed or opened again.
+     */
+    private CompletableFuture<Boolean> joining;
+
+    /**
+     * Scheduled connection attempt, if any.
+     */
+    private Future<?> reconnectTask;
+
+    public SocketManager(Engine engine, CommandQueue commands, CircuitBreaker breaker, Workers workers) {
         this.engine = engine;
+        this.commands = commands;
+        this.breaker = breaker;
+        this.workers = workers;
+    }
+
+    /**
+     * Opens a Socket.IO connection to the server and identifies the client
+     * using the provided access token, waiting until it joined.
+     *
+     * @param accessToken Source of the access token used to identify the client.
+     * @return True if the socket successfully connected and identified; false otherwise.
+     */
+    public boolean openSocket(Supplier<String> accessToken) {
+        try {
+            return openSocketAsync(accessToken).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while opening the socket", e);
+            return false;
+        } catch (ExecutionException e) {
+            log.error("Failed to open socket: {}", e.getCause().toString());
+            return false;
+        }
     }
 
     /**
      * Opens a Socket.IO connection to the server and identifies the client
-     * using the provided access token.
+     * using the provided access token, without waiting for it.
+     * <p>
+     * Every connection attempt, the first one and those after an error or a disconnection, asks
+     * the source for the access token and builds a new socket with it, so a token refreshed in
+     * the meantime is used rather than the one the socket was first opened with. The source
+     * returns null when no token can be had, which counts as a failed attempt.
+     * </p>
+     *
+     * @param accessToken Source of the access token used to identify the client.
+     * @return True once the socket joined, false if the first connection attempt failed;
+     * fails with a TimeoutException if neither happened in time.
+     */
+    public CompletableFuture<Boolean> openSocketAsync(Supplier<String> accessToken) {
+        log.info(RateLimitFilter.REPEATED, "Opening socket");
+
+        CompletableFuture<Boolean> joined = new CompletableFuture<>();
+        synchronized (this) {
+            if (socket != null || joining != null)
+                closeSocket();
+            this.accessToken = accessToken;
+            this.joining = joined;
+        }
+        reconnect(joined);
+
+        return joined.orTimeout(JOIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((success, e) -> log.info("Socket joined: {}", Boolean.TRUE.equals(success)));
+    }
+
+    /**
+     * Schedules the next connection attempt, unless the socket was closed or opened again meanwhile.
+     *
+     * @param joined  future of the socket to be connected
+     * @param delayMs before the attempt
+     */
+    private synchronized void scheduleReconnect(CompletableFuture<Boolean> joined, long delayMs) {
+        if (joining != joined)
+            return;
+
+        if (reconnectTask != null)
+            reconnectTask.cancel(false);
+        log.info(RateLimitFilter.REPEATED, "Connecting the socket again in {} ms", delayMs);
+        reconnectTask = workers.submitLater("socket reconnect", () -> reconnect(joined), Math.max(delayMs, 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes a connection attempt with a fresh access token, or waits longer if the breaker is
+     * still open. The token is asked for without holding the lock, as it may take a login.
+     *
+     * @param joined future of the socket to be connected
+     */
+    private void reconnect(CompletableFuture<Boolean> joined) {
+        Supplier<String> source;
+        synchronized (this) {
+            if (joining != joined || (socket != null && socket.connected()))
+                return;
+            if (!breaker.tryAcquire()) {
+                scheduleReconnect(joined, breaker.remainingMs());
+                return;
+            }
+            source = accessToken;
+        }
+
+        String token = source.get();
+
+        synchronized (this) {
+            if (joining != joined) {
+                breaker.abandon();
+                return;
+            }
+            if (token == null) {
+                joined.complete(false);
+                scheduleReconnect(joined, breaker.failure(null));
+                return;
+            }
+
+            if (socket != null) {
+                socket.off();
+                socket.close();
+            }
+            try {
+                socket = newSocket(token, joined);
+            } catch (URISyntaxException e) {
+                log.error("Failed to open socket", e);
+                socket = null;
+                breaker.abandon();
+                joined.complete(false);
+                return;
+            }
+            socket.connect();
+        }
+    }
+
+    /**
+     * Builds a socket identifying with an access token.
      * <p>
      * Sets up listeners for connection, identification, join, errors,
      * incoming messages (playAudio), and disconnection events.
      * </p>
      *
-     * @param accessToken The access token used to identify the client.
-     * @return True if the socket successfully connected and identified; false otherwise.
+     * @param token  access token the socket identifies with
+     * @param joined future of the socket, completed by its first attempt
+     * @return the socket, not connected yet
+     * @throws URISyntaxException if the base URL is invalid
      */
-    public boolean openSocket(String accessToken) {
-        log.info("Opening socket for access token: {}", accessToken);
-
+    private Socket newSocket(String token, CompletableFuture<Boolean> joined) throws URISyntaxException {
         IO.Options options = IO.Options.builder()
                 .setPath("/socket.io")
                 .setForceNew(true)
-                .setReconnection(true)
+                .setReconnection(false)
                 .setTimeout(5000)
                 .setTransports(new String[]{"websocket"})
                 .setExtraHeaders(Map.of(
-                        "Authorization", List.of("Bearer " + accessToken)
+                        "Authorization", List.of("Bearer " + token)
                 ))
                 .build();
 
-        CountDownLatch latch = new CountDownLatch(1);
+        // Connect to the server
+        Socket opened = IO.socket(Properties.BASE_URL, options);
 
-        try {
-            // Connect to the server
-            socket = IO.socket(Properties.BASE_URL, options);
-
-            // On connect
-            socket.on(Socket.EVENT_CONNECT, args -> log.debug("Socket connected"));
-
-            // On identify
-            socket.on("identify", args -> {
-                socket.emit("identification", accessToken);
-                log.debug("Socket identify");
-            });
-
-            // On join
-            socket.on("join", args -> {
-                log.debug("Socket joined: {}", args[0]);
-                latch.countDown();
-            });
-
-            // On connect error
-            socket.on(Socket.EVENT_CONNECT_ERROR, args -> {
-                for (Object arg : args) {
-                    log.error("Connect error: {}", arg);
-                }
-                latch.countDown();
-            });
-
-            // On playAudio message
-            socket.on("playAudio", args -> {
-                log.debug("Message received: {}", args[0]);
-
-                int startIndex = args[0].toString().indexOf("http");
-                engine.playAd(args[0].toString().substring(startIndex, args[0].toString().length() - 2));
-            });
-
-            // On disconnect
-            socket.on(Socket.EVENT_DISCONNECT, args -> log.debug("Disconnected"));
+        // On connect
+        opened.on(Socket.EVENT_CONNECT, args -> log.debug("Socket connected"));
 
-            socket.connect();
+        // On identify
+        opened.on("identify", args -> {
+            opened.emit("identification", token);
+            log.debug("Socket identify");
+        });
 
-            // Wait until identification or error
-            latch.await();
+        // On join
+        opened.on("join", args -> {
+            log.debug("Socket joined: {}", args[0]);
+            JOINED.set(1);
+            breaker.success();
+            joined.complete(true);
+            engine.onSocketJoined();
+        });
 
-            boolean isConnected = socket.connected();
-            log.info("Socket connected: {}", isConnected);
+        // On connect error
+        opened.on(Socket.EVENT_CONNECT_ERROR, args -> {
+            for (Object arg : args) {
+                log.error("Connect error: {}", arg);
+            }
+            CONNECT_ERRORS.inc();
+            joined.complete(false);
+            scheduleReconnect(joined, breaker.failure(null));
+        });
 
-            return isConnected;
-        } catch (URISyntaxException | InterruptedException e) {
-            log.error("Failed to open socket", e);
-            return false;
+        // On commands
+        opened.on("playAudio", args -> receive(opened, "playAudio", args));
+        opened.on("prefetchAudio", args -> receive(opened, "prefetchAudio", args));
+
+        // On disconnect
+        opened.on(Socket.EVENT_DISCONNECT, args -> {
+            log.debug("Disconnected: {}", args.length > 0 ? args[0] : null);
+            JOINED.set(0);
+            engine.onSocketDisconnected();
+            scheduleReconnect(joined, breaker.failure(null));
+        });
+
+        return opened;
+    }
+
+    /**
+     * Parses a command and queues it, acknowledging it right away. Runs on the socket event
+     * thread and never blocks.
+     *
+     * @param opened socket the command came from
+     * @param event  name of the event
+     * @param args   of the event, the last one being the ack callback if the server wants one
+     */
+    private void receive(Socket opened, String event, Object[] args) {
+        Ack callback = args.length > 0 && args[args.length - 1] instanceof Ack ack ? ack : null;
+        Object payload = args.length > 0 && args[0] != callback ? args[0] : null;
+        log.debug("Command received: {} {}", event, payload);
+
+        Command command;
+        try {
+            command = CommandParser.parse(event, payload);
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring command {}: {}", event, e.getMessage());
+            acknowledge(opened, callback, new CommandAck(null, CommandStatus.INVALID, e.getMessage()));
+            return;
         }
+
+        CommandStatus status = commands.offer(command, done -> acknowledge(opened, null, done));
+        acknowledge(opened, callback, new CommandAck(command.id(), status, null));
+    }
+
+    /**
+     * Sends an ack through the callback if there is one, otherwise as an event when the command
+     * has an id the server can match it with.
+     *
+     * @param opened   socket the command came from
+     * @param callback of the event, or null
+     * @param ack      to be sent
+     */
+    private void acknowledge(Socket opened, Ack callback, CommandAck ack) {
+        JSONObject json = new JSONObject();
+        json.put("id", ack.id());
+        json.put("status", ack.status().wireName());
+        json.put("error", ack.error());
+
+        if (callback != null)
+            callback.call(json);
+        else if (ack.id() != null && opened.connected())
+            opened.emit(ACK_EVENT, json);
     }
 
     /**
@@ -122,10 +355,22 @@ public class SocketManager {
      * Disconnects the socket and logs the closure.
      * </p>
      */
-    public void closeSocket() {
+    public synchronized void closeSocket() {
         log.info("Closing the socket...");
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
+        if (joining != null) {
+            joining = null;
+            accessToken = null;
+            breaker.abandon();
+        }
         if (socket != null) {
+            socket.off();
             socket.close();
+            socket = null;
+            JOINED.set(0);
             log.info("Socket closed.");
         }
     }
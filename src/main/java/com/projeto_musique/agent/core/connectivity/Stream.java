@@ -3,11 +3,13 @@ package com.projeto_musique.agent.core.connectivity;
 import com.projeto_musique.agent.Properties;
 import com.projeto_musique.agent.http.Client;
 import com.projeto_musique.agent.http.Method;
+import com.projeto_musique.agent.logging.RateLimitFilter;
 import com.projeto_musique.agent.models.GetStreamResult;
 import com.projeto_musique.agent.models.exceptions.RequestException;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class is responsible for getting the stream URL.
@@ -23,9 +25,19 @@ public class Stream {
      * @throws RequestException if the request fails
      */
     public GetStreamResult request(String accessToken) throws RequestException {
-        log.info("Getting stream for access token: {}", accessToken);
+        return Client.await(requestAsync(accessToken));
+    }
+
+    /**
+     * Requests the stream URL without blocking.
+     *
+     * @param accessToken of the user to get the stream
+     * @return GetStreamResult, or a future failed with a RequestException
+     */
+    public CompletableFuture<GetStreamResult> requestAsync(String accessToken) {
+        log.info(RateLimitFilter.REPEATED, "Getting stream");
 
-        return Client.send(
+        return Client.sendAsync(
                 Properties.BASE_URL + "/api/company/stream",
                 Map.of("Authorization", "Bearer " + accessToken),
                 Method.GET,
@@ -0,0 +1,313 @@
+package com.projeto_musique.agent.core.connectivity;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.projeto_musique.agent.Properties;
+import com.projeto_musique.agent.core.Workers;
+import com.projeto_musique.agent.logging.RateLimitFilter;
+import com.projeto_musique.agent.models.LoginResult;
+import com.projeto_musique.agent.models.exceptions.RequestException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the access token of the agent valid while logging in as rarely as possible.
+ * <p>
+ * Tokens are persisted to a file readable by the owner only and reused across restarts while
+ * they are valid. Before the access token expires it is refreshed in the background with the
+ * refresh token, so the socket opened with it stays up. Only when no token can be used anymore
+ * are the credentials sent again.
+ * </p>
+ */
+@Slf4j
+public class TokenManager {
+
+    /**
+     * How long before its expiry an access token is refreshed.
+     */
+    private static final Duration REFRESH_MARGIN = Duration.ofMinutes(2);
+
+    /**
+     * Delay before trying again after a failed background refresh.
+     */
+    private static final Duration REFRESH_RETRY_DELAY = Duration.ofSeconds(30);
+
+    /**
+     * Lifetime assumed for tokens whose expiry cannot be read.
+     */
+    private static final Duration DEFAULT_LIFETIME = Duration.ofMinutes(10);
+
+    /**
+     * Lifetimes like {@code 3600}, {@code 15m} or {@code 7d}.
+     */
+    private static final Pattern LIFETIME = Pattern.compile("(\\d+)\\s*([smhd]?)");
+
+    /**
+     * Mapper of the token file and of the token payloads.
+     */
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Tokens as persisted on disk.
+     *
+     * @param username         the tokens belong to
+     * @param accessToken      used by the requests and the socket, null once invalidated
+     * @param accessExpiresAt  expiry of the access token, in epoch seconds
+     * @param refreshToken     used to get new tokens
+     * @param refreshExpiresAt expiry of the refresh token, in epoch seconds
+     */
+    private record Tokens(String username, String accessToken, long accessExpiresAt, String refreshToken, long refreshExpiresAt) {
+
+        boolean accessValid(Instant now) {
+            return accessToken != null && now.plus(REFRESH_MARGIN).getEpochSecond() < accessExpiresAt;
+        }
+
+        boolean refreshValid(Instant now) {
+            return refreshToken != null && now.getEpochSecond() < refreshExpiresAt;
+        }
+
+    }
+
+    /**
+     * Login logic for the app.
+     */
+    private final Login login;
+
+    /**
+     * File the tokens are persisted to.
+     */
+    private final Path file;
+
+    /**
+     * Runtime running the background refresh.
+     */
+    private final Workers workers;
+
+    /**
+     * Current tokens, if any.
+     */
+    private Tokens tokens;
+
+    /**
+     * Scheduled background refresh, if any.
+     */
+    private Future<?> refreshTask;
+
+    public TokenManager(Login login, Path file, Workers workers) {
+        this.login = login;
+        this.file = file;
+        this.workers = workers;
+        this.tokens = load();
+    }
+
+    /**
+     * Returns a valid access token, refreshing or logging in only when needed.
+     *
+     * @param username of the agent
+     * @param password of the agent
+     * @return the access token
+     * @throws RequestException if no username is configured, or neither a refresh nor a login succeeded
+     */
+    public synchronized String accessToken(String username, String password) throws RequestException {
+        if (username == null)
+            throw new RequestException("No username configured, set " + Properties.ENV_USERNAME_KEY + " to log in");
+
+        Instant now = Instant.now();
+        if (tokens != null && !Objects.equals(tokens.username(), username))
+            tokens = null;
+
+        if (tokens != null && tokens.accessValid(now)) {
+            log.debug(RateLimitFilter.REPEATED, "Reusing access token valid until {}", Instant.ofEpochSecond(tokens.accessExpiresAt()));
+            scheduleRefresh();
+            return tokens.accessToken();
+        }
+
+        if (tokens != null && tokens.refreshValid(now)) {
+            try {
+                update(username, login.refresh(tokens.refreshToken()));
+                return tokens.accessToken();
+            } catch (RequestException e) {
+                log.warn("Unable to refresh the access token, logging in again: {}", e.getMessage());
+            }
+        }
+
+        update(username, login.request(username, password));
+        return tokens.accessToken();
+    }
+
+    /**
+     * Forgets the access token after it was rejected, so the next call refreshes or logs in.
+     */
+    public synchronized void invalidate() {
+        if (tokens == null || tokens.accessToken() == null)
+            return;
+
+        log.info("Access token rejected, dropping it");
+        tokens = new Tokens(tokens.username(), null, 0, tokens.refreshToken(), tokens.refreshExpiresAt());
+        store();
+    }
+
+    /**
+     * Replaces the tokens with the result of a login or a refresh, persists them
+     * and schedules the next refresh.
+     *
+     * @param username the tokens belong to
+     * @param result   of the login or refresh
+     * @throws RequestException if the result carries no access token
+     */
+    private void update(String username, LoginResult result) throws RequestException {
+        if (result == null || result.getAccessToken() == null || result.getAccessToken().getToken() == null)
+            throw new RequestException("No access token in the login result");
+
+        Instant now = Instant.now();
+        LoginResult.AccessToken access = result.getAccessToken();
+        LoginResult.AccessToken refresh = result.getRefreshToken();
+
+        String refreshToken = refresh != null && refresh.getToken() != null ? refresh.getToken() : tokens == null ? null : tokens.refreshToken();
+        long refreshExpiresAt = refresh != null && refresh.getToken() != null ? expiry(refresh, now) : tokens == null ? 0 : tokens.refreshExpiresAt();
+
+        tokens = new Tokens(username, access.getToken(), expiry(access, now), refreshToken, refreshExpiresAt);
+        log.info("Access token valid until {}", Instant.ofEpochSecond(tokens.accessExpiresAt()));
+
+        store();
+        scheduleRefresh();
+    }
+
+    /**
+     * Schedules the background refresh shortly before the access token expires,
+     * replacing any refresh already scheduled.
+     */
+    private void scheduleRefresh() {
+        if (tokens == null || tokens.refreshToken() == null)
+            return;
+
+        long delay = tokens.accessExpiresAt() - REFRESH_MARGIN.getSeconds() - Instant.now().getEpochSecond();
+        scheduleRefresh(Math.max(delay, 1));
+    }
+
+    /**
+     * Schedules the background refresh, replacing any refresh already scheduled.
+     *
+     * @param delaySeconds before the refresh
+     */
+    private void scheduleRefresh(long delaySeconds) {
+        if (refreshTask != null)
+            refreshTask.cancel(false);
+
+        refreshTask = workers.submitLater("token refresh", this::refreshInBackground, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Refreshes the tokens ahead of their expiry, trying again later if it fails.
+     */
+    private synchronized void refreshInBackground() {
+        if (tokens == null || !tokens.refreshValid(Instant.now()))
+            return;
+
+        try {
+            update(tokens.username(), login.refresh(tokens.refreshToken()));
+        } catch (RequestException | RuntimeException e) {
+            log.warn("Background token refresh failed: {}", e.getMessage());
+            if (Instant.now().plus(REFRESH_RETRY_DELAY).getEpochSecond() < tokens.accessExpiresAt())
+                scheduleRefresh(REFRESH_RETRY_DELAY.getSeconds());
+        }
+    }
+
+    /**
+     * Reads the persisted tokens.
+     *
+     * @return the tokens, or null if there are none or they cannot be read
+     */
+    private Tokens load() {
+        if (!Files.isRegularFile(file))
+            return null;
+
+        try {
+            return mapper.readValue(file.toFile(), Tokens.class);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable token file: {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Persists the tokens atomically to a file readable by the owner only.
+     */
+    private void store() {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+
+            Path temp = directory.resolve(file.getFileName() + ".tmp");
+            Files.deleteIfExists(temp);
+            try {
+                Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                Files.createFile(temp);
+            }
+
+            Files.write(temp, mapper.writeValueAsBytes(tokens));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to persist the tokens to {}", file, e);
+        }
+    }
+
+    /**
+     * Works out when a token expires, from the {@code exp} claim of a JWT if present,
+     * otherwise from its announced lifetime.
+     *
+     * @param token    as returned by the backend
+     * @param issuedAt when the token was received
+     * @return expiry in epoch seconds
+     */
+    private static long expiry(LoginResult.AccessToken token, Instant issuedAt) {
+        String[] parts = token.getToken().split("\\.");
+        if (parts.length == 3) {
+            try {
+                JsonNode exp = mapper.readTree(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8)).get("exp");
+                if (exp != null && exp.canConvertToLong())
+                    return exp.asLong();
+            } catch (IOException | IllegalArgumentException e) {
+                log.debug("Token is not a readable JWT: {}", e.getMessage());
+            }
+        }
+
+        return issuedAt.plus(lifetime(token.getExpiresIn())).getEpochSecond();
+    }
+
+    /**
+     * Parses a lifetime like {@code 3600}, {@code 15m} or {@code 7d}.
+     *
+     * @param expiresIn as returned by the backend
+     * @return the lifetime, or a short default if it cannot be parsed
+     */
+    private static Duration lifetime(String expiresIn) {
+        Matcher matcher = expiresIn == null ? null : LIFETIME.matcher(expiresIn.trim());
+        if (matcher == null || !matcher.matches())
+            return DEFAULT_LIFETIME;
+
+        long amount = Long.parseLong(matcher.group(1));
+        return switch (matcher.group(2)) {
+            case "m" -> Duration.ofMinutes(amount);
+            case "h" -> Duration.ofHours(amount);
+            case "d" -> Duration.ofDays(amount);
+            default -> Duration.ofSeconds(amount);
+        };
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.projeto_musique.agent.core.library;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Directory of MP3 tracks played when the agent runs offline.
+ * <p>
+ * Scanning is done once and stored in a compact binary index inside the library directory,
+ * listing the directories walked and the size and modification time of every track. Later
+ * starts load the index instead of walking the library, and only check the entries it lists:
+ * the index is rebuilt if one of its directories changed after it was written, which happens
+ * when files are added, removed or renamed, or if a track was rewritten in place.
+ * </p>
+ */
+@Slf4j
+public final class LocalLibrary {
+
+    /**
+     * Name of the index file inside the library directory.
+     */
+    private static final String INDEX_FILE = ".library.idx";
+
+    /**
+     * Marks the start of the index file, changed with its format.
+     */
+    private static final int INDEX_MAGIC = 0x4D514C32;
+
+    /**
+     * Directory holding the tracks.
+     */
+    @Getter
+    private final Path directory;
+
+    /**
+     * Tracks of the library, sorted by path.
+     */
+    @Getter
+    private final List<Track> tracks;
+
+    private LocalLibrary(Path directory, List<Track> tracks) {
+        this.directory = directory;
+        this.tracks = Collections.unmodifiableList(tracks);
+    }
+
+    /**
+     * Opens a library, using its index when it is still up to date.
+     *
+     * @param directory of the library
+     * @return the opened library
+     * @throws IOException if the directory cannot be read
+     */
+    public static LocalLibrary open(Path directory) throws IOException {
+        Path index = directory.resolve(INDEX_FILE);
+
+        if (Files.exists(index)) {
+            try {
+                Index indexed = readIndex(index);
+                if (!isStale(directory, index, indexed)) {
+                    log.info("Library loaded from index: {} tracks in {}", indexed.tracks().size(), directory);
+                    return new LocalLibrary(directory, indexed.tracks());
+                }
+            } catch (IOException e) {
+                log.warn("Library index unreadable, rescanning: {}", index, e);
+            }
+        }
+
+        Index scanned = scan(directory);
+        try {
+            writeIndex(index, scanned);
+        } catch (IOException e) {
+            log.warn("Unable to write library index: {}", index, e);
+        }
+
+        log.info("Library scanned: {} tracks in {}", scanned.tracks().size(), directory);
+        return new LocalLibrary(directory, scanned.tracks());
+    }
+
+    /**
+     * @return true if the library has no track
+     */
+    public boolean isEmpty() {
+        return tracks.isEmpty();
+    }
+
+    /**
+     * Resolves the file of a track.
+     *
+     * @param track of this library
+     * @return absolute path of the file
+     */
+    public Path resolve(Track track) {
+        return directory.resolve(track.path());
+    }
+
+    /**
+     * Checks the entries of the index against the library, without walking it.
+     *
+     * @param directory of the library
+     * @param index     file
+     * @param indexed   content of the index
+     * @return true if a directory was modified after the index was written, or a track is
+     * missing or differs in size or modification time
+     */
+    private static boolean isStale(Path directory, Path index, Index indexed) {
+        try {
+            long written = Files.getLastModifiedTime(index).toMillis();
+            for (Path dir : indexed.directories()) {
+                if (Files.getLastModifiedTime(directory.resolve(dir)).toMillis() > written)
+                    return true;
+            }
+
+            for (Track track : indexed.tracks()) {
+                BasicFileAttributes attributes = Files.readAttributes(directory.resolve(track.path()), BasicFileAttributes.class);
+                if (attributes.size() != track.size() || attributes.lastModifiedTime().toMillis() != track.lastModified())
+                    return true;
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Walks the library directory looking for MP3 files.
+     *
+     * @param directory of the library
+     * @return the directories walked and the tracks found, sorted by path
+     * @throws IOException if the directory cannot be read
+     */
+    private static Index scan(Path directory) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        List<Track> tracks = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    directories.add(directory.relativize(file));
+                    continue;
+                }
+                if (!file.getFileName().toString().toLowerCase().endsWith(".mp3"))
+                    continue;
+
+                if (attributes.isRegularFile() && attributes.size() > 0)
+                    tracks.add(new Track(directory.relativize(file), attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        }
+
+        tracks.sort((a, b) -> a.path().compareTo(b.path()));
+        return new Index(directories, tracks);
+    }
+
+    private static Index readIndex(Path index) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            if (in.readInt() != INDEX_MAGIC)
+                throw new IOException("Not a library index");
+
+            int directoryCount = in.readInt();
+            List<Path> directories = new ArrayList<>(directoryCount);
+            for (int i = 0; i < directoryCount; i++) {
+                directories.add(Path.of(in.readUTF()));
+            }
+
+            int count = in.readInt();
+            List<Track> tracks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tracks.add(new Track(Path.of(in.readUTF()), in.readLong(), in.readLong()));
+            }
+            return new Index(directories, tracks);
+        }
+    }
+
+    private static void writeIndex(Path index, Index content) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(content.directories().size());
+            for (Path dir : content.directories()) {
+                out.writeUTF(dir.toString());
+            }
+            out.writeInt(content.tracks().size());
+            for (Track track : content.tracks()) {
+                out.writeUTF(track.path().toString());
+                out.writeLong(track.size());
+                out.writeLong(track.lastModified());
+            }
+        }
+    }
+
+    /**
+     * Content of the index.
+     *
+     * @param directories of the library, relative to it, the library itself included
+     * @param tracks      of the library, sorted by path
+     */
+    private record Index(List<Path> directories, List<Track> tracks) {
+
+    }
+
+}
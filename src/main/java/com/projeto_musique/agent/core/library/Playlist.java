@@ -0,0 +1,78 @@
+package com.projeto_musique.agent.core.library;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Endless shuffled playlist over a {@link LocalLibrary}.
+ * <p>
+ * Every track plays once per cycle before the order is reshuffled, and a new cycle
+ * never starts with the track that ended the previous one.
+ * </p>
+ */
+@Slf4j
+public class Playlist {
+
+    /**
+     * Library the tracks come from.
+     */
+    private final LocalLibrary library;
+
+    /**
+     * Order of the current cycle.
+     */
+    private final List<Track> order;
+
+    /**
+     * Source of the shuffles.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Next position in the current cycle.
+     */
+    private int position;
+
+    /**
+     * Track returned by the last call to {@link #next()}.
+     */
+    private Track previous;
+
+    public Playlist(LocalLibrary library) {
+        this.library = library;
+        this.order = new ArrayList<>(library.getTracks());
+        this.position = order.size();
+    }
+
+    /**
+     * @return the file of the next track to play
+     */
+    public synchronized Path next() {
+        if (order.isEmpty())
+            throw new IllegalStateException("Empty library: " + library.getDirectory());
+
+        if (position >= order.size()) {
+            Collections.shuffle(order, random);
+            if (order.size() > 1 && order.get(0).equals(previous))
+                Collections.swap(order, 0, order.size() - 1);
+            position = 0;
+        }
+
+        previous = order.get(position++);
+        log.debug("Next track: {}", previous.path());
+        return library.resolve(previous);
+    }
+
+    /**
+     * @return number of tracks in the playlist
+     */
+    public int size() {
+        return order.size();
+    }
+
+}
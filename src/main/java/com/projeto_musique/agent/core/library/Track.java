@@ -0,0 +1,14 @@
+package com.projeto_musique.agent.core.library;
+
+import java.nio.file.Path;
+
+/**
+ * A track of the local library.
+ *
+ * @param path         of the MP3 file, relative to the library directory
+ * @param size         of the file in bytes
+ * @param lastModified of the file in epoch milliseconds
+ */
+public record Track(Path path, long size, long lastModified) {
+
+}
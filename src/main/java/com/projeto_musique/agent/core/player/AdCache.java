@@ -0,0 +1,599 @@
+package com.projeto_musique.agent.core.player;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Size-bounded cache of decoded advertisements, keyed by the hash of their URL.
+ * <p>
+ * Decoded PCM is written to a disk tier while an ad plays for the first time, so later plays
+ * need neither the network nor the decoder. Small entries are promoted to a memory tier on
+ * access; larger ones are played straight from a memory-mapped file. Both tiers evict the
+ * least recently used entries once their byte budget is exceeded.
+ * </p>
+ * <p>
+ * The loudness of an ad is measured while it is recorded and stored in the header of its file,
+ * so it is never measured again; every entry is played with the gain bringing it to the target
+ * loudness. Files written with another header layout are dropped when the cache is opened.
+ * </p>
+ */
+@Slf4j
+public class AdCache {
+
+    /**
+     * Extension of committed cache files.
+     */
+    private static final String EXTENSION = ".pcm";
+
+    /**
+     * Marks the start of every cache file, changed along with the layout of the header.
+     */
+    private static final int MAGIC = 0x4D514145;
+
+    /**
+     * Size of the header preceding the PCM data.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Offset in the header of the loudness, in hundredths of LU, followed by the sample peak.
+     */
+    private static final int LOUDNESS_OFFSET = 12;
+
+    /**
+     * Loudness recorded for an ad too short or too quiet to be measured.
+     */
+    private static final short UNMEASURABLE = Short.MIN_VALUE;
+
+    /**
+     * Decoded ad ready to be played.
+     *
+     * @param pcm      signed 16-bit little-endian samples
+     * @param channels number of channels in the samples
+     * @param gain     bringing the ad to the target loudness
+     */
+    public record CachedAd(ByteBuffer pcm, int channels, float gain) {
+
+    }
+
+    /**
+     * Directory of the disk tier, or null if the disk tier is unavailable.
+     */
+    private final Path directory;
+
+    /**
+     * Executor running the prefetches.
+     */
+    private final Executor executor;
+
+    /**
+     * Maximum bytes kept on the heap.
+     */
+    private final long memoryBudget;
+
+    /**
+     * Maximum bytes kept on disk.
+     */
+    private final long diskBudget;
+
+    /**
+     * Loudness the ads are brought to, in LUFS.
+     */
+    private final double targetLufs;
+
+    /**
+     * Heap entries in access order.
+     */
+    private final LinkedHashMap<String, CachedAd> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Sizes of the disk entries in access order.
+     */
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Prefetches currently running, by key.
+     */
+    private final Map<String, CompletableFuture<Void>> prefetches = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes currently held in the memory tier.
+     */
+    private long memoryUsed;
+
+    /**
+     * Bytes currently held in the disk tier.
+     */
+    private long diskUsed;
+
+    public AdCache(Path directory, long memoryBudget, long diskBudget, double targetLufs, Executor executor) {
+        this.executor = executor;
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        this.targetLufs = targetLufs;
+        this.directory = openDirectory(directory);
+    }
+
+    /**
+     * Looks an ad up, first in memory and then on disk. A disk entry is mapped without holding
+     * the lock; only the result is published under it.
+     *
+     * @param url of the ad
+     * @return the decoded ad, if cached
+     */
+    public Optional<CachedAd> get(String url) {
+        String key = key(url);
+
+        Long size;
+        synchronized (this) {
+            CachedAd cached = memory.get(key);
+            if (cached != null) {
+                log.debug("Ad cache memory hit: {}", url);
+                return Optional.of(cached);
+            }
+
+            size = directory == null ? null : disk.get(key);
+            if (size == null)
+                return Optional.empty();
+        }
+
+        Path file = directory.resolve(key + EXTENSION);
+        CachedAd loaded;
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            loaded = load(file);
+        } catch (IOException e) {
+            log.warn("Dropping unreadable ad cache entry: {}", file, e);
+            synchronized (this) {
+                // Leave alone an entry committed again meanwhile.
+                if (size.equals(disk.get(key)))
+                    removeFromDisk(key);
+            }
+            return Optional.empty();
+        }
+
+        log.debug("Ad cache disk hit: {}", url);
+        if (loaded.pcm().capacity() > memoryBudget / 4)
+            return Optional.of(loaded);
+
+        CachedAd copy = onHeap(loaded);
+        synchronized (this) {
+            CachedAd promoted = memory.get(key);
+            if (promoted != null)
+                return Optional.of(promoted);
+            if (disk.containsKey(key))
+                putInMemory(key, copy);
+        }
+        return Optional.of(copy);
+    }
+
+    /**
+     * Wraps a decoded stream so that everything read through it is written to the disk tier.
+     * The entry is committed only if the stream is read to its end.
+     *
+     * @param url      of the ad
+     * @param pcm      signed 16-bit little-endian samples of the ad
+     * @param channels number of channels in the samples
+     * @return the stream to read from instead of {@code pcm}
+     */
+    public InputStream record(String url, InputStream pcm, int channels) {
+        if (directory == null)
+            return pcm;
+
+        try {
+            return new RecordingStream(key(url), pcm, channels);
+        } catch (IOException e) {
+            log.warn("Unable to record ad into cache: {}", url, e);
+            return pcm;
+        }
+    }
+
+    /**
+     * Downloads and decodes an ad into the cache in the background.
+     *
+     * @param url      of the ad
+     * @param channels number of channels to decode to
+     * @return completes once the ad is cached, or immediately if it already was
+     */
+    public CompletableFuture<Void> prefetch(String url, int channels) {
+        String key = key(url);
+        synchronized (this) {
+            if (memory.containsKey(key) || disk.containsKey(key))
+                return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> prefetch = new CompletableFuture<>();
+        CompletableFuture<Void> running = prefetches.putIfAbsent(key, prefetch);
+        if (running != null)
+            return running;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    download(url, channels);
+                } finally {
+                    prefetches.remove(key);
+                    prefetch.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Prefetch rejected, workers saturated or stopped: {}", url);
+            prefetches.remove(key);
+            prefetch.completeExceptionally(e);
+        }
+
+        return prefetch;
+    }
+
+    /**
+     * Downloads and decodes an ad, recording it into the disk tier.
+     *
+     * @param url      of the ad
+     * @param channels number of channels to decode to
+     */
+    private void download(String url, int channels) {
+        log.info("Prefetching ad: {}", url);
+        byte[] discard = new byte[8192];
+        try (InputStream in = record(url, Decoder.openPcm(url, channels), channels)) {
+            while (in.read(discard) >= 0) {
+                // Reading is enough, the recording stream writes the cache entry.
+            }
+        } catch (Exception e) {
+            log.error("Failed to prefetch ad: {}", url, e);
+        }
+    }
+
+    /**
+     * Creates the cache directory and indexes the entries already on disk.
+     *
+     * @param directory of the disk tier
+     * @return the directory, or null if it cannot be used
+     */
+    private Path openDirectory(Path directory) {
+        try {
+            Files.createDirectories(directory);
+
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path file : stream) {
+                    if (file.getFileName().toString().endsWith(EXTENSION))
+                        files.add(file);
+                    else
+                        Files.deleteIfExists(file);
+                }
+            }
+
+            files.sort((a, b) -> lastModified(a).compareTo(lastModified(b)));
+            for (Path file : files) {
+                if (!hasCurrentHeader(file)) {
+                    log.debug("Dropping ad cache entry written with another layout: {}", file);
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                long size = Files.size(file);
+                disk.put(name.substring(0, name.length() - EXTENSION.length()), size);
+                diskUsed += size;
+            }
+            evictFromDisk();
+
+            log.info("Ad cache opened at {} with {} entries ({} bytes)", directory, disk.size(), diskUsed);
+            return directory;
+        } catch (IOException e) {
+            log.warn("Ad cache directory unavailable, ads will not be cached: {}", directory, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param file committed cache file
+     * @return whether the file starts with the header of the current layout
+     */
+    private static boolean hasCurrentHeader(Path file) {
+        ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Maps a committed cache file. Called without the lock held.
+     *
+     * @param file to be mapped
+     * @return the ad stored in the file
+     * @throws IOException if the file cannot be read, is not a cache file or was decoded at another rate
+     */
+    private CachedAd load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC)
+                throw new IOException("Not an ad cache file");
+
+            int rate = mapped.getInt(8);
+            if (rate != Decoder.SAMPLE_RATE)
+                throw new IOException("Decoded at " + rate + " Hz instead of " + Decoder.SAMPLE_RATE + " Hz");
+
+            int channels = mapped.getInt(4);
+            ByteBuffer pcm = mapped.position(HEADER_SIZE).slice();
+            short loudness = mapped.getShort(LOUDNESS_OFFSET);
+            int peak = mapped.getShort(LOUDNESS_OFFSET + 2);
+            return new CachedAd(pcm, channels, gain(loudness, peak));
+        }
+    }
+
+    /**
+     * Stores the loudness of an ad in the header of its file.
+     *
+     * @param file     of the ad
+     * @param loudness as stored in the header
+     * @param peak     highest absolute sample value
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeLoudness(Path file, short loudness, int peak) throws IOException {
+        ByteBuffer fields = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        fields.putShort(loudness).putShort((short) Math.min(peak, Short.MAX_VALUE)).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(fields, LOUDNESS_OFFSET);
+        }
+    }
+
+    /**
+     * @param loudness integrated loudness in LUFS, negative infinity if unmeasurable
+     * @return the loudness as stored in the header
+     */
+    private static short encodeLoudness(double loudness) {
+        if (Double.isInfinite(loudness))
+            return UNMEASURABLE;
+        return (short) Math.max(UNMEASURABLE + 1, Math.min(Short.MAX_VALUE, Math.round(loudness * 100)));
+    }
+
+    /**
+     * @param loudness as stored in the header
+     * @param peak     highest absolute sample value
+     * @return the gain bringing the ad to the target loudness
+     */
+    private float gain(short loudness, int peak) {
+        double lufs = loudness == UNMEASURABLE ? Double.NEGATIVE_INFINITY : loudness / 100.0;
+        return LoudnessMeter.gain(lufs, peak, targetLufs);
+    }
+
+    /**
+     * Copies an ad to the heap.
+     *
+     * @param ad mapped from disk
+     * @return the heap copy
+     */
+    private static CachedAd onHeap(CachedAd ad) {
+        ByteBuffer copy = ByteBuffer.allocate(ad.pcm().capacity());
+        copy.put(ad.pcm().duplicate()).flip();
+        return new CachedAd(copy, ad.channels(), ad.gain());
+    }
+
+    /**
+     * Adds an ad to the memory tier and evicts older heap entries over budget.
+     *
+     * @param key    of the ad
+     * @param cached heap copy of the ad
+     */
+    private void putInMemory(String key, CachedAd cached) {
+        memoryUsed += cached.pcm().capacity() - sizeOf(memory.put(key, cached));
+
+        Iterator<Map.Entry<String, CachedAd>> eldest = memory.entrySet().iterator();
+        while (memoryUsed > memoryBudget && eldest.hasNext()) {
+            memoryUsed -= eldest.next().getValue().pcm().capacity();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Registers a committed file and evicts older disk entries over budget.
+     *
+     * @param key  of the ad
+     * @param size of the file
+     */
+    private synchronized void putOnDisk(String key, long size) {
+        Long previous = disk.put(key, size);
+        diskUsed += size - (previous == null ? 0 : previous);
+        memoryUsed -= sizeOf(memory.remove(key));
+        evictFromDisk();
+    }
+
+    /**
+     * Deletes the least recently used disk entries until the tier fits its budget.
+     */
+    private void evictFromDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskUsed > diskBudget && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            diskUsed -= entry.getValue();
+            eldest.remove();
+            delete(directory.resolve(entry.getKey() + EXTENSION));
+        }
+    }
+
+    /**
+     * Forgets and deletes a disk entry.
+     *
+     * @param key of the ad
+     */
+    private void removeFromDisk(String key) {
+        Long size = disk.remove(key);
+        if (size != null)
+            diskUsed -= size;
+        delete(directory.resolve(key + EXTENSION));
+    }
+
+    private static long sizeOf(CachedAd removed) {
+        return removed == null ? 0 : removed.pcm().capacity();
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete ad cache file: {}", file, e);
+        }
+    }
+
+    /**
+     * Cache key of an URL.
+     *
+     * @param url of the ad
+     * @return hex encoded SHA-256 of the URL
+     */
+    private static String key(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(url.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Stream copying everything read into a temporary file, committed into the disk tier at the end.
+     */
+    private class RecordingStream extends FilterInputStream {
+
+        /**
+         * Key of the ad being recorded.
+         */
+        private final String key;
+
+        /**
+         * File receiving the samples until the entry is committed.
+         */
+        private final Path temporary;
+
+        /**
+         * Writer of the temporary file.
+         */
+        private final OutputStream out;
+
+        /**
+         * Measures the loudness of the samples recorded.
+         */
+        private final LoudnessMeter meter;
+
+        /**
+         * Set once the source reached its end.
+         */
+        private boolean complete;
+
+        /**
+         * Set once the stream was closed.
+         */
+        private boolean closed;
+
+        RecordingStream(String key, InputStream in, int channels) throws IOException {
+            super(in);
+            this.key = key;
+            this.temporary = Files.createTempFile(directory, key, ".part");
+            this.out = new BufferedOutputStream(Files.newOutputStream(temporary));
+            this.meter = new LoudnessMeter(channels, Decoder.SAMPLE_RATE);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(channels).putInt(Decoder.SAMPLE_RATE);
+            out.write(header.array());
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = super.read(b, off, len);
+            if (r < 0) {
+                complete = true;
+            } else {
+                out.write(b, off, r);
+                meter.process(b, off, r);
+            }
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            try {
+                super.close();
+            } finally {
+                out.close();
+                commit();
+            }
+        }
+
+        /**
+         * Stores the loudness measured and moves the temporary file into the disk tier if the
+         * whole stream was read.
+         */
+        private void commit() {
+            try {
+                if (!complete) {
+                    Files.deleteIfExists(temporary);
+                    return;
+                }
+
+                double loudness = meter.integrated();
+                writeLoudness(temporary, encodeLoudness(loudness), meter.peak());
+
+                Path file = directory.resolve(key + EXTENSION);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                putOnDisk(key, Files.size(file));
+                log.debug("Ad cached: {} ({} LUFS, peak {})", file, String.format("%.1f", loudness), meter.peak());
+            } catch (IOException e) {
+                log.warn("Failed to commit ad cache entry: {}", temporary, e);
+                delete(temporary);
+            }
+        }
+
+    }
+
+}
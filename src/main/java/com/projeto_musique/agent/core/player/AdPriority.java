@@ -0,0 +1,18 @@
+package com.projeto_musique.agent.core.player;
+
+/**
+ * Priority of an ad spot in the {@link AdQueue}.
+ */
+public enum AdPriority {
+
+    /**
+     * Regular ad, played after the spots queued before it.
+     */
+    NORMAL,
+
+    /**
+     * Announcement played before every normal spot, cutting a normal spot short if one is playing.
+     */
+    URGENT
+
+}
@@ -0,0 +1,654 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.core.Workers;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Schedules the ad spots: a priority queue of pending spots played one after the other.
+ * <p>
+ * Spots are played inside a {@link Block}, a single voice of the ad mixer that moves from one
+ * spot to the next within the same mix cycle, so an ad block plays gaplessly and the main sound
+ * is ducked once for the whole block. Every spot is played with the gain bringing it to the target
+ * loudness, known once the spot is cached. An urgent spot fades out a normal spot that is playing,
+ * which goes back to the queue and is played again from its start afterward.
+ * </p>
+ * <p>
+ * The audio thread never takes the queue lock. The next ready spot is handed to the block ahead
+ * of time through a lock-free slot, and a feeder task on the scheduler takes back preempted spots
+ * and retires the block once it ended.
+ * </p>
+ * <p>
+ * Cached spots are ready right away. The others are decoded on the workers one at a time, the
+ * next spot starting to decode once the decoder of the spot before it finished, that is while
+ * that spot plays its last window; urgent spots start decoding as soon as they are queued.
+ * </p>
+ */
+@Slf4j
+class AdQueue {
+
+    /**
+     * Receives the blocks and spots being started.
+     */
+    interface Listener {
+
+        /**
+         * A block has a spot ready and must join the mix. Called from any thread.
+         *
+         * @param block voice of the block
+         */
+        void onBlockStarted(Voice block);
+
+        /**
+         * A spot starts playing. Called on the audio thread, must return quickly.
+         *
+         * @param requestedAt {@link System#nanoTime()} when the spot was queued
+         */
+        void onSpotStarted(long requestedAt);
+
+    }
+
+    /**
+     * Frames of decoded ad audio kept in memory per spot, 2 seconds.
+     */
+    private static final int WINDOW_FRAMES = Decoder.SAMPLE_RATE * 2;
+
+    /**
+     * Frames decoded before a spot is ready, 250 milliseconds.
+     */
+    private static final int READY_FRAMES = Decoder.SAMPLE_RATE / 4;
+
+    /**
+     * Length of the fade out of a preempted spot, 30 milliseconds.
+     */
+    private static final int PREEMPT_FADE_FRAMES = Decoder.SAMPLE_RATE * 3 / 100;
+
+    /**
+     * Silence after which a block waiting for its next spot ends, 3 seconds.
+     */
+    private static final int MAX_WAIT_FRAMES = Decoder.SAMPLE_RATE * 3;
+
+    /**
+     * Fixed point gain of a spot whose loudness is not known yet.
+     */
+    private static final int UNITY_GAIN = PcmKernels.fixedGain(1.0f);
+
+    /**
+     * Period of the feeder of a block, in milliseconds.
+     */
+    private static final long FEED_MS = 20;
+
+    /**
+     * Order of the spots: urgent first, then by arrival.
+     */
+    private static final Comparator<Spot> ORDER = Comparator.<Spot, AdPriority>comparing(spot -> spot.priority).reversed()
+            .thenComparingLong(spot -> spot.sequence);
+
+    /**
+     * Cache of decoded ads.
+     */
+    private final AdCache adCache;
+
+    /**
+     * Runtime running the decoders.
+     */
+    private final Workers workers;
+
+    /**
+     * Largest number of frames read per mix cycle.
+     */
+    private final int chunkFrames;
+
+    /**
+     * Receives the blocks and spots being started.
+     */
+    private final Listener listener;
+
+    /**
+     * Spots waiting to be played, including the one being loaded. Guarded by this.
+     */
+    private final PriorityQueue<Spot> pending = new PriorityQueue<>(ORDER);
+
+    /**
+     * Spots whose decoder did not finish yet. Guarded by this.
+     */
+    private final List<Spot> decoding = new ArrayList<>();
+
+    /**
+     * Loads the next spot, submitted when the feeder of a block requeues a preempted spot.
+     */
+    private final Runnable loadNext = this::loadNext;
+
+    /**
+     * Number of the next spot queued. Guarded by this.
+     */
+    private long sequence;
+
+    /**
+     * Block in the mix, or null. Guarded by this.
+     */
+    private Block block;
+
+    AdQueue(AdCache adCache, Workers workers, int chunkFrames, Listener listener) {
+        this.adCache = adCache;
+        this.workers = workers;
+        this.chunkFrames = chunkFrames;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a spot and starts loading it if it is urgent or no spot before it is decoding.
+     *
+     * @param url      of the ad
+     * @param priority of the spot
+     */
+    void add(String url, AdPriority priority) {
+        Spot spot;
+        int depth;
+        synchronized (this) {
+            spot = new Spot(url, priority, sequence++, System.nanoTime());
+            pending.add(spot);
+            depth = pending.size();
+            PlayerMetrics.AD_QUEUE_DEPTH.set(depth);
+            if (block != null)
+                block.fill();
+        }
+        log.info("Ad queued: {} ({}, {} pending)", url, priority, depth);
+
+        if (priority == AdPriority.URGENT)
+            load(spot);
+        else
+            loadNext();
+    }
+
+    /**
+     * Downloads and decodes an ad into the cache ahead of time, without queuing it.
+     *
+     * @param url of the ad
+     */
+    void prefetch(String url) {
+        adCache.prefetch(url, 1);
+    }
+
+    /**
+     * Drops every pending spot and the block in the mix.
+     */
+    void clear() {
+        Block playing;
+        synchronized (this) {
+            for (Spot spot : pending)
+                release(spot.voice);
+            pending.clear();
+            PlayerMetrics.AD_QUEUE_DEPTH.set(0);
+            playing = block;
+            block = null;
+            if (playing != null) {
+                Spot handed = playing.handoff.getAndSet(null);
+                if (handed != null)
+                    release(handed.voice);
+            }
+        }
+        if (playing != null)
+            playing.stop();
+    }
+
+    /**
+     * Loads the first spot not loaded yet, unless the decoder of a spot before it is still running.
+     */
+    private void loadNext() {
+        Spot next = null;
+        synchronized (this) {
+            for (Spot spot : pending) {
+                if (!spot.loading && (next == null || ORDER.compare(spot, next) < 0))
+                    next = spot;
+            }
+            for (Spot spot : decoding) {
+                if (next != null && ORDER.compare(spot, next) < 0)
+                    return;
+            }
+        }
+        if (next != null)
+            load(next);
+    }
+
+    /**
+     * Loads a spot from the cache, or decodes it on the workers. Loading the next spot goes on
+     * once the spot is loaded from the cache or its decoder finished.
+     *
+     * @param spot to be loaded
+     */
+    private void load(Spot spot) {
+        synchronized (this) {
+            if (spot.loading)
+                return;
+            spot.loading = true;
+        }
+
+        Optional<AdCache.CachedAd> cached = adCache.get(spot.url);
+        if (cached.isPresent()) {
+            spot.gain = PcmKernels.fixedGain(cached.get().gain());
+            spot.voice = new BufferVoice(cached.get().pcm(), cached.get().channels(), 1.0f);
+            onReady(spot);
+            loadNext();
+            return;
+        }
+
+        synchronized (this) {
+            decoding.add(spot);
+        }
+        if (workers.submit("ad " + spot.url, () -> decode(spot)) == null) {
+            synchronized (this) {
+                decoding.remove(spot);
+            }
+            onFailed(spot);
+        }
+    }
+
+    /**
+     * Decodes a spot into a streaming voice, until the voice played it or was stopped.
+     *
+     * @param spot to be decoded
+     */
+    private void decode(Spot spot) {
+        StreamingVoice voice = new StreamingVoice(WINDOW_FRAMES, 1.0f);
+        spot.voice = voice;
+        try (InputStream pcm = adCache.record(spot.url, Decoder.openPcm(spot.url, 1), 1)) {
+            voice.decode(pcm, 1, READY_FRAMES, () -> onReady(spot));
+        } catch (Exception e) {
+            log.error("Failed to load ad: {}", spot.url, e);
+        } finally {
+            synchronized (this) {
+                decoding.remove(spot);
+            }
+        }
+
+        if (!spot.ready)
+            onFailed(spot);
+        loadNext();
+    }
+
+    /**
+     * Marks a spot as ready, starting a block if none plays, or preempting the normal spot
+     * playing if the ready spot is urgent.
+     *
+     * @param spot ready to be played
+     */
+    private void onReady(Spot spot) {
+        Block started;
+        synchronized (this) {
+            if (!pending.contains(spot)) {
+                release(spot.voice);
+                return;
+            }
+
+            spot.ready = true;
+            if (block != null)
+                block.fill();
+            started = startBlock();
+        }
+
+        if (started != null)
+            listener.onBlockStarted(started);
+    }
+
+    /**
+     * Drops a spot that could not be loaded, starting a block if the spot after it is ready.
+     *
+     * @param spot that failed
+     */
+    private void onFailed(Spot spot) {
+        Block started;
+        synchronized (this) {
+            pending.remove(spot);
+            PlayerMetrics.AD_QUEUE_DEPTH.set(pending.size());
+            if (block != null)
+                block.fill();
+            started = startBlock();
+        }
+
+        release(spot.voice);
+        if (started != null)
+            listener.onBlockStarted(started);
+    }
+
+    /**
+     * Creates a block if none is in the mix and the first spot is ready, handing it that spot and
+     * starting its feeder. Called holding the lock.
+     *
+     * @return the block to be announced, or null
+     */
+    private Block startBlock() {
+        Spot first = pending.peek();
+        if (block != null || first == null || !first.ready)
+            return null;
+
+        Block created = new Block();
+        try {
+            created.feeder = workers.scheduler().scheduleWithFixedDelay(created::feed, FEED_MS, FEED_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("Not starting an ad block, workers stopped");
+            return null;
+        }
+        block = created;
+        created.fill();
+        return created;
+    }
+
+    /**
+     * Stops and releases the voice of a spot.
+     *
+     * @param voice of the spot, or null
+     */
+    private static void release(Voice voice) {
+        if (voice != null) {
+            voice.stop();
+            voice.close();
+        }
+    }
+
+    /**
+     * An ad spot waiting in the queue.
+     */
+    private static final class Spot {
+
+        /**
+         * URL of the ad.
+         */
+        private final String url;
+
+        /**
+         * Priority of the spot.
+         */
+        private final AdPriority priority;
+
+        /**
+         * Arrival order of the spot.
+         */
+        private final long sequence;
+
+        /**
+         * {@link System#nanoTime()} when the spot was queued.
+         */
+        private final long requestedAt;
+
+        /**
+         * Voice playing the spot, once loading started.
+         */
+        private volatile Voice voice;
+
+        /**
+         * Loudness normalization gain of the spot, in fixed point.
+         */
+        private volatile int gain = UNITY_GAIN;
+
+        /**
+         * Set once loading started. Guarded by the queue.
+         */
+        private boolean loading;
+
+        /**
+         * Set once enough of the spot is decoded to start playing it.
+         */
+        private volatile boolean ready;
+
+        private Spot(String url, AdPriority priority, long sequence, long requestedAt) {
+            this.url = url;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.requestedAt = requestedAt;
+        }
+
+    }
+
+    /**
+     * Voice playing queued spots back to back, ending once the queue is empty or its next spot
+     * took too long to load.
+     */
+    private final class Block extends Voice {
+
+        /**
+         * Samples read from the current spot.
+         */
+        private final short[] scratch = new short[chunkFrames * Mixer.CHANNELS];
+
+        /**
+         * Next spot to play, ready and already out of the queue. Only filled holding the queue
+         * lock, only emptied by the audio thread.
+         */
+        private final AtomicReference<Spot> handoff = new AtomicReference<>();
+
+        /**
+         * Spot cut short by an urgent one, waiting for the feeder to queue it again. The block
+         * does not end while it is set.
+         */
+        private final AtomicReference<Spot> preempted = new AtomicReference<>();
+
+        /**
+         * Set when no spot is left in the queue behind the handed over one.
+         */
+        private volatile boolean drained;
+
+        /**
+         * Set once the block stopped taking spots.
+         */
+        private volatile boolean ended;
+
+        /**
+         * Periodic task feeding the block.
+         */
+        private volatile Future<?> feeder;
+
+        /**
+         * Spot being played. Only touched by the audio thread.
+         */
+        private Spot current;
+
+        /**
+         * Set while a preempted spot fades out. Only touched by the audio thread.
+         */
+        private boolean fading;
+
+        /**
+         * Frames left in the fade out of a preempted spot. Only touched by the audio thread.
+         */
+        private int fadeFrames;
+
+        /**
+         * Frames of silence since the last spot ended. Only touched by the audio thread.
+         */
+        private int waitedFrames;
+
+        private Block() {
+            super(1.0f);
+        }
+
+        @Override
+        protected int read(short[] buffer, int frames) {
+            int filled = 0;
+            while (filled < frames && !ended) {
+                if (current == null && !advance())
+                    break;
+
+                if (!fading && current.priority == AdPriority.NORMAL && preempted.get() == null) {
+                    Spot next = handoff.get();
+                    if (next != null && next.priority == AdPriority.URGENT) {
+                        fading = true;
+                        fadeFrames = PREEMPT_FADE_FRAMES;
+                    }
+                }
+
+                int read = current.voice.read(scratch, Math.min(frames - filled, fading ? fadeFrames : frames));
+                if (read < 0) {
+                    finish(false);
+                    continue;
+                }
+                if (read == 0)
+                    break;
+
+                if (fading || current.gain != UNITY_GAIN)
+                    applyGain(read);
+                System.arraycopy(scratch, 0, buffer, filled * Mixer.CHANNELS, read * Mixer.CHANNELS);
+                filled += read;
+
+                if (fading && fadeFrames == 0)
+                    finish(true);
+            }
+
+            if (current == null && !ended)
+                waitedFrames += frames - filled;
+            return filled == 0 && ended ? -1 : filled;
+        }
+
+        /**
+         * Stops the current spot when the block leaves the mix. The feeder then hands the spots
+         * still queued over to a new block.
+         */
+        @Override
+        protected void close() {
+            if (current != null) {
+                release(current.voice);
+                current = null;
+            }
+            ended = true;
+        }
+
+        /**
+         * Hands the first spot of the queue to the block if it is ready and comes before the spot
+         * already handed over, which goes back to the queue. Called holding the queue lock.
+         */
+        private void fill() {
+            if (ended || block != this)
+                return;
+
+            Spot first = pending.peek();
+            if (first != null && first.ready) {
+                Spot handed = handoff.get();
+                if (handed == null) {
+                    handoff.set(pending.poll());
+                } else if (ORDER.compare(first, handed) < 0 && handoff.compareAndSet(handed, first)) {
+                    pending.poll();
+                    pending.add(handed);
+                }
+                PlayerMetrics.AD_QUEUE_DEPTH.set(pending.size());
+            }
+            drained = pending.isEmpty();
+        }
+
+        /**
+         * Queues the preempted spot again and, once the block ended, gives its handed over spot
+         * back to the queue and starts the next block. Runs on the scheduler.
+         */
+        private void feed() {
+            try {
+                boolean done = ended || isStopped();
+                Spot cut = preempted.get();
+                Block started = null;
+                synchronized (AdQueue.this) {
+                    if (cut != null && block == this) {
+                        pending.add(new Spot(cut.url, cut.priority, cut.sequence, cut.requestedAt));
+                        PlayerMetrics.AD_QUEUE_DEPTH.set(pending.size());
+                    }
+
+                    if (done) {
+                        Spot handed = handoff.getAndSet(null);
+                        if (block == this) {
+                            if (handed != null)
+                                pending.add(handed);
+                            block = null;
+                            started = startBlock();
+                        } else if (handed != null) {
+                            release(handed.voice);
+                        }
+                    } else {
+                        fill();
+                    }
+                    preempted.set(null);
+                }
+
+                if (cut != null) {
+                    PlayerMetrics.AD_PREEMPTIONS.inc();
+                    workers.submit("ad queue", loadNext);
+                }
+                if (done) {
+                    feeder.cancel(false);
+                    if (started != null)
+                        listener.onBlockStarted(started);
+                }
+            } catch (RuntimeException e) {
+                log.error("Ad block feeder failed", e);
+            }
+        }
+
+        /**
+         * Moves to the spot handed over, or ends the block if there is no spot left or the next
+         * one kept the block waiting too long.
+         *
+         * @return true if a spot is now playing
+         */
+        private boolean advance() {
+            Spot next = handoff.getAndSet(null);
+            if (next == null) {
+                if ((drained && preempted.get() == null) || waitedFrames >= MAX_WAIT_FRAMES)
+                    ended = true;
+                return false;
+            }
+
+            current = next;
+            waitedFrames = 0;
+            listener.onSpotStarted(current.requestedAt);
+            return true;
+        }
+
+        /**
+         * Leaves the current spot, handing it to the feeder to be queued again if it was preempted.
+         *
+         * @param cut whether an urgent spot cut the spot short
+         */
+        private void finish(boolean cut) {
+            Spot spot = current;
+            current = null;
+            fading = false;
+            release(spot.voice);
+            if (cut)
+                preempted.set(spot);
+        }
+
+        /**
+         * Applies the normalization gain of the current spot to the scratch buffer, along with
+         * the next frames of its fade out if it is preempted.
+         *
+         * @param frames read into the scratch buffer
+         */
+        private void applyGain(int frames) {
+            int gain = current.gain;
+            for (int f = 0, s = 0; f < frames; f++, s += Mixer.CHANNELS) {
+                if (fading)
+                    gain = (int) (((long) current.gain * PcmKernels.fixedGain((float) (fadeFrames - f) / PREEMPT_FADE_FRAMES)) >> PcmKernels.GAIN_BITS);
+                scratch[s] = clip((scratch[s] * gain) >> PcmKernels.GAIN_BITS);
+                scratch[s + 1] = clip((scratch[s + 1] * gain) >> PcmKernels.GAIN_BITS);
+            }
+            if (fading)
+                fadeFrames -= frames;
+        }
+
+        /**
+         * @param sample to be clipped
+         * @return the sample within 16 bits
+         */
+        private static short clip(int sample) {
+            return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+
+    }
+
+}
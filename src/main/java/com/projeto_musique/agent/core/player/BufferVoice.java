@@ -0,0 +1,61 @@
+package com.projeto_musique.agent.core.player;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Voice playing signed 16-bit little-endian PCM that is already fully available,
+ * either on the heap or in a memory-mapped file.
+ * Mono buffers are duplicated to both channels while reading.
+ */
+public class BufferVoice extends Voice {
+
+    /**
+     * PCM samples of the voice.
+     */
+    private final ShortBuffer samples;
+
+    /**
+     * Number of channels in the buffer, 1 or 2.
+     */
+    private final int channels;
+
+    /**
+     * Total number of frames in the buffer.
+     */
+    private final int totalFrames;
+
+    /**
+     * Next frame to be read.
+     */
+    private int position;
+
+    public BufferVoice(ByteBuffer pcm, int channels, float gain) {
+        super(gain);
+        this.samples = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        this.channels = channels;
+        this.totalFrames = samples.remaining() / channels;
+    }
+
+    @Override
+    protected int read(short[] buffer, int frames) {
+        int read = Math.min(frames, totalFrames - position);
+        if (read <= 0)
+            return -1;
+
+        if (channels == 2) {
+            samples.get(position * 2, buffer, 0, read * 2);
+        } else {
+            for (int f = 0; f < read; f++) {
+                short sample = samples.get(position + f);
+                buffer[f * 2] = sample;
+                buffer[f * 2 + 1] = sample;
+            }
+        }
+
+        position += read;
+        return read;
+    }
+
+}
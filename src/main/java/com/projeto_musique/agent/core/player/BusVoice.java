@@ -0,0 +1,25 @@
+package com.projeto_musique.agent.core.player;
+
+/**
+ * Voice replaying a block of samples mixed earlier in the same cycle, so that audio decoded once
+ * can be mixed into several outputs, each with its own gain.
+ */
+class BusVoice extends Voice {
+
+    /**
+     * Interleaved stereo samples of the current cycle, written by the audio thread.
+     */
+    private final short[] bus;
+
+    BusVoice(short[] bus, float gain) {
+        super(gain);
+        this.bus = bus;
+    }
+
+    @Override
+    protected int read(short[] buffer, int frames) {
+        System.arraycopy(bus, 0, buffer, 0, frames * Mixer.CHANNELS);
+        return frames;
+    }
+
+}
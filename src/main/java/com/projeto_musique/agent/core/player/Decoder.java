@@ -0,0 +1,257 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.Properties;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.TreeSet;
+
+/**
+ * Opens MP3 resources decoded to the PCM format used by the player.
+ * <p>
+ * The sample rate of the output device is chosen once; MP3s are decoded at their own rate and
+ * go through a {@link Resampler} only when it differs, so the audio is resampled at most once
+ * on its way to the device.
+ * </p>
+ */
+@Slf4j
+final class Decoder {
+
+    /**
+     * Rates preferred for the output, in order, when the device supports several.
+     */
+    private static final int[] PREFERRED_RATES = {48000, 44100};
+
+    /**
+     * Rate used when no device restricts the rates it plays, the usual rate of sound servers.
+     */
+    private static final int DEFAULT_RATE = 48000;
+
+    /**
+     * Sample rate of the output line, and of every decoded stream.
+     */
+    static final int SAMPLE_RATE = negotiateRate();
+
+    /**
+     * Header of an MPEG-1 Layer III frame at 128 kbps, 44.1 kHz, joint stereo.
+     */
+    private static final byte[] SILENT_FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, (byte) 0x64};
+
+    /**
+     * Length of a frame with that header, without padding.
+     */
+    private static final int SILENT_FRAME_SIZE = 417;
+
+    /**
+     * Frames decoded by {@link #warmUp()}.
+     */
+    private static final int WARM_UP_FRAMES = 16;
+
+    private Decoder() {
+    }
+
+    /**
+     * Opens an MP3 URL decoded to signed 16-bit little-endian PCM at the output rate.
+     * HTTP resources are read through a {@link ResumableHttpStream}, so stalls and dropped
+     * connections are resumed underneath the decoder.
+     *
+     * @param url      of the MP3 resource
+     * @param channels number of channels to decode to
+     * @return the decoded stream
+     * @throws IOException                   if the resource cannot be read
+     * @throws UnsupportedAudioFileException if the resource is not a supported audio file
+     */
+    static AudioInputStream openPcm(String url, int channels) throws IOException, UnsupportedAudioFileException {
+        URL resource = new URL(url);
+        InputStream input = resource.getProtocol().startsWith("http")
+                ? ResumableHttpStream.open(resource)
+                : resource.openStream();
+
+        return openPcm(new BufferedInputStream(input), channels);
+    }
+
+    /**
+     * Decodes an MP3 stream to signed 16-bit little-endian PCM at the output rate,
+     * resampling it if it was encoded at another rate.
+     *
+     * @param input    MP3 data, supporting mark and reset
+     * @param channels number of channels to decode to
+     * @return the decoded stream
+     * @throws IOException                   if the stream cannot be read
+     * @throws UnsupportedAudioFileException if the stream is not a supported audio file
+     */
+    static AudioInputStream openPcm(InputStream input, int channels) throws IOException, UnsupportedAudioFileException {
+        AudioInputStream encoded = AudioSystem.getAudioInputStream(input);
+        int rate = Math.round(encoded.getFormat().getSampleRate());
+        if (rate <= 0 || rate == SAMPLE_RATE)
+            return AudioSystem.getAudioInputStream(format(channels), encoded);
+
+        AudioInputStream pcm = AudioSystem.getAudioInputStream(format(channels, rate), encoded);
+        return new AudioInputStream(new Resampler(pcm, channels, rate, SAMPLE_RATE), format(channels), AudioSystem.NOT_SPECIFIED);
+    }
+
+    /**
+     * Decodes a few frames of generated silence, so the service providers are loaded and the
+     * decoder classes are initialized before the first real stream arrives.
+     *
+     * @throws IOException                   if the decoder fails
+     * @throws UnsupportedAudioFileException if no MP3 decoder is available
+     */
+    static void warmUp() throws IOException, UnsupportedAudioFileException {
+        byte[] silence = new byte[SILENT_FRAME_SIZE * WARM_UP_FRAMES];
+        for (int frame = 0; frame < WARM_UP_FRAMES; frame++)
+            System.arraycopy(SILENT_FRAME_HEADER, 0, silence, frame * SILENT_FRAME_SIZE, SILENT_FRAME_HEADER.length);
+
+        try (AudioInputStream pcm = openPcm(new ByteArrayInputStream(silence), Mixer.CHANNELS)) {
+            pcm.skip(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * PCM format produced by the decoder.
+     *
+     * @param channels number of channels
+     * @return signed 16-bit little-endian format at the output rate
+     */
+    static AudioFormat format(int channels) {
+        return format(channels, SAMPLE_RATE);
+    }
+
+    /**
+     * @param channels number of channels
+     * @param rate     sample rate
+     * @return signed 16-bit little-endian format
+     */
+    private static AudioFormat format(int channels, int rate) {
+        return new AudioFormat(
+                AudioFormat.Encoding.PCM_SIGNED,
+                rate,
+                16,
+                channels,
+                channels * 2,
+                rate,
+                false
+        );
+    }
+
+    /**
+     * Picks the output sample rate: the configured one if any, otherwise a rate that the device of
+     * every zone supports, preferring {@link #PREFERRED_RATES}. Java Sound does not tell a native
+     * rate from one the driver converts, so a device listing many rates gets the first preferred
+     * one; headless devices and devices accepting any rate do not restrict the choice.
+     *
+     * @return the output sample rate
+     */
+    private static int negotiateRate() {
+        String configured = Properties.getEnv(Properties.ENV_OUTPUT_SAMPLE_RATE_KEY, "");
+        if (!configured.isBlank()) {
+            int rate = Integer.parseInt(configured.trim());
+            log.info("Output sample rate: {} Hz (configured)", rate);
+            return rate;
+        }
+
+        TreeSet<Integer> common = null;
+        for (Zone zone : Zone.parseAll(Properties.getEnv(Properties.ENV_OUTPUT_ZONES_KEY, ""))) {
+            if (HeadlessLine.handles(zone.device()))
+                continue;
+
+            TreeSet<Integer> rates = supportedRates(zone);
+            if (rates.isEmpty())
+                continue;
+            if (common == null)
+                common = rates;
+            else
+                common.retainAll(rates);
+        }
+
+        if (common == null) {
+            log.info("Output sample rate: {} Hz (default)", DEFAULT_RATE);
+            return DEFAULT_RATE;
+        }
+
+        for (int rate : PREFERRED_RATES) {
+            if (common.contains(rate)) {
+                log.info("Output sample rate: {} Hz (supported by the devices)", rate);
+                return rate;
+            }
+        }
+
+        if (common.isEmpty()) {
+            log.warn("The output devices share no sample rate, using {} Hz", DEFAULT_RATE);
+            return DEFAULT_RATE;
+        }
+
+        int rate = common.last();
+        log.info("Output sample rate: {} Hz (supported by the devices)", rate);
+        return rate;
+    }
+
+    /**
+     * Lists the rates at which the device of a zone plays 16-bit stereo, looking the device up as
+     * {@link ZoneOutput} does when it opens the line.
+     *
+     * @param zone played on the device
+     * @return the rates, or an empty set if the device accepts any rate or cannot be queried
+     */
+    private static TreeSet<Integer> supportedRates(Zone zone) {
+        TreeSet<Integer> rates = new TreeSet<>();
+        Line.Info line = new Line.Info(SourceDataLine.class);
+        try {
+            javax.sound.sampled.Mixer device = zone.device() == null ? defaultDevice(line) : zone.findDevice(line);
+            if (device == null)
+                return rates;
+
+            for (Line.Info info : device.getSourceLineInfo(line)) {
+                if (!(info instanceof DataLine.Info dataLine))
+                    continue;
+                for (AudioFormat format : dataLine.getFormats()) {
+                    if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || format.getSampleSizeInBits() != 16
+                            || format.getChannels() != Mixer.CHANNELS)
+                        continue;
+                    if (format.getSampleRate() == AudioSystem.NOT_SPECIFIED)
+                        return new TreeSet<>();
+                    rates.add(Math.round(format.getSampleRate()));
+                }
+            }
+            log.debug("Output device of zone {} plays at {} Hz", zone.name(), rates);
+        } catch (LineUnavailableException | RuntimeException e) {
+            log.warn("Unable to query the output rates of zone {}: {}", zone.name(), e.toString());
+            rates.clear();
+        }
+        return rates;
+    }
+
+    /**
+     * @param line kind of line to play on
+     * @return the default device if it can play the line, otherwise the first device that can, or null
+     */
+    private static javax.sound.sampled.Mixer defaultDevice(Line.Info line) {
+        try {
+            javax.sound.sampled.Mixer device = AudioSystem.getMixer(null);
+            if (device.isLineSupported(line))
+                return device;
+        } catch (IllegalArgumentException e) {
+            log.debug("No default output device: {}", e.getMessage());
+        }
+
+        for (javax.sound.sampled.Mixer.Info info : AudioSystem.getMixerInfo()) {
+            javax.sound.sampled.Mixer candidate = AudioSystem.getMixer(info);
+            if (candidate.isLineSupported(line))
+                return candidate;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.core.Workers;
+import com.projeto_musique.agent.core.library.Playlist;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+
+/**
+ * Voice preferring a live stream and falling back to local content without any gap.
+ * <p>
+ * The live stream is decoded ahead of playback through a jitter buffer of configurable depth,
+ * so a stalling connection shows up as a shrinking buffer well before it runs dry. Once the
+ * buffer drops below a quarter of the depth the voice crossfades into the fallback, and once a
+ * connection has buffered the full depth again it crossfades back. The voice itself never ends,
+ * so the output line stays open throughout.
+ * </p>
+ * <p>
+ * The local fallback starts decoding as soon as the voice is created and keeps its window full
+ * while the live stream plays, so a crossfade only mixes audio that is already buffered.
+ * </p>
+ */
+@Slf4j
+public class FailoverVoice extends Voice {
+
+    /**
+     * Output frames waited for the live stream, beyond its depth, before starting on the fallback.
+     */
+    private static final int START_TIMEOUT_FRAMES = Decoder.SAMPLE_RATE * 5;
+
+    /**
+     * Length of a crossfade, 1 second.
+     */
+    private static final int CROSSFADE_FRAMES = Decoder.SAMPLE_RATE;
+
+    /**
+     * Frames of the fallback decoded ahead, enough to play a whole crossfade from the buffer.
+     */
+    private static final int FALLBACK_WINDOW_FRAMES = CROSSFADE_FRAMES * 2;
+
+    /**
+     * Source currently audible.
+     */
+    private enum Source {
+        STARTING,
+        LIVE,
+        FALLBACK
+    }
+
+    /**
+     * Live stream decoded in the background.
+     */
+    private final LiveStream live;
+
+    /**
+     * Local content played while the live stream is unhealthy, or null to play silence.
+     */
+    private final LibraryVoice fallback;
+
+    /**
+     * Receives the failover events.
+     */
+    private final SoundPlayer.Listener listener;
+
+    /**
+     * Buffered live frames below which the voice moves to the fallback, a quarter of the depth.
+     */
+    private final int lowWatermarkFrames;
+
+    /**
+     * Buffered live frames needed to play the live stream, the configured depth.
+     */
+    private final int highWatermarkFrames;
+
+    /**
+     * Samples read from the live stream during a crossfade.
+     */
+    private final short[] liveScratch;
+
+    /**
+     * Samples read from the fallback during a crossfade.
+     */
+    private final short[] fallbackScratch;
+
+    /**
+     * Source audible outside crossfades.
+     */
+    private Source source = Source.STARTING;
+
+    /**
+     * Frames already played of the current crossfade, or -1 when not crossfading.
+     */
+    private int fadePosition = -1;
+
+    /**
+     * Set once the live buffer reached the full depth, enabling the early low watermark.
+     * Streams that never buffer that far only fail over when they are about to underrun.
+     */
+    private boolean primed;
+
+    /**
+     * Frames played while waiting for the live stream at startup.
+     */
+    private int startingFrames;
+
+    public FailoverVoice(String streamUrl, Playlist fallback, int depthFrames, int maxFrames, Workers workers, SoundPlayer.Listener listener, float gain) {
+        super(gain);
+        this.listener = listener;
+        this.live = new LiveStream(streamUrl, depthFrames + Decoder.SAMPLE_RATE, workers);
+        this.lowWatermarkFrames = depthFrames / 4;
+        this.highWatermarkFrames = depthFrames;
+        this.fallback = fallback == null ? null : new LibraryVoice(fallback, FALLBACK_WINDOW_FRAMES, workers, 1.0f);
+        this.liveScratch = new short[maxFrames * Mixer.CHANNELS];
+        this.fallbackScratch = new short[maxFrames * Mixer.CHANNELS];
+        this.live.start();
+    }
+
+    @Override
+    protected int read(short[] buffer, int frames) {
+        StreamingVoice stream = live.current(source == Source.LIVE || fadePosition >= 0);
+        int buffered = stream == null ? 0 : stream.buffered();
+
+        if (fadePosition < 0)
+            updateSource(buffered, frames);
+
+        if (fadePosition >= 0) {
+            crossfade(stream, buffer, frames);
+        } else if (source == Source.LIVE) {
+            readPadded(stream, buffer, frames);
+        } else if (source == Source.FALLBACK) {
+            readPadded(fallback, buffer, frames);
+        } else {
+            Arrays.fill(buffer, 0, frames * Mixer.CHANNELS, (short) 0);
+        }
+
+        return frames;
+    }
+
+    @Override
+    protected void close() {
+        live.close();
+        if (fallback != null)
+            fallback.close();
+    }
+
+    /**
+     * Decides whether a crossfade should start.
+     *
+     * @param buffered live frames ready to be played
+     * @param frames   frames about to be played
+     */
+    private void updateSource(int buffered, int frames) {
+        switch (source) {
+            case STARTING -> {
+                if (buffered >= highWatermarkFrames) {
+                    log.info("Starting on the live stream");
+                    source = Source.LIVE;
+                } else if ((startingFrames += frames) >= highWatermarkFrames + START_TIMEOUT_FRAMES && fallback != null) {
+                    log.warn("Live stream not available, starting on local content");
+                    PlayerMetrics.FAILOVERS.inc();
+                    source = Source.FALLBACK;
+                    listener.onDegraded();
+                }
+            }
+            case LIVE -> {
+                if (buffered >= highWatermarkFrames)
+                    primed = true;
+
+                if (buffered < (primed ? lowWatermarkFrames : frames) && fallback != null) {
+                    log.warn("Live stream starving ({} frames buffered, {} local), fading to local content",
+                            buffered, fallback.buffered());
+                    PlayerMetrics.FAILOVERS.inc();
+                    primed = false;
+                    fadePosition = 0;
+                    listener.onDegraded();
+                }
+            }
+            case FALLBACK -> {
+                if (buffered >= highWatermarkFrames) {
+                    log.info("Live stream healthy again, fading back");
+                    fadePosition = 0;
+                    listener.onRecovered();
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays both sources with complementary linear gains, moving away from the current source.
+     *
+     * @param stream live voice, possibly null
+     * @param buffer destination for interleaved stereo samples
+     * @param frames number of frames to produce
+     */
+    private void crossfade(StreamingVoice stream, short[] buffer, int frames) {
+        readPadded(stream, liveScratch, frames);
+        readPadded(fallback, fallbackScratch, frames);
+
+        boolean toFallback = source == Source.LIVE;
+        for (int f = 0; f < frames; f++) {
+            float progress = Math.min(1.0f, (float) (fadePosition + f) / CROSSFADE_FRAMES);
+            float fallbackGain = toFallback ? progress : 1.0f - progress;
+            int l = f * 2;
+            buffer[l] = (short) (liveScratch[l] * (1.0f - fallbackGain) + fallbackScratch[l] * fallbackGain);
+            buffer[l + 1] = (short) (liveScratch[l + 1] * (1.0f - fallbackGain) + fallbackScratch[l + 1] * fallbackGain);
+        }
+
+        fadePosition += frames;
+        if (fadePosition >= CROSSFADE_FRAMES) {
+            source = toFallback ? Source.FALLBACK : Source.LIVE;
+            fadePosition = -1;
+        }
+    }
+
+    /**
+     * Reads a voice, filling whatever it could not deliver with silence.
+     *
+     * @param voice  to be read, possibly null
+     * @param buffer destination for interleaved stereo samples
+     * @param frames number of frames to produce
+     */
+    private static void readPadded(Voice voice, short[] buffer, int frames) {
+        int read = voice == null ? 0 : Math.max(0, voice.read(buffer, frames));
+        Arrays.fill(buffer, read * Mixer.CHANNELS, frames * Mixer.CHANNELS, (short) 0);
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.projeto_musique.agent.core.player;
+
+/**
+ * Gain envelope applied by the {@link Mixer} frame by frame.
+ *
+ * @param target         gain reached at the end of the ramp
+ * @param startFrame     output frame at which the ramp starts, or {@link #NOW} for the next mix cycle
+ * @param durationFrames length of the ramp in frames, 0 to jump straight to the target
+ * @param curve          shape of the ramp
+ */
+public record GainRamp(float target, long startFrame, int durationFrames, Curve curve) {
+
+    /**
+     * Start frame meaning the ramp starts with the next mix cycle.
+     */
+    public static final long NOW = -1;
+
+    /**
+     * Shapes of a ramp, mapping the progress of the ramp to the progress of the gain.
+     */
+    public enum Curve {
+
+        /**
+         * Constant slope.
+         */
+        LINEAR {
+            @Override
+            float apply(float t) {
+                return t;
+            }
+        },
+
+        /**
+         * Smooth start and end, no audible corner when ducking.
+         */
+        S_CURVE {
+            @Override
+            float apply(float t) {
+                return t * t * (3 - 2 * t);
+            }
+        };
+
+        /**
+         * @param t progress of the ramp, from 0 to 1
+         * @return progress of the gain, from 0 to 1
+         */
+        abstract float apply(float t);
+
+    }
+
+}
@@ -0,0 +1,453 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.Properties;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Output line without a sound card, for running agents headless in tests and load runs.
+ * <p>
+ * The line plays on a virtual clock: queued frames are consumed at the sample rate multiplied by
+ * {@value Properties#ENV_HEADLESS_SPEED_KEY}, so an agent can run in real time or faster, and
+ * {@link #write(byte[], int, int)} blocks like a device line while the buffer is full. What is
+ * written is either dropped, for the {@value #NULL_DEVICE} device, or appended to a WAV file, for
+ * a device written {@code wav:<path>}. The first line of the process on a file truncates it, the
+ * next ones append to it, so playback set up again after a failure ends up in the same file.
+ * </p>
+ */
+@Slf4j
+final class HeadlessLine implements SourceDataLine {
+
+    /**
+     * Device dropping the audio.
+     */
+    static final String NULL_DEVICE = "null";
+
+    /**
+     * Prefix of a device writing the audio to a WAV file.
+     */
+    static final String WAV_PREFIX = "wav:";
+
+    /**
+     * Size of the header of a WAV file.
+     */
+    private static final int WAV_HEADER_SIZE = 44;
+
+    /**
+     * Files already written by a line of this process.
+     */
+    private static final Set<Path> opened = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Format of the line.
+     */
+    private final AudioFormat format;
+
+    /**
+     * File the audio is written to, or null to drop it.
+     */
+    private final Path file;
+
+    /**
+     * Frames consumed per nanosecond of the virtual clock.
+     */
+    private final double framesPerNano;
+
+    /**
+     * Size of the buffer, in bytes.
+     */
+    private int bufferSize;
+
+    /**
+     * WAV file while open. Unlike a file channel it survives the interruption of the
+     * playback thread, so the header can still be finished on close.
+     */
+    private RandomAccessFile wav;
+
+    /**
+     * Frames written to the line.
+     */
+    private long written;
+
+    /**
+     * Frames consumed by the virtual clock.
+     */
+    private double position;
+
+    /**
+     * {@link System#nanoTime()} the position was last brought up to date.
+     */
+    private long clock;
+
+    /**
+     * Whether the line is open.
+     */
+    private volatile boolean open;
+
+    /**
+     * Whether the line consumes frames.
+     */
+    private volatile boolean running;
+
+    /**
+     * @param format of the line
+     * @param file   the audio is written to, or null to drop it
+     * @param speed  of the virtual clock, 1 for real time
+     */
+    private HeadlessLine(AudioFormat format, Path file, double speed) {
+        this.format = format;
+        this.file = file;
+        this.framesPerNano = format.getFrameRate() * speed / 1e9;
+    }
+
+    /**
+     * @param device of a zone, or null
+     * @return whether the device is a headless one
+     */
+    static boolean handles(String device) {
+        return device != null && (device.equalsIgnoreCase(NULL_DEVICE) || device.regionMatches(true, 0, WAV_PREFIX, 0, WAV_PREFIX.length()));
+    }
+
+    /**
+     * Creates a headless line for a device, running at the configured speed.
+     *
+     * @param device {@value #NULL_DEVICE} or {@code wav:<path>}
+     * @param format of the line
+     * @return the line, not open yet
+     */
+    static HeadlessLine create(String device, AudioFormat format) {
+        double speed = Double.parseDouble(Properties.getEnv(Properties.ENV_HEADLESS_SPEED_KEY, String.valueOf(Properties.DEFAULT_HEADLESS_SPEED)).trim());
+        if (speed <= 0)
+            throw new IllegalArgumentException("Headless speed must be positive: " + speed);
+
+        Path file = device.equalsIgnoreCase(NULL_DEVICE) ? null : Path.of(device.substring(WAV_PREFIX.length()).trim());
+        return new HeadlessLine(format, file, speed);
+    }
+
+    /**
+     * @param frames of audio
+     * @return how long the line takes to consume them, in nanoseconds
+     */
+    long durationNanos(int frames) {
+        return (long) (frames / framesPerNano);
+    }
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) throws LineUnavailableException {
+        if (!this.format.matches(format))
+            throw new LineUnavailableException("Headless line opened as " + this.format + ", not " + format);
+        if (open)
+            return;
+
+        this.bufferSize = Math.max(format.getFrameSize(), bufferSize - bufferSize % format.getFrameSize());
+        if (file != null) {
+            try {
+                wav = openWav();
+            } catch (IOException e) {
+                LineUnavailableException unavailable = new LineUnavailableException("Unable to write " + file + ": " + e.getMessage());
+                unavailable.initCause(e);
+                throw unavailable;
+            }
+        }
+
+        synchronized (this) {
+            written = 0;
+            position = 0;
+            clock = System.nanoTime();
+        }
+        open = true;
+        log.info("Headless output {} opened, {} times real time", file == null ? NULL_DEVICE : file, framesPerNano * 1e9 / format.getFrameRate());
+    }
+
+    @Override
+    public void open(AudioFormat format) throws LineUnavailableException {
+        open(format, (int) format.getFrameRate() / 2 * format.getFrameSize());
+    }
+
+    @Override
+    public void open() throws LineUnavailableException {
+        open(format);
+    }
+
+    /**
+     * Writes whole frames, waiting for the virtual clock to make room like a device line.
+     * Returns early, with the bytes written so far, if the line is stopped or closed or the
+     * thread is interrupted.
+     */
+    @Override
+    public int write(byte[] b, int off, int len) {
+        int frameSize = format.getFrameSize();
+        if (len % frameSize != 0)
+            throw new IllegalArgumentException("Length is not a whole number of frames: " + len);
+
+        int done = 0;
+        while (done < len && open) {
+            int room;
+            synchronized (this) {
+                advance();
+                room = Math.min(len - done, (int) (bufferSize - queued() * frameSize));
+                if (room > 0) {
+                    sink(b, off + done, room);
+                    written += room / frameSize;
+                    done += room;
+                }
+            }
+
+            if (done < len) {
+                if (!running || Thread.currentThread().isInterrupted())
+                    break;
+                LockSupport.parkNanos(durationNanos((len - done) / frameSize));
+            }
+        }
+        return done;
+    }
+
+    @Override
+    public void drain() {
+        while (open && running && !Thread.currentThread().isInterrupted()) {
+            long queued;
+            synchronized (this) {
+                advance();
+                queued = queued();
+            }
+            if (queued == 0)
+                return;
+            LockSupport.parkNanos(durationNanos((int) queued));
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        advance();
+        position = written;
+    }
+
+    @Override
+    public synchronized void start() {
+        advance();
+        running = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        advance();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized boolean isActive() {
+        advance();
+        return running && queued() > 0;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public synchronized int available() {
+        advance();
+        return (int) (bufferSize - queued() * format.getFrameSize());
+    }
+
+    @Override
+    public int getFramePosition() {
+        return (int) getLongFramePosition();
+    }
+
+    @Override
+    public synchronized long getLongFramePosition() {
+        advance();
+        return (long) position;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return (long) (getLongFramePosition() * 1_000_000L / format.getFrameRate());
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    @Override
+    public Line.Info getLineInfo() {
+        return new DataLine.Info(SourceDataLine.class, format);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!open)
+                return;
+            open = false;
+            running = false;
+        }
+
+        if (wav != null) {
+            try (RandomAccessFile closing = wav) {
+                writeWavHeader(closing);
+            } catch (IOException e) {
+                log.warn("Unable to finish the WAV file {}", file, e);
+            }
+            wav = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("Unsupported control type: " + control);
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+
+    /**
+     * Moves the virtual clock to now, consuming queued frames while running.
+     */
+    private void advance() {
+        long now = System.nanoTime();
+        if (running)
+            position = Math.min(written, position + (now - clock) * framesPerNano);
+        clock = now;
+    }
+
+    /**
+     * @return frames written but not consumed yet
+     */
+    private long queued() {
+        return written - (long) position;
+    }
+
+    /**
+     * Hands written bytes to the WAV file, if any. A file that cannot be written anymore is
+     * given up, the line keeps playing.
+     *
+     * @param b      bytes written
+     * @param offset of the first byte
+     * @param length number of bytes
+     */
+    private void sink(byte[] b, int offset, int length) {
+        if (wav == null)
+            return;
+
+        try {
+            wav.write(b, offset, length);
+        } catch (IOException e) {
+            log.error("Unable to write the WAV file {}, dropping the audio from now on", file, e);
+            try {
+                wav.close();
+            } catch (IOException ignored) {
+                // Already failing.
+            }
+            wav = null;
+        }
+    }
+
+    /**
+     * Opens the WAV file, truncating it the first time this process writes it.
+     *
+     * @return the file, positioned at the end of the audio
+     * @throws IOException if the file cannot be opened
+     */
+    private RandomAccessFile openWav() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+
+        RandomAccessFile opening = new RandomAccessFile(file.toFile(), "rw");
+        try {
+            if (opened.add(file.toAbsolutePath()))
+                opening.setLength(0);
+            if (opening.length() < WAV_HEADER_SIZE)
+                writeWavHeader(opening);
+            opening.seek(opening.length());
+        } catch (IOException e) {
+            opening.close();
+            throw e;
+        }
+        return opening;
+    }
+
+    /**
+     * Writes the header of the WAV file for the audio it holds.
+     *
+     * @param target the WAV file
+     * @throws IOException if the header cannot be written
+     */
+    private void writeWavHeader(RandomAccessFile target) throws IOException {
+        long dataSize = Math.max(0, target.length() - WAV_HEADER_SIZE);
+        int channels = format.getChannels();
+        int rate = (int) format.getSampleRate();
+
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) Math.min(0xffffffffL, dataSize + WAV_HEADER_SIZE - 8));
+        header.put("WAVEfmt ".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(16);
+        header.putShort((short) 1);
+        header.putShort((short) channels);
+        header.putInt(rate);
+        header.putInt(rate * format.getFrameSize());
+        header.putShort((short) format.getFrameSize());
+        header.putShort((short) format.getSampleSizeInBits());
+        header.put("data".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) Math.min(0xffffffffL, dataSize));
+
+        long position = target.getFilePointer();
+        target.seek(0);
+        target.write(header.array());
+        target.seek(Math.max(position, WAV_HEADER_SIZE));
+    }
+
+}
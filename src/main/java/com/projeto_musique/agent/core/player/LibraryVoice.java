@@ -0,0 +1,184 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.core.Workers;
+import com.projeto_musique.agent.core.library.Playlist;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Voice playing the tracks of a local {@link Playlist} back to back, without touching the network.
+ * <p>
+ * The tracks are memory-mapped and decoded by a task on the I/O workers into a preallocated
+ * single-producer/single-consumer ring; the audio thread only drains it. Decoding starts as soon
+ * as the voice is created, so the window is already full when the voice joins the mix. When a
+ * track ends, the next one is written right behind it so there is no gap. Unreadable tracks are
+ * skipped; the voice only ends if every track of the playlist fails in a row.
+ * </p>
+ */
+@Slf4j
+public class LibraryVoice extends Voice {
+
+    /**
+     * Frames decoded per chunk.
+     */
+    private static final int CHUNK_FRAMES = 4096;
+
+    /**
+     * Delay before submitting the decoder again when the workers are saturated.
+     */
+    private static final long RETRY_MS = 1000;
+
+    /**
+     * Source of the tracks.
+     */
+    private final Playlist playlist;
+
+    /**
+     * Runtime running the decoder.
+     */
+    private final Workers workers;
+
+    /**
+     * Decoded audio waiting to be mixed.
+     */
+    private final PcmRingBuffer ring;
+
+    /**
+     * Running or scheduled decoder.
+     */
+    private volatile Future<?> task;
+
+    /**
+     * Set by the decoder once no more audio will be written.
+     */
+    private volatile boolean decoderDone;
+
+    public LibraryVoice(Playlist playlist, int windowFrames, Workers workers, float gain) {
+        super(gain);
+        this.playlist = playlist;
+        this.workers = workers;
+        this.ring = new PcmRingBuffer(windowFrames);
+        start();
+    }
+
+    /**
+     * @return number of decoded frames waiting to be mixed
+     */
+    public int buffered() {
+        return ring.available();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        ring.close();
+    }
+
+    @Override
+    protected int read(short[] buffer, int frames) {
+        boolean done = decoderDone;
+        int read = ring.read(buffer, frames);
+        if (read == 0 && done)
+            return -1;
+        return read;
+    }
+
+    @Override
+    protected void close() {
+        stop();
+        Future<?> current = task;
+        if (current != null)
+            current.cancel(true);
+    }
+
+    /**
+     * Starts the decoder, trying again later if the workers are saturated.
+     */
+    private void start() {
+        if (isStopped())
+            return;
+
+        task = workers.submit("local library", this::decode);
+        if (task == null)
+            task = workers.submitLater("local library", this::decode, RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Decodes the playlist into the window until every track failed or the voice is stopped.
+     */
+    private void decode() {
+        byte[] bytes = new byte[CHUNK_FRAMES * Mixer.FRAME_SIZE];
+        short[] stereo = new short[CHUNK_FRAMES * Mixer.CHANNELS];
+        int failures = 0;
+
+        try {
+            while (!isStopped()) {
+                InputStream track = null;
+                while (track == null && failures < playlist.size()) {
+                    Path file = playlist.next();
+                    try {
+                        track = Decoder.openPcm(MappedInputStream.open(file), Mixer.CHANNELS);
+                        failures = 0;
+                        log.info("Playing local track: {}", file);
+                    } catch (Exception e) {
+                        failures++;
+                        log.error("Skipping unreadable local track: {}", file, e);
+                    }
+                }
+
+                if (track == null) {
+                    log.error("No playable track in the local library");
+                    return;
+                }
+
+                try (InputStream pcm = track) {
+                    decodeTrack(pcm, bytes, stereo);
+                } catch (IOException e) {
+                    log.error("Failed to read local track", e);
+                }
+            }
+        } finally {
+            decoderDone = true;
+        }
+    }
+
+    /**
+     * Decodes one track into the window until it ends or the voice is stopped.
+     *
+     * @param pcm    stereo 16-bit PCM of the track
+     * @param bytes  scratch for the raw PCM
+     * @param stereo scratch for the decoded samples
+     * @throws IOException if the track cannot be read
+     */
+    private void decodeTrack(InputStream pcm, byte[] bytes, short[] stereo) throws IOException {
+        int leftover = 0;
+        while (!isStopped()) {
+            long start = System.nanoTime();
+            int r = pcm.read(bytes, leftover, bytes.length - leftover);
+            if (r < 0)
+                return;
+
+            int filled = leftover + r;
+            int frames = filled / Mixer.FRAME_SIZE;
+            leftover = filled - frames * Mixer.FRAME_SIZE;
+
+            PcmCodec.decode(bytes, stereo, 0, frames, Mixer.CHANNELS);
+            System.arraycopy(bytes, frames * Mixer.FRAME_SIZE, bytes, 0, leftover);
+            PlayerMetrics.LIBRARY_DECODE_SECONDS.observeSince(start);
+
+            int offset = 0;
+            while (offset < frames && !isStopped()) {
+                int written = ring.write(stereo, offset, frames - offset);
+                if (written == 0)
+                    ring.awaitSpace(CHUNK_FRAMES);
+                offset += written;
+            }
+        }
+    }
+
+}
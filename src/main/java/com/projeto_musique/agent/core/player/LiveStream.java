@@ -0,0 +1,166 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.core.Workers;
+import com.projeto_musique.agent.core.connectivity.Backoff;
+import com.projeto_musique.agent.logging.RateLimitFilter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sound.sampled.AudioInputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a live MP3 stream decoding in the background, reconnecting whenever it ends or fails.
+ * <p>
+ * Every connection attempt runs as a task on the I/O workers and decodes into a fresh
+ * {@link StreamingVoice}; the next attempt is scheduled once it ends. The audio thread keeps
+ * reading the voice it already has until that one is drained, and only then moves to the most
+ * recent connection, so audio buffered before a drop is never thrown away.
+ * </p>
+ * <p>
+ * Attempts are spaced by a {@link Backoff} with jitter, so players losing the stream together do
+ * not reconnect in step; it starts over once a connection stayed up for a while.
+ * </p>
+ */
+@Slf4j
+class LiveStream {
+
+    /**
+     * Smallest delay between two connection attempts.
+     */
+    private static final long RETRY_BASE_MS = 1000;
+
+    /**
+     * Largest delay between two connection attempts.
+     */
+    private static final long RETRY_MAX_MS = 30000;
+
+    /**
+     * How long a connection must stay up for the delays to start over.
+     */
+    private static final long STABLE_MS = 10000;
+
+    /**
+     * URL of the stream.
+     */
+    private final String url;
+
+    /**
+     * Frames buffered ahead of the audio thread.
+     */
+    private final int windowFrames;
+
+    /**
+     * Runtime running the connections.
+     */
+    private final Workers workers;
+
+    /**
+     * Delays between connection attempts.
+     */
+    private final Backoff backoff = new Backoff(RETRY_BASE_MS, RETRY_MAX_MS);
+
+    /**
+     * Running or scheduled connection attempt.
+     */
+    private volatile Future<?> task;
+
+    /**
+     * Voice of the most recent successful connection.
+     */
+    private volatile StreamingVoice latest;
+
+    /**
+     * Voice read by the audio thread. Only touched by the audio thread.
+     */
+    private StreamingVoice active;
+
+    /**
+     * Set once the stream should no longer reconnect.
+     */
+    private volatile boolean closed;
+
+    LiveStream(String url, int windowFrames, Workers workers) {
+        this.url = url;
+        this.windowFrames = windowFrames;
+        this.workers = workers;
+    }
+
+    /**
+     * Starts connecting in the background.
+     */
+    void start() {
+        task = workers.submit("live stream " + url, this::connect);
+        if (task == null)
+            scheduleRetry();
+    }
+
+    /**
+     * Returns the voice the audio thread should read. Audio thread only.
+     * While the stream is audible, a newer connection is only used once the previous one is
+     * drained. While it is not, audio left over by an ended connection is dropped right away.
+     *
+     * @param audible whether the returned voice is being played
+     * @return the current voice, or null before the first connection
+     */
+    StreamingVoice current(boolean audible) {
+        StreamingVoice next = latest;
+        if (active == null || (active != next && (audible ? active.isDrained() : active.isDecoderDone())))
+            active = next;
+        return active;
+    }
+
+    /**
+     * Stops decoding and reconnecting.
+     */
+    void close() {
+        closed = true;
+        StreamingVoice voice = latest;
+        if (voice != null)
+            voice.stop();
+
+        Future<?> current = task;
+        if (current != null)
+            current.cancel(true);
+    }
+
+    /**
+     * One connection attempt, scheduling the next one when it ends.
+     */
+    private void connect() {
+        if (closed)
+            return;
+
+        long connectedAt = 0;
+        try (AudioInputStream pcm = Decoder.openPcm(url, Mixer.CHANNELS)) {
+            log.info(RateLimitFilter.REPEATED, "Live stream connected: {}", url);
+            connectedAt = System.nanoTime();
+
+            StreamingVoice voice = new StreamingVoice(windowFrames, 1.0f);
+            latest = voice;
+            if (closed)
+                voice.stop();
+
+            voice.decode(pcm, Mixer.CHANNELS, 0, () -> {
+            });
+            log.warn(RateLimitFilter.REPEATED, "Live stream ended: {}", url);
+        } catch (Exception e) {
+            log.error("Live stream failed: {}", url, e);
+        }
+
+        if (connectedAt != 0 && System.nanoTime() - connectedAt >= TimeUnit.MILLISECONDS.toNanos(STABLE_MS))
+            backoff.reset();
+        scheduleRetry();
+    }
+
+    /**
+     * Schedules the next connection attempt, unless the stream is closed.
+     */
+    private void scheduleRetry() {
+        if (!closed) {
+            PlayerMetrics.STREAM_RECONNECTS.inc();
+            task = workers.submitLater("live stream " + url, this::connect, backoff.nextDelayMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
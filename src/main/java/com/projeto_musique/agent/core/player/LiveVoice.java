@@ -0,0 +1,87 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.core.Workers;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+
+/**
+ * Voice playing a live stream through a jitter buffer of configurable depth.
+ * <p>
+ * The network and decode stage runs as a {@link LiveStream} task and fills a preallocated
+ * single-producer/single-consumer ring; the audio thread only drains it. Playback starts once
+ * the configured depth is buffered, which is how far behind live the voice plays. After an
+ * underrun the voice plays silence until half the depth is buffered again. The voice never
+ * ends: a dropped connection is reconnected underneath it.
+ * </p>
+ */
+@Slf4j
+public class LiveVoice extends Voice {
+
+    /**
+     * Live stream decoded in the background.
+     */
+    private final LiveStream live;
+
+    /**
+     * Frames buffered before playback starts.
+     */
+    private final int depthFrames;
+
+    /**
+     * Receives the underrun and recovery events.
+     */
+    private final SoundPlayer.Listener listener;
+
+    /**
+     * Frames to buffer before playing again. Only touched by the audio thread.
+     */
+    private int targetFrames;
+
+    /**
+     * Whether the voice is waiting for the buffer to fill. Only touched by the audio thread.
+     */
+    private boolean buffering = true;
+
+    public LiveVoice(String streamUrl, int depthFrames, Workers workers, SoundPlayer.Listener listener, float gain) {
+        super(gain);
+        this.listener = listener;
+        this.live = new LiveStream(streamUrl, depthFrames + Decoder.SAMPLE_RATE, workers);
+        this.depthFrames = depthFrames;
+        this.targetFrames = depthFrames;
+        this.live.start();
+    }
+
+    @Override
+    protected int read(short[] buffer, int frames) {
+        StreamingVoice stream = live.current(true);
+        int buffered = stream == null ? 0 : stream.buffered();
+
+        if (buffering && buffered >= targetFrames) {
+            log.info("Live buffer filled ({} frames), playing", buffered);
+            buffering = false;
+            listener.onRecovered();
+        }
+
+        int read = 0;
+        if (!buffering) {
+            read = Math.max(0, stream.read(buffer, frames));
+            if (read < frames) {
+                log.warn("Live buffer underrun, rebuffering");
+                PlayerMetrics.LIVE_UNDERRUNS.inc();
+                buffering = true;
+                targetFrames = depthFrames / 2;
+                listener.onDegraded();
+            }
+        }
+
+        Arrays.fill(buffer, read * Mixer.CHANNELS, frames * Mixer.CHANNELS, (short) 0);
+        return frames;
+    }
+
+    @Override
+    protected void close() {
+        live.close();
+    }
+
+}
@@ -0,0 +1,277 @@
+package com.projeto_musique.agent.core.player;
+
+/**
+ * Measures the integrated loudness of signed 16-bit little-endian PCM as it streams by, following
+ * ITU-R BS.1770 and EBU R128, along with its sample peak.
+ * <p>
+ * Samples go through the K-weighting filter and their energy is summed in 100 millisecond steps;
+ * every 400 millisecond block overlapping by 75% is then counted in a histogram of 0.1 LU bins,
+ * so the memory used does not depend on the length of the audio. The integrated loudness is the
+ * mean energy of the blocks passing the absolute gate of -70 LUFS and the relative gate 10 LU
+ * below the mean of those. Mono audio is measured as played, duplicated to both speakers.
+ * </p>
+ */
+final class LoudnessMeter {
+
+    /**
+     * Loudness of the blocks below which they are ignored.
+     */
+    private static final double ABSOLUTE_GATE = -70.0;
+
+    /**
+     * Distance below the mean loudness of the blocks under which they are ignored.
+     */
+    private static final double RELATIVE_GATE = -10.0;
+
+    /**
+     * Loudness of the top of the histogram.
+     */
+    private static final double HISTOGRAM_TOP = 10.0;
+
+    /**
+     * Width of a histogram bin, in LU.
+     */
+    private static final double BIN_WIDTH = 0.1;
+
+    /**
+     * Steps of 100 milliseconds per 400 millisecond block.
+     */
+    private static final int STEPS_PER_BLOCK = 4;
+
+    /**
+     * Highest level reached by a normalized ad, -1 dBFS.
+     */
+    private static final double PEAK_CEILING = Short.MAX_VALUE * 0.891;
+
+    /**
+     * Number of channels of the audio.
+     */
+    private final int channels;
+
+    /**
+     * Weight of every channel in the sum of the energies.
+     */
+    private final double weight;
+
+    /**
+     * Frames per 100 millisecond step.
+     */
+    private final int stepFrames;
+
+    /**
+     * Coefficients of the K-weighting filter: the high shelf followed by the high pass.
+     */
+    private final double b0, b1, b2, a1, a2, hb0, hb1, hb2, ha1, ha2;
+
+    /**
+     * State of the filters, four values per channel for each of the two stages.
+     */
+    private final double[] state;
+
+    /**
+     * Weighted energy of the last steps, the current one included.
+     */
+    private final double[] steps = new double[STEPS_PER_BLOCK];
+
+    /**
+     * Number of blocks per histogram bin.
+     */
+    private final long[] counts = new long[(int) Math.round((HISTOGRAM_TOP - ABSOLUTE_GATE) / BIN_WIDTH)];
+
+    /**
+     * Summed energy of the blocks per histogram bin.
+     */
+    private final double[] energies = new double[counts.length];
+
+    /**
+     * Low byte of a sample split between two reads, or -1.
+     */
+    private int pendingByte = -1;
+
+    /**
+     * Channel of the next sample.
+     */
+    private int channel;
+
+    /**
+     * Frames summed in the current step.
+     */
+    private int stepPosition;
+
+    /**
+     * Steps completed so far.
+     */
+    private long stepCount;
+
+    /**
+     * Highest absolute sample value.
+     */
+    private int peak;
+
+    /**
+     * @param channels   number of channels of the audio
+     * @param sampleRate of the audio
+     */
+    LoudnessMeter(int channels, int sampleRate) {
+        this.channels = channels;
+        this.weight = channels == 1 ? 2.0 : 1.0;
+        this.stepFrames = sampleRate / 10;
+        this.state = new double[channels * 8];
+
+        // High shelf modelling the head, as designed in BS.1770 for any sample rate.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        this.b0 = (vh + vb * k / q + k * k) / a0;
+        this.b1 = 2.0 * (k * k - vh) / a0;
+        this.b2 = (vh - vb * k / q + k * k) / a0;
+        this.a1 = 2.0 * (k * k - 1.0) / a0;
+        this.a2 = (1.0 - k / q + k * k) / a0;
+
+        // High pass of the revised low frequency B-curve.
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1.0 + k / q + k * k;
+        this.hb0 = 1.0;
+        this.hb1 = -2.0;
+        this.hb2 = 1.0;
+        this.ha1 = 2.0 * (k * k - 1.0) / a0;
+        this.ha2 = (1.0 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Measures the next bytes of the audio, which may end in the middle of a sample.
+     *
+     * @param pcm    signed 16-bit little-endian interleaved samples
+     * @param offset of the first byte
+     * @param length number of bytes
+     */
+    void process(byte[] pcm, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        if (pendingByte >= 0 && i < end) {
+            sample((short) ((pcm[i++] << 8) | pendingByte));
+            pendingByte = -1;
+        }
+        for (; i + 1 < end; i += 2)
+            sample((short) ((pcm[i + 1] << 8) | (pcm[i] & 0xff)));
+        if (i < end)
+            pendingByte = pcm[i] & 0xff;
+    }
+
+    /**
+     * @return the integrated loudness in LUFS, or negative infinity if no block passed the gates
+     */
+    double integrated() {
+        double gate = loudness(meanEnergy(0)) + RELATIVE_GATE;
+        if (Double.isInfinite(gate))
+            return Double.NEGATIVE_INFINITY;
+
+        int first = (int) Math.max(0, Math.ceil((gate - ABSOLUTE_GATE) / BIN_WIDTH));
+        return loudness(meanEnergy(first));
+    }
+
+    /**
+     * @return the highest absolute sample value
+     */
+    int peak() {
+        return peak;
+    }
+
+    /**
+     * Gain bringing audio to a target loudness, lowered so its peak stays below -1 dBFS.
+     *
+     * @param loudness integrated loudness of the audio, in LUFS
+     * @param peak     highest absolute sample value of the audio
+     * @param target   loudness to reach, in LUFS
+     * @return the linear gain, 1 if the loudness is unknown
+     */
+    static float gain(double loudness, int peak, double target) {
+        if (Double.isInfinite(loudness) || peak == 0)
+            return 1.0f;
+
+        double gain = Math.pow(10.0, (target - loudness) / 20.0);
+        gain = Math.min(gain, PEAK_CEILING / peak);
+        return (float) Math.min(gain, PcmKernels.MAX_GAIN);
+    }
+
+    /**
+     * Filters one sample and adds its energy to the current step.
+     *
+     * @param sample of the current channel
+     */
+    private void sample(short sample) {
+        peak = Math.max(peak, Math.abs((int) sample));
+
+        int s = channel * 8;
+        double x = sample / 32768.0;
+        double y = b0 * x + b1 * state[s] + b2 * state[s + 1] - a1 * state[s + 2] - a2 * state[s + 3];
+        state[s + 1] = state[s];
+        state[s] = x;
+        state[s + 3] = state[s + 2];
+        state[s + 2] = y;
+
+        double z = hb0 * y + hb1 * state[s + 4] + hb2 * state[s + 5] - ha1 * state[s + 6] - ha2 * state[s + 7];
+        state[s + 5] = state[s + 4];
+        state[s + 4] = y;
+        state[s + 7] = state[s + 6];
+        state[s + 6] = z;
+
+        steps[(int) (stepCount % STEPS_PER_BLOCK)] += z * z;
+
+        if (++channel == channels) {
+            channel = 0;
+            if (++stepPosition == stepFrames)
+                endStep();
+        }
+    }
+
+    /**
+     * Closes the current step and counts the block ending with it.
+     */
+    private void endStep() {
+        stepPosition = 0;
+        stepCount++;
+
+        if (stepCount >= STEPS_PER_BLOCK) {
+            double sum = 0;
+            for (double step : steps)
+                sum += step;
+            double energy = weight * sum / (STEPS_PER_BLOCK * (double) stepFrames);
+
+            double blockLoudness = loudness(energy);
+            if (blockLoudness > ABSOLUTE_GATE) {
+                int bin = (int) Math.min(counts.length - 1, (blockLoudness - ABSOLUTE_GATE) / BIN_WIDTH);
+                counts[bin]++;
+                energies[bin] += energy;
+            }
+        }
+
+        steps[(int) (stepCount % STEPS_PER_BLOCK)] = 0;
+    }
+
+    /**
+     * @param firstBin lowest histogram bin taken into account
+     * @return the mean energy of the blocks from that bin up, 0 if there are none
+     */
+    private double meanEnergy(int firstBin) {
+        long count = 0;
+        double energy = 0;
+        for (int bin = firstBin; bin < counts.length; bin++) {
+            count += counts[bin];
+            energy += energies[bin];
+        }
+        return count == 0 ? 0 : energy / count;
+    }
+
+    /**
+     * @param energy mean weighted square of the samples
+     * @return the loudness in LUFS
+     */
+    private static double loudness(double energy) {
+        return -0.691 + 10.0 * Math.log10(energy);
+    }
+
+}
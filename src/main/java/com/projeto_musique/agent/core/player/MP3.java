@@ -1,24 +1,64 @@
 package com.projeto_musique.agent.core.player;
 
+import com.projeto_musique.agent.core.Workers;
 import com.projeto_musique.agent.models.SoundData;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.sound.sampled.*;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.net.URL;
+import javax.sound.sampled.LineUnavailableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * MP3 audio player implementation for playing a main stream and ads.
  * <p>
  * This class allows playback of a continuous main MP3 stream and plays
- * an ad on top of it, fading the main volume down during the ad and back up
- * after the ad finishes.
+ * ads on top of it through a {@link Mixer}, fading the main volume down while
+ * an ad block plays and back up after its last spot finishes.
+ * Ads are queued by priority in an {@link AdQueue}, decoded while they play, keeping
+ * only a short window of PCM in memory, and served from the {@link AdCache} on later plays.
  * Mono ads are automatically converted to stereo.
  * </p>
+ * <p>
+ * The main sound and the ads are each mixed once per cycle into a bus, and every {@link Zone}
+ * mixes those buses into its own output device with its own gain, so several zones cost a
+ * single download and decode.
+ * </p>
  */
 @Slf4j
-public class MP3 implements SoundPlayer {
+public class MP3 implements SoundPlayer, Mixer.Listener, AdQueue.Listener {
+
+    /**
+     * Largest number of frames mixed and written per cycle.
+     */
+    private static final int CHUNK_FRAMES = OutputTuner.MAX_CHUNK_FRAMES;
+
+    /**
+     * Frames of a local playlist decoded ahead of playback, 2 seconds.
+     */
+    private static final int LIBRARY_WINDOW_FRAMES = Decoder.SAMPLE_RATE * 2;
+
+    /**
+     * Lateness of a wake-up of the audio thread above which it counts as a pause.
+     */
+    private static final long LATE_WAKE_UP_NANOS = 5_000_000;
+
+    /**
+     * Gain of the main stream while an ad plays.
+     */
+    private static final float DUCK_GAIN = 0.2f;
+
+    /**
+     * Length of the main stream volume ramps, 500 milliseconds.
+     */
+    private static final int DUCK_FRAMES = Decoder.SAMPLE_RATE / 2;
+
+    /**
+     * Time given to a stopped playback thread to exit, before its lines are stopped and again after.
+     */
+    private static final long STOP_TIMEOUT_MS = 2000;
 
     /**
      * Flag to indicate whether playback should continue.
@@ -26,44 +66,141 @@ public class MP3 implements SoundPlayer {
     private volatile boolean running = true;
 
     /**
-     * Current volume for the main stream (0.0 to 1.0).
+     * Runtime running the ad decoders and the live stream.
+     */
+    private final Workers workers;
+
+    /**
+     * Depth of the live stream jitter buffer, in frames.
+     */
+    private final int bufferFrames;
+
+    /**
+     * Decides how much audio is queued in the output line.
+     */
+    private final OutputTuner tuner;
+
+    /**
+     * Mixer of the main sound.
+     */
+    private final Mixer mainMixer = new Mixer(CHUNK_FRAMES, this);
+
+    /**
+     * Mixer of the ads.
+     */
+    private final Mixer adMixer = new Mixer(CHUNK_FRAMES, this);
+
+    /**
+     * Ad spots waiting to be played.
      */
-    private volatile float mainVolume = 1.0f;
+    private final AdQueue adQueue;
 
     /**
-     * Current volume for the ad (0.0 to 1.0).
+     * Main sound of the current cycle, shared by the zones.
      */
-    private volatile float adVolume = 0f;
+    private final short[] mainBus = new short[CHUNK_FRAMES * Mixer.CHANNELS];
 
     /**
-     * Byte buffer holding the fully decoded ad PCM data.
+     * Ads of the current cycle, shared by the zones playing ads.
      */
-    private byte[] adBuffer = null;
+    private final short[] adBus = new short[CHUNK_FRAMES * Mixer.CHANNELS];
 
     /**
-     * Current read pointer in the ad buffer.
+     * Outputs of the zones.
      */
-    private int adPointer = 0;
+    private final List<ZoneOutput> zones = new ArrayList<>();
 
     /**
-     * Thread handling the continuous playback loop.
+     * Whether any zone plays ads.
      */
-    private Thread playbackThread;
+    private final boolean adsRouted;
 
     /**
-     * URL of the main MP3 stream.
+     * Number of ad blocks currently in the mix.
      */
-    private String mainStreamUrl;
+    private final AtomicInteger activeAds = new AtomicInteger();
 
     /**
-     * Starts playback of the main MP3 stream.
+     * Voice of the main stream, once playback started.
+     */
+    private volatile Voice mainVoice;
+
+    /**
+     * Receives the playback events.
+     */
+    private volatile SoundPlayer.Listener listener;
+
+    /**
+     * Time the audio written to the output line takes to reach the speakers, as of the last write.
+     */
+    private volatile long outputLatencyNanos;
+
+    /**
+     * Set once the decoder was warmed up.
+     */
+    private final AtomicBoolean decoderReady = new AtomicBoolean();
+
+    /**
+     * Thread handling the continuous playback loop. A thread that is not this one anymore
+     * stops playing, even if a newer playback set {@link #running} again.
+     */
+    private volatile Thread playbackThread;
+
+    /**
+     * Data of the main sound, either a stream URL or a local playlist.
+     */
+    private SoundData mainSoundData;
+
+    public MP3(AdCache adCache, Workers workers, int bufferSeconds, OutputTuner tuner, List<Zone> zones) {
+        if (zones.isEmpty())
+            throw new IllegalArgumentException("At least one zone is needed");
+
+        this.workers = workers;
+        this.adQueue = new AdQueue(adCache, workers, CHUNK_FRAMES, this);
+        this.bufferFrames = bufferSeconds * Decoder.SAMPLE_RATE;
+        this.tuner = tuner;
+        for (Zone zone : zones)
+            this.zones.add(new ZoneOutput(zone, CHUNK_FRAMES));
+        this.adsRouted = zones.stream().anyMatch(Zone::ads);
+        PlayerMetrics.register();
+    }
+
+    /**
+     * Opens the output lines and warms up the decoder on the workers, so the next play does not
+     * pay for them once the stream URL is known.
+     */
+    @Override
+    public void prepare() {
+        if (decoderReady.compareAndSet(false, true)) {
+            workers.submit("decoder warm-up", () -> {
+                try {
+                    Decoder.warmUp();
+                } catch (Exception e) {
+                    log.warn("Decoder warm-up failed", e);
+                }
+            });
+        }
+
+        for (ZoneOutput zone : zones)
+            zone.prepare(tuner.lineFrames(), workers.io());
+    }
+
+    /**
+     * Starts playback of the main MP3 stream, or of the local playlist when offline.
+     * Any previous playback is stopped first, and playback fails if its thread does not exit,
+     * as both threads would share the mixers and the lines. The listener must be set beforehand.
      *
-     * @param soundData Contains the URL of the main MP3 stream.
+     * @param soundData Contains the URL of the main MP3 stream or the local playlist.
      */
     @Override
     public void play(SoundData soundData) {
-        mainStreamUrl = soundData.streamURL();
-        log.info("Playing main stream: {}", mainStreamUrl);
+        if (!stopPlayback()) {
+            listener.onFailed(new IllegalStateException("The previous playback thread did not stop"));
+            return;
+        }
+
+        mainSoundData = soundData;
+        log.info("Playing main stream: {} (local playlist: {})", soundData.streamURL(), soundData.playlist() != null);
 
         running = true;
         playbackThread = new Thread(this::playbackLoop, "Audio-Playback-Thread");
@@ -71,182 +208,288 @@ public class MP3 implements SoundPlayer {
     }
 
     /**
-     * Plays an advertisement on top of the main stream.
-     * The main stream volume is faded down while the ad plays and
+     * Queues an advertisement to be played on top of the main stream.
+     * The main stream volume is faded down while the ad block plays and
      * restored afterward.
      * Mono ads are converted to stereo automatically.
      *
-     * @param adUrl URL of the MP3 advertisement to play.
+     * @param adUrl    URL of the MP3 advertisement to play.
+     * @param priority of the spot
      */
     @Override
-    public void playAd(String adUrl) {
-        log.info("Playing ad: {}", adUrl);
-
-        new Thread(() -> {
-            try {
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                AudioInputStream adStream = AudioSystem.getAudioInputStream(
-                        new BufferedInputStream(new URL(adUrl).openStream()));
-
-                AudioFormat targetFormat = new AudioFormat(
-                        AudioFormat.Encoding.PCM_SIGNED,
-                        44100,
-                        16,
-                        1,
-                        2,
-                        44100,
-                        false
-                );
-
-                AudioInputStream pcmAd = AudioSystem.getAudioInputStream(targetFormat, adStream);
-                byte[] buf = new byte[4096];
-                int r;
-                while ((r = pcmAd.read(buf)) != -1) {
-                    byteArrayOutputStream.write(buf, 0, r);
-                }
-                pcmAd.close();
+    public void playAd(String adUrl, AdPriority priority) {
+        if (!adsRouted) {
+            log.info("Ignoring ad, no zone plays ads: {}", adUrl);
+            return;
+        }
 
-                byte[] mono = byteArrayOutputStream.toByteArray();
-                adBuffer = monoToStereo(mono, mono.length);
-                adPointer = 0;
+        adQueue.add(adUrl, priority);
+    }
 
-                new Thread(() -> fadeVolume(true, 500)).start();
+    /**
+     * Downloads and decodes an advertisement into the ad cache ahead of time.
+     *
+     * @param adUrl URL of the MP3 advertisement to prefetch.
+     */
+    @Override
+    public void prefetchAd(String adUrl) {
+        adQueue.prefetch(adUrl);
+    }
 
-            } catch (Exception e) {
-                log.error("Failed to load ad: {}", adUrl, e);
-            }
-        }).start();
+    @Override
+    public void setListener(SoundPlayer.Listener listener) {
+        this.listener = listener;
     }
 
     /**
-     * Stops playback of both the main stream and any playing ad.
+     * Stops playback of both the main stream and any playing ad, dropping the queued ads.
      */
     @Override
     public void stop() {
         log.info("Stopping playback");
         running = false;
-        if (playbackThread != null) playbackThread.interrupt();
+        adQueue.clear();
+        for (ZoneOutput zone : zones)
+            zone.discardPreparedLine();
+        Thread playback = playbackThread;
+        if (playback != null) playback.interrupt();
+    }
+
+    /**
+     * Ends playback when the main stream finishes and restores the main volume
+     * once the last ad leaves the mix.
+     *
+     * @param voice the voice removed from the mix
+     */
+    @Override
+    public void onVoiceFinished(Voice voice) {
+        if (voice == mainVoice)
+            mainVoice = null;
+        else if (activeAds.decrementAndGet() == 0)
+            duckMain(false);
     }
 
     /**
-     * Internal loop that continuously reads from the main stream,
-     * mixes it with the ad (if present), and writes to the audio output line.
+     * Internal loop that continuously mixes the main stream with the ads
+     * and writes the result to the output line of every zone.
+     * Only the latency target chosen by the {@link OutputTuner} is kept queued in the lines,
+     * so ads and volume changes are heard that much later, and not a full line buffer later.
+     * The first zone that could be opened paces the loop.
      */
     private void playbackLoop() {
+        List<ZoneOutput> playing = new ArrayList<>();
+        boolean drained = false;
         try {
-            AudioInputStream mainStream = AudioSystem.getAudioInputStream(
-                    new BufferedInputStream(new URL(mainStreamUrl).openStream()));
-
-            AudioFormat mainFormat = new AudioFormat(
-                    AudioFormat.Encoding.PCM_SIGNED,
-                    44100,
-                    16,
-                    2,
-                    4,
-                    44100,
-                    false
-            );
-
-            AudioInputStream decodedMain = AudioSystem.getAudioInputStream(mainFormat, mainStream);
-
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, mainFormat);
-            SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
-            line.open(mainFormat);
-            line.start();
-
-            byte[] mainBuffer = new byte[8192];
-
-            while (running) {
-                int read = decodedMain.read(mainBuffer, 0, mainBuffer.length);
-                if (read < 0) break;
-
-                byte[] output = new byte[read];
-
-                for (int i = 0; i < read; i += 4) {
-                    short mainL = (short) ((mainBuffer[i + 1] << 8) | (mainBuffer[i] & 0xff));
-                    short mainR = (short) ((mainBuffer[i + 3] << 8) | (mainBuffer[i + 2] & 0xff));
-
-                    short adL = 0, adR = 0;
-                    if (adBuffer != null && adPointer + 4 <= adBuffer.length) {
-                        adL = (short) ((adBuffer[adPointer + 1] << 8) | (adBuffer[adPointer] & 0xff));
-                        adR = (short) ((adBuffer[adPointer + 3] << 8) | (adBuffer[adPointer + 2] & 0xff));
-                        adPointer += 4;
-                        if (adPointer >= adBuffer.length) {
-                            adBuffer = null;
-                            new Thread(() -> fadeVolume(false, 500)).start();
-                        }
-                    }
-
-                    int mixL = (int) (mainL * mainVolume + adL * adVolume);
-                    int mixR = (int) (mainR * mainVolume + adR * adVolume);
-
-                    if (mixL > Short.MAX_VALUE) mixL = Short.MAX_VALUE;
-                    if (mixL < Short.MIN_VALUE) mixL = Short.MIN_VALUE;
-                    if (mixR > Short.MAX_VALUE) mixR = Short.MAX_VALUE;
-                    if (mixR < Short.MIN_VALUE) mixR = Short.MIN_VALUE;
-
-                    output[i] = (byte) (mixL & 0xff);
-                    output[i + 1] = (byte) ((mixL >> 8) & 0xff);
-                    output[i + 2] = (byte) (mixR & 0xff);
-                    output[i + 3] = (byte) ((mixR >> 8) & 0xff);
-                }
+            startZones(playing);
+            ZoneOutput reference = playing.get(0);
+
+            Voice main = createMainVoice(mainSoundData);
+            mainVoice = main;
+            mainMixer.addVoice(main);
+            listener.onPlaying();
 
-                line.write(output, 0, read);
+            tuner.start();
+            try {
+                boolean started = false;
+                while (playing() && mainVoice != null) {
+                    int chunk = tuner.chunkFrames();
+                    awaitRoom(reference, chunk);
+
+                    mainMixer.mix(mainBus, chunk);
+                    adMixer.mix(adBus, chunk);
+                    recordOutputLevel(playing, reference, started);
+
+                    long writeStart = System.nanoTime();
+                    for (ZoneOutput zone : playing)
+                        zone.write(chunk, reference);
+                    PlayerMetrics.OUTPUT_WRITE_SECONDS.observeSince(writeStart);
+
+                    started = true;
+                    tuner.onCycle();
+                }
+            } finally {
+                tuner.stop();
             }
 
-            line.drain();
-            line.close();
+            drained = true;
+            if (playing())
+                listener.onFailed(new IllegalStateException("Main sound ended"));
         } catch (Exception e) {
             log.error("Playback error", e);
+            if (playing())
+                listener.onFailed(e);
+        } finally {
+            mainMixer.clear();
+            adMixer.clear();
+            for (ZoneOutput zone : playing)
+                zone.close(drained);
         }
     }
 
     /**
-     * Converts a mono PCM buffer to stereo PCM.
-     * Each mono sample is duplicated to left and right channels.
+     * Starts the output of every zone whose device is available.
      *
-     * @param monoBuffer The mono PCM data.
-     * @param bytesRead  Number of bytes in the mono buffer.
-     * @return PCM data in stereo format.
+     * @param playing receives the zones started
+     * @throws LineUnavailableException if no zone could be started
      */
-    private byte[] monoToStereo(byte[] monoBuffer, int bytesRead) {
-        int frames = bytesRead / 2;
-        byte[] stereo = new byte[frames * 4];
+    private void startZones(List<ZoneOutput> playing) throws LineUnavailableException {
+        LineUnavailableException failure = null;
+        for (ZoneOutput zone : zones) {
+            try {
+                zone.start(mainBus, adBus, tuner.lineFrames());
+                playing.add(zone);
+            } catch (LineUnavailableException | RuntimeException e) {
+                log.error("Zone {} is not available: {}", zone.zone().name(), e.toString());
+                failure = e instanceof LineUnavailableException unavailable ? unavailable : new LineUnavailableException(e.toString());
+            }
+        }
 
-        for (int i = 0; i < frames; i++) {
-            byte low = monoBuffer[i * 2];
-            byte high = monoBuffer[i * 2 + 1];
+        if (playing.isEmpty())
+            throw failure;
+        if (zones.size() > 1)
+            log.info("Playing in {} of {} zones", playing.size(), zones.size());
+    }
 
-            stereo[i * 4] = low;
-            stereo[i * 4 + 1] = high;
+    /**
+     * Whether the calling thread should keep playing.
+     *
+     * @return false once playback was stopped or a newer playback replaced this thread
+     */
+    private boolean playing() {
+        return running && playbackThread == Thread.currentThread();
+    }
 
-            stereo[i * 4 + 2] = low;
-            stereo[i * 4 + 3] = high;
+    /**
+     * Stops the playback thread, if any, and waits for it to release the mixers and the output
+     * lines. A thread still blocked in a line after a while gets its lines stopped.
+     *
+     * @return true once no playback thread is left, false if it did not exit
+     */
+    private boolean stopPlayback() {
+        Thread previous = playbackThread;
+        if (previous == null)
+            return true;
+
+        running = false;
+        previous.interrupt();
+        try {
+            previous.join(STOP_TIMEOUT_MS);
+            if (previous.isAlive()) {
+                log.warn("Playback thread still running after {} ms, stopping its output lines", STOP_TIMEOUT_MS);
+                for (ZoneOutput zone : zones)
+                    zone.abort();
+                previous.join(STOP_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
-        return stereo;
+        if (previous.isAlive()) {
+            log.error("Playback thread did not stop, not starting another one");
+            return false;
+        }
+        playbackThread = null;
+        return true;
     }
 
     /**
-     * Fades the main stream volume down or up and sets the ad volume.
+     * Creates the voice of the main sound. Streams and playlists are decoded on the workers through
+     * a ring buffer; a stream with a local playlist fails over to the playlist whenever it starves.
      *
-     * @param down       True to fade down main volume, false to fade up.
-     * @param durationMs Duration of the fade in milliseconds.
-     */
-    private void fadeVolume(boolean down, int durationMs) {
-        int steps = 20;
-        float from = down ? 1.0f : 0.2f;
-        float to = down ? 0.2f : 1.0f;
-        int stepTime = durationMs / steps;
-        float delta = (to - from) / steps;
-
-        for (int i = 0; i <= steps; i++) {
-            mainVolume = from + delta * i;
-            adVolume = down ? 1.0f : 0f;
-            try {
-                Thread.sleep(stepTime);
-            } catch (InterruptedException ignored) {
-            }
+     * @param soundData of the main sound
+     * @return the main voice
+     */
+    private Voice createMainVoice(SoundData soundData) {
+        if (soundData.streamURL() == null)
+            return new LibraryVoice(soundData.playlist(), LIBRARY_WINDOW_FRAMES, workers, 1.0f);
+
+        if (soundData.playlist() != null)
+            return new FailoverVoice(soundData.streamURL(), soundData.playlist(), bufferFrames, CHUNK_FRAMES, workers, listener, 1.0f);
+
+        return new LiveVoice(soundData.streamURL(), bufferFrames, workers, listener, 1.0f);
+    }
+
+    /**
+     * Waits until the line of the pacing zone holds no more than the latency target once the
+     * next chunk is written. Waking up noticeably later than asked is reported to the tuner as a pause.
+     *
+     * @param reference zone pacing the loop
+     * @param chunk     frames about to be written
+     */
+    private void awaitRoom(ZoneOutput reference, int chunk) {
+        int target = Math.min(tuner.targetFrames(), reference.bufferFrames());
+        while (playing()) {
+            int excess = reference.queuedFrames() + chunk - target;
+            if (excess <= 0)
+                return;
+
+            long sleep = reference.durationNanos(excess);
+            long wakeUp = System.nanoTime() + sleep;
+            LockSupport.parkNanos(sleep);
+
+            long late = System.nanoTime() - wakeUp;
+            if (late > LATE_WAKE_UP_NANOS)
+                tuner.onPause(late);
+        }
+    }
+
+    /**
+     * Records how full the output lines are before a write, raising the latency target
+     * whenever one of them ran dry.
+     *
+     * @param playing   zones being written
+     * @param reference zone pacing the loop
+     * @param started   whether something was already written to the lines
+     */
+    private void recordOutputLevel(List<ZoneOutput> playing, ZoneOutput reference, boolean started) {
+        boolean underrun = false;
+        for (ZoneOutput zone : playing) {
+            if (started && zone.queuedFrames() <= 0)
+                underrun = true;
+        }
+        if (underrun) {
+            PlayerMetrics.OUTPUT_UNDERRUNS.inc();
+            tuner.onUnderrun();
+        }
+
+        int queued = reference.queuedFrames();
+        PlayerMetrics.OUTPUT_FILL.set((double) queued / tuner.targetFrames());
+        outputLatencyNanos = reference.durationNanos(queued);
+    }
+
+    /**
+     * Ducks the main stream if needed and adds the ad block to the mix.
+     *
+     * @param block voice of the ad block
+     */
+    @Override
+    public void onBlockStarted(Voice block) {
+        if (activeAds.getAndIncrement() == 0)
+            duckMain(true);
+
+        adMixer.addVoice(block);
+    }
+
+    /**
+     * Records the time the spot took to reach the speakers.
+     *
+     * @param requestedAt {@link System#nanoTime()} when the spot was queued
+     */
+    @Override
+    public void onSpotStarted(long requestedAt) {
+        PlayerMetrics.AD_LATENCY_SECONDS.observe((System.nanoTime() - requestedAt + outputLatencyNanos) / 1e9);
+    }
+
+    /**
+     * Ramps the main stream volume down or up in the zones playing ads. The ramp is applied by
+     * the mixers on the audio thread, starting with the cycle in which the ad joins or leaves the mix.
+     *
+     * @param down True to fade down main volume, false to fade up.
+     */
+    private void duckMain(boolean down) {
+        for (ZoneOutput zone : zones) {
+            if (zone.zone().ads())
+                zone.fadeMain(down ? DUCK_GAIN : 1.0f, DUCK_FRAMES);
         }
     }
 
@@ -0,0 +1,218 @@
+package com.projeto_musique.agent.core.player;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Mixes any number of {@link Voice}s into interleaved stereo 16-bit samples, either encoded as
+ * little-endian PCM bytes for an output line or kept as samples for another mixer.
+ * <p>
+ * All working buffers are allocated once, so the steady state of {@link #mix(byte[], int)}
+ * allocates nothing. Voices can be added from any thread; they are handed over through a
+ * lock-free queue and picked up by the audio thread at the start of the next mix cycle.
+ * </p>
+ * <p>
+ * The mixer counts the frames it produced, and voice gain ramps are evaluated against that
+ * position, so fades are sample accurate regardless of how the output is chunked.
+ * </p>
+ */
+@Slf4j
+public class Mixer {
+
+    /**
+     * Number of channels produced by the mixer.
+     */
+    public static final int CHANNELS = 2;
+
+    /**
+     * Size in bytes of one output frame.
+     */
+    public static final int FRAME_SIZE = CHANNELS * 2;
+
+    /**
+     * Callback for voices leaving the mix.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the audio thread when a voice ended or was stopped. Must return quickly.
+         *
+         * @param voice the voice removed from the mix
+         */
+        void onVoiceFinished(Voice voice);
+
+    }
+
+    /**
+     * Maximum number of frames handled per mix cycle.
+     */
+    private final int maxFrames;
+
+    /**
+     * Sum of all voices before clipping.
+     */
+    private final int[] accumulator;
+
+    /**
+     * Samples read from the current voice.
+     */
+    private final short[] scratch;
+
+    /**
+     * Voices waiting to join the mix.
+     */
+    private final Queue<Voice> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Listener notified when a voice leaves the mix.
+     */
+    private final Listener listener;
+
+    /**
+     * Voices currently being mixed. Only touched by the audio thread.
+     */
+    private Voice[] voices = new Voice[8];
+
+    /**
+     * Number of entries used in {@link #voices}.
+     */
+    private int voiceCount;
+
+    /**
+     * Number of frames produced since the mixer was created.
+     */
+    private volatile long position;
+
+    public Mixer(int maxFrames, Listener listener) {
+        this.maxFrames = maxFrames;
+        this.accumulator = new int[maxFrames * CHANNELS];
+        this.scratch = new short[maxFrames * CHANNELS];
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a voice to the mix. Safe to call from any thread.
+     *
+     * @param voice to be mixed
+     */
+    public void addVoice(Voice voice) {
+        pending.offer(voice);
+    }
+
+    /**
+     * @return the output frame position of the next mix cycle
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Mixes the next block of audio. Must only be called from the audio thread.
+     * Voices that deliver fewer frames than requested are padded with silence.
+     *
+     * @param output destination, at least {@code frames * FRAME_SIZE} bytes long
+     * @param frames number of frames to produce, at most the configured maximum
+     * @return number of bytes written to the output
+     */
+    public int mix(byte[] output, int frames) {
+        PcmCodec.encode(accumulator, output, accumulate(frames));
+        return frames * FRAME_SIZE;
+    }
+
+    /**
+     * Mixes the next block of audio into samples. Must only be called from the audio thread.
+     * Voices that deliver fewer frames than requested are padded with silence.
+     *
+     * @param output destination, at least {@code frames * CHANNELS} samples long
+     * @param frames number of frames to produce, at most the configured maximum
+     */
+    public void mix(short[] output, int frames) {
+        PcmCodec.clip(accumulator, output, accumulate(frames));
+    }
+
+    /**
+     * Sums every voice into the accumulator and advances the position.
+     *
+     * @param frames number of frames to produce, at most the configured maximum
+     * @return number of samples in the accumulator
+     */
+    private int accumulate(int frames) {
+        if (frames > maxFrames)
+            throw new IllegalArgumentException("Requested " + frames + " frames, mixer handles " + maxFrames);
+
+        admitPending();
+
+        long start = position;
+        int samples = frames * CHANNELS;
+        Arrays.fill(accumulator, 0, samples, 0);
+
+        int i = 0;
+        while (i < voiceCount) {
+            Voice voice = voices[i];
+            int read = voice.isStopped() ? -1 : voice.read(scratch, frames);
+            if (read < 0) {
+                remove(i);
+                continue;
+            }
+
+            if (voice.prepareGain(start, read)) {
+                for (int f = 0, s = 0; f < read; f++, s += CHANNELS) {
+                    int gain = PcmKernels.fixedGain(voice.gainAt(start + f));
+                    accumulator[s] += (scratch[s] * gain) >> PcmKernels.GAIN_BITS;
+                    accumulator[s + 1] += (scratch[s + 1] * gain) >> PcmKernels.GAIN_BITS;
+                }
+            } else {
+                PcmCodec.accumulate(scratch, accumulator, read * CHANNELS, voice.gainAt(start));
+            }
+            i++;
+        }
+
+        position = start + frames;
+        return samples;
+    }
+
+    /**
+     * Stops and releases every voice, including the pending ones.
+     */
+    public void clear() {
+        admitPending();
+        while (voiceCount > 0) {
+            voices[voiceCount - 1].stop();
+            remove(voiceCount - 1);
+        }
+    }
+
+    /**
+     * Moves the voices handed over by other threads into the active set.
+     */
+    private void admitPending() {
+        Voice voice;
+        while ((voice = pending.poll()) != null) {
+            if (voiceCount == voices.length)
+                voices = Arrays.copyOf(voices, voices.length * 2);
+            voices[voiceCount++] = voice;
+        }
+    }
+
+    /**
+     * Removes the voice at the given index, keeping the others in order.
+     *
+     * @param index of the voice in the active set
+     */
+    private void remove(int index) {
+        Voice voice = voices[index];
+        System.arraycopy(voices, index + 1, voices, index, voiceCount - index - 1);
+        voices[--voiceCount] = null;
+
+        try {
+            voice.close();
+        } catch (Exception e) {
+            log.warn("Failed to close voice", e);
+        }
+        listener.onVoiceFinished(voice);
+    }
+
+}
@@ -0,0 +1,311 @@
+package com.projeto_musique.agent.core.player;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses how much audio is queued in the output line, and in which chunks it is written.
+ * <p>
+ * The line is opened once with the largest buffer allowed, and the playback loop only keeps
+ * {@link #targetFrames()} queued in it, so the latency can change without reopening the line.
+ * An underrun raises the target right away; after a stable period it is lowered step by step,
+ * never below twice the longest recent JVM pause. Pauses come from the garbage collector
+ * notifications and from the audio thread waking up late. The target reached is saved, so a
+ * device starts from what it learned last time.
+ * </p>
+ * <p>
+ * Only the audio thread calls the tuning methods; pauses may be reported from any thread.
+ * </p>
+ */
+@Slf4j
+public class OutputTuner implements NotificationListener {
+
+    /**
+     * Notification type of the garbage collectors.
+     */
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    /**
+     * Target growth after an underrun.
+     */
+    private static final double GROWTH = 1.5;
+
+    /**
+     * Target reduction after a stable period.
+     */
+    private static final double SHRINK = 0.9;
+
+    /**
+     * Time without underrun before the target is lowered.
+     */
+    private static final long STABLE_NANOS = 30_000_000_000L;
+
+    /**
+     * Unit suffix of the saved target, which is kept in milliseconds so it survives a change of
+     * the output rate.
+     */
+    private static final String PROFILE_UNIT = "ms";
+
+    /**
+     * Largest chunk written to the line.
+     */
+    static final int MAX_CHUNK_FRAMES = 2048;
+
+    /**
+     * Smallest chunk written to the line.
+     */
+    private static final int MIN_CHUNK_FRAMES = 256;
+
+    /**
+     * Granularity of the chunk size.
+     */
+    private static final int CHUNK_STEP_FRAMES = 64;
+
+    /**
+     * Lowest allowed target.
+     */
+    private final int minFrames;
+
+    /**
+     * Highest allowed target, and size of the line buffer.
+     */
+    private final int maxFrames;
+
+    /**
+     * File the learned target is saved to.
+     */
+    private final Path profile;
+
+    /**
+     * Longest pause seen during the current stable period.
+     */
+    private final AtomicLong periodPauseNanos = new AtomicLong();
+
+    /**
+     * Longest pause seen during the previous stable period.
+     */
+    private long previousPauseNanos;
+
+    /**
+     * Frames kept queued in the line.
+     */
+    private volatile int targetFrames;
+
+    /**
+     * Start of the current stable period.
+     */
+    private long stableSince = System.nanoTime();
+
+    /**
+     * @param profile       file the learned target is saved to
+     * @param minMillis     lowest allowed latency
+     * @param maxMillis     highest allowed latency
+     * @param initialMillis latency used until one was learned
+     */
+    public OutputTuner(Path profile, int minMillis, int maxMillis, int initialMillis) {
+        this.profile = profile;
+        this.minFrames = Math.max(toFrames(minMillis), MIN_CHUNK_FRAMES * 2);
+        this.maxFrames = Math.max(toFrames(maxMillis), minFrames);
+        this.targetFrames = clamp(load(toFrames(initialMillis)));
+        PlayerMetrics.OUTPUT_TARGET_SECONDS.set(targetFrames / (double) Decoder.SAMPLE_RATE);
+    }
+
+    /**
+     * @return size of the line buffer to open, in frames
+     */
+    int lineFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * @return frames to keep queued in the line
+     */
+    int targetFrames() {
+        return targetFrames;
+    }
+
+    /**
+     * @return frames to mix and write per cycle, a quarter of the target
+     */
+    int chunkFrames() {
+        int chunk = targetFrames / 4 / CHUNK_STEP_FRAMES * CHUNK_STEP_FRAMES;
+        return Math.max(MIN_CHUNK_FRAMES, Math.min(MAX_CHUNK_FRAMES, chunk));
+    }
+
+    /**
+     * Listens to the garbage collectors while the line plays.
+     */
+    void start() {
+        stableSince = System.nanoTime();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter emitter)
+                emitter.addNotificationListener(this, null, null);
+        }
+    }
+
+    /**
+     * Stops listening to the garbage collectors and saves the learned target.
+     */
+    void stop() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter emitter) {
+                try {
+                    emitter.removeNotificationListener(this);
+                } catch (Exception e) {
+                    log.debug("Collector listener already removed: {}", e.getMessage());
+                }
+            }
+        }
+        save();
+    }
+
+    /**
+     * The line ran dry: raises the target and starts a new stable period.
+     */
+    void onUnderrun() {
+        int previous = targetFrames;
+        update(Math.max((int) (previous * GROWTH), floorFrames()));
+        stableSince = System.nanoTime();
+        log.warn("Output underrun, latency target {} -> {} ms", toMillis(previous), toMillis(targetFrames));
+    }
+
+    /**
+     * Reports a pause of the JVM or of the audio thread.
+     *
+     * @param nanos duration of the pause
+     */
+    void onPause(long nanos) {
+        periodPauseNanos.accumulateAndGet(nanos, Math::max);
+        PlayerMetrics.PAUSE_SECONDS.observe(nanos / 1e9);
+    }
+
+    /**
+     * Called after every write, lowers the target at the end of a stable period.
+     */
+    void onCycle() {
+        long now = System.nanoTime();
+        if (now - stableSince < STABLE_NANOS)
+            return;
+
+        previousPauseNanos = periodPauseNanos.getAndSet(0);
+        stableSince = now;
+
+        int lowered = Math.max((int) (targetFrames * SHRINK), floorFrames());
+        if (lowered < targetFrames) {
+            log.debug("Output stable, latency target {} -> {} ms", toMillis(targetFrames), toMillis(lowered));
+            update(lowered);
+        }
+    }
+
+    /**
+     * Records the duration of the collector pauses. Concurrent cycles are not pauses and are ignored.
+     *
+     * @param notification sent by a garbage collector
+     * @param handback     unused
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GC_NOTIFICATION.equals(notification.getType()) || !(notification.getUserData() instanceof CompositeData info))
+            return;
+
+        String name = String.valueOf(info.get("gcName"));
+        if (name.contains("Concurrent") || name.contains("Cycles"))
+            return;
+
+        CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+        onPause((Long) gcInfo.get("duration") * 1_000_000L);
+    }
+
+    /**
+     * @return lowest target covering the pauses seen recently, with a chunk to spare
+     */
+    private int floorFrames() {
+        long pause = Math.max(previousPauseNanos, periodPauseNanos.get());
+        return (int) (2 * pause * Decoder.SAMPLE_RATE / 1_000_000_000L) + chunkFrames();
+    }
+
+    /**
+     * Sets the target within the bounds.
+     *
+     * @param frames new target
+     */
+    private void update(int frames) {
+        targetFrames = clamp(frames);
+        PlayerMetrics.OUTPUT_TARGET_SECONDS.set(targetFrames / (double) Decoder.SAMPLE_RATE);
+    }
+
+    /**
+     * Reads the target saved by a previous run.
+     *
+     * @param fallback target used if none was saved, or if it was saved in frames by an older version
+     * @return the target, in frames
+     */
+    private int load(int fallback) {
+        try {
+            if (Files.isRegularFile(profile)) {
+                String saved = Files.readString(profile).trim();
+                if (!saved.endsWith(PROFILE_UNIT))
+                    throw new NumberFormatException("No unit in " + saved);
+
+                int millis = Integer.parseInt(saved.substring(0, saved.length() - PROFILE_UNIT.length()));
+                log.info("Output latency target learned previously: {} ms", millis);
+                return toFrames(millis);
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Ignoring unreadable output profile: {}", profile, e);
+        }
+        return fallback;
+    }
+
+    /**
+     * Saves the current target for the next run, replacing the previous one atomically.
+     */
+    private void save() {
+        try {
+            Path directory = profile.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+
+            Path temp = directory.resolve(profile.getFileName() + ".tmp");
+            Files.writeString(temp, toMillis(targetFrames) + PROFILE_UNIT);
+            Files.move(temp, profile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to save the output profile to {}", profile, e);
+        }
+    }
+
+    /**
+     * @param frames target to bound
+     * @return the target within the allowed bounds
+     */
+    private int clamp(int frames) {
+        return Math.max(minFrames, Math.min(maxFrames, frames));
+    }
+
+    /**
+     * @param millis duration
+     * @return number of frames played in that duration
+     */
+    private static int toFrames(int millis) {
+        return millis * Decoder.SAMPLE_RATE / 1000;
+    }
+
+    /**
+     * @param frames number of frames
+     * @return duration of those frames in milliseconds
+     */
+    private static int toMillis(int frames) {
+        return frames * 1000 / Decoder.SAMPLE_RATE;
+    }
+
+}
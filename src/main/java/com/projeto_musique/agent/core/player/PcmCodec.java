@@ -0,0 +1,100 @@
+package com.projeto_musique.agent.core.player;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteOrder;
+
+/**
+ * Conversions between signed 16-bit little-endian PCM bytes and interleaved stereo samples,
+ * and the mixing loops working on those samples.
+ * <p>
+ * The loops run on the {@link VectorKernels} when the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}, and on the {@link ScalarKernels} otherwise.
+ * </p>
+ */
+@Slf4j
+final class PcmCodec {
+
+    /**
+     * Name of the Vector API module.
+     */
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * Kernels selected at startup.
+     */
+    private static final PcmKernels kernels = selectKernels();
+
+    private PcmCodec() {
+    }
+
+    /**
+     * Decodes PCM bytes into interleaved stereo samples.
+     * Mono input is duplicated to both channels.
+     *
+     * @param source   PCM bytes
+     * @param stereo   destination for interleaved stereo samples
+     * @param offset   first frame of the destination to write
+     * @param frames   number of frames to decode
+     * @param channels number of channels in the source, 1 or 2
+     */
+    static void decode(byte[] source, short[] stereo, int offset, int frames, int channels) {
+        kernels.decode(source, stereo, offset, frames, channels);
+    }
+
+    /**
+     * Adds samples scaled by a constant gain to an accumulator.
+     *
+     * @param samples     to be added
+     * @param accumulator receiving the sum
+     * @param count       number of samples
+     * @param gain        applied to every sample
+     */
+    static void accumulate(short[] samples, int[] accumulator, int count, float gain) {
+        kernels.accumulate(samples, accumulator, count, gain);
+    }
+
+    /**
+     * Clips accumulated samples to 16 bits and encodes them as PCM bytes.
+     *
+     * @param accumulator samples to encode
+     * @param output      destination, at least {@code count * 2} bytes long
+     * @param count       number of samples
+     */
+    static void encode(int[] accumulator, byte[] output, int count) {
+        kernels.encode(accumulator, output, count);
+    }
+
+    /**
+     * Clips accumulated samples to 16 bits.
+     *
+     * @param accumulator samples to clip
+     * @param output      destination, at least {@code count} samples long
+     * @param count       number of samples
+     */
+    static void clip(int[] accumulator, short[] output, int count) {
+        kernels.clip(accumulator, output, count);
+    }
+
+    /**
+     * Uses the vectorized kernels if the Vector API module is loaded and the platform is
+     * little-endian, the scalar ones otherwise.
+     *
+     * @return the kernels to use
+     */
+    private static PcmKernels selectKernels() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent() && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            try {
+                PcmKernels vector = new VectorKernels();
+                log.info("PCM kernels: vectorized");
+                return vector;
+            } catch (LinkageError e) {
+                log.warn("Vector API unusable, falling back to scalar PCM kernels: {}", e.toString());
+            }
+        }
+
+        log.info("PCM kernels: scalar (start with --add-modules {} to vectorize)", VECTOR_MODULE);
+        return new ScalarKernels();
+    }
+
+}
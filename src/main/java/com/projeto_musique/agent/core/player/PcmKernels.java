@@ -0,0 +1,71 @@
+package com.projeto_musique.agent.core.player;
+
+/**
+ * Sample-level loops of the player, with a scalar and a vectorized implementation.
+ * <p>
+ * Every method works on interleaved signed 16-bit samples and produces the same result whatever
+ * the implementation, so the one in use is only a matter of speed.
+ * </p>
+ */
+interface PcmKernels {
+
+    /**
+     * Fractional bits of the fixed-point gains.
+     */
+    int GAIN_BITS = 15;
+
+    /**
+     * Highest gain representable without overflowing the products.
+     */
+    float MAX_GAIN = 2.0f;
+
+    /**
+     * Decodes PCM bytes into interleaved stereo samples.
+     * Mono input is duplicated to both channels.
+     *
+     * @param source   signed 16-bit little-endian PCM bytes
+     * @param stereo   destination for interleaved stereo samples
+     * @param offset   first frame of the destination to write
+     * @param frames   number of frames to decode
+     * @param channels number of channels in the source, 1 or 2
+     */
+    void decode(byte[] source, short[] stereo, int offset, int frames, int channels);
+
+    /**
+     * Adds samples scaled by a constant gain to an accumulator. The gain is applied in fixed
+     * point, see {@link #fixedGain(float)}, which every CPU vectorizes.
+     *
+     * @param samples     to be added
+     * @param accumulator receiving the sum
+     * @param count       number of samples
+     * @param gain        applied to every sample
+     */
+    void accumulate(short[] samples, int[] accumulator, int count, float gain);
+
+    /**
+     * Clips accumulated samples to 16 bits and encodes them as little-endian PCM bytes.
+     *
+     * @param accumulator samples to encode
+     * @param output      destination, at least {@code count * 2} bytes long
+     * @param count       number of samples
+     */
+    void encode(int[] accumulator, byte[] output, int count);
+
+    /**
+     * Clips accumulated samples to 16 bits.
+     *
+     * @param accumulator samples to clip
+     * @param output      destination, at least {@code count} samples long
+     * @param count       number of samples
+     */
+    void clip(int[] accumulator, short[] output, int count);
+
+    /**
+     * @param gain between 0 and {@link #MAX_GAIN}, clamped otherwise
+     * @return the gain with {@link #GAIN_BITS} fractional bits
+     */
+    static int fixedGain(float gain) {
+        return Math.round(Math.max(0, Math.min(MAX_GAIN, gain)) * (1 << GAIN_BITS));
+    }
+
+}
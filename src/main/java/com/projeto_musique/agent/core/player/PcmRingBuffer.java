@@ -0,0 +1,157 @@
+package com.projeto_musique.agent.core.player;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of interleaved stereo samples.
+ * <p>
+ * The storage is allocated once. Positions are counted in frames and only ever grow,
+ * so the fill level is the difference between the write and the read position.
+ * Exactly one thread may write and exactly one thread may read.
+ * </p>
+ * <p>
+ * A producer finding the buffer full parks in {@link #awaitSpace(int)} and is unparked by the
+ * consumer once enough frames were read, so a full buffer costs no wakeups at all.
+ * </p>
+ */
+final class PcmRingBuffer {
+
+    /**
+     * Interleaved stereo samples.
+     */
+    private final short[] samples;
+
+    /**
+     * Capacity in frames.
+     */
+    private final int capacity;
+
+    /**
+     * Total frames written. Only advanced by the producer.
+     */
+    private final AtomicLong writePosition = new AtomicLong();
+
+    /**
+     * Total frames read. Only advanced by the consumer, with a full fence so that it never misses
+     * a producer that started waiting.
+     */
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * Producer parked until enough space is free, or null.
+     */
+    private volatile Thread waiting;
+
+    /**
+     * Free frames the waiting producer needs. Written before {@link #waiting} is published.
+     */
+    private int wanted;
+
+    /**
+     * Set once the producer should not wait anymore.
+     */
+    private volatile boolean closed;
+
+    PcmRingBuffer(int capacityFrames) {
+        this.capacity = capacityFrames;
+        this.samples = new short[capacityFrames * Mixer.CHANNELS];
+    }
+
+    /**
+     * @return capacity in frames
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of frames ready to be read
+     */
+    int available() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    /**
+     * @return number of frames that can be written without overwriting unread audio
+     */
+    int free() {
+        return capacity - available();
+    }
+
+    /**
+     * Copies as many frames as fit into the buffer. Producer side only.
+     *
+     * @param source interleaved stereo samples
+     * @param offset first frame of the source to copy
+     * @param frames number of frames offered
+     * @return number of frames written
+     */
+    int write(short[] source, int offset, int frames) {
+        long write = writePosition.get();
+        int count = Math.min(frames, capacity - (int) (write - readPosition.get()));
+        if (count <= 0)
+            return 0;
+
+        int start = (int) (write % capacity);
+        int first = Math.min(count, capacity - start);
+        System.arraycopy(source, offset * Mixer.CHANNELS, samples, start * Mixer.CHANNELS, first * Mixer.CHANNELS);
+        if (first < count)
+            System.arraycopy(source, (offset + first) * Mixer.CHANNELS, samples, 0, (count - first) * Mixer.CHANNELS);
+
+        writePosition.lazySet(write + count);
+        return count;
+    }
+
+    /**
+     * Copies up to the requested number of frames out of the buffer. Consumer side only.
+     *
+     * @param destination interleaved stereo samples
+     * @param frames      maximum number of frames to read
+     * @return number of frames read
+     */
+    int read(short[] destination, int frames) {
+        long read = readPosition.get();
+        int count = Math.min(frames, (int) (writePosition.get() - read));
+        if (count <= 0)
+            return 0;
+
+        int start = (int) (read % capacity);
+        int first = Math.min(count, capacity - start);
+        System.arraycopy(samples, start * Mixer.CHANNELS, destination, 0, first * Mixer.CHANNELS);
+        if (first < count)
+            System.arraycopy(samples, 0, destination, first * Mixer.CHANNELS, (count - first) * Mixer.CHANNELS);
+
+        readPosition.set(read + count);
+
+        Thread producer = waiting;
+        if (producer != null && capacity - (int) (writePosition.get() - read - count) >= wanted)
+            LockSupport.unpark(producer);
+        return count;
+    }
+
+    /**
+     * Parks until the consumer freed the requested number of frames or the buffer was closed.
+     * Producer side only. May return early, so callers check the free space again.
+     *
+     * @param frames free frames needed, capped to the capacity
+     */
+    void awaitSpace(int frames) {
+        wanted = Math.min(frames, capacity);
+        waiting = Thread.currentThread();
+        if (!closed && free() < wanted)
+            LockSupport.park(this);
+        waiting = null;
+    }
+
+    /**
+     * Wakes the producer for good, so it can notice its voice was stopped. Any thread.
+     */
+    void close() {
+        closed = true;
+        Thread producer = waiting;
+        if (producer != null)
+            LockSupport.unpark(producer);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Gauge;
+import com.projeto_musique.agent.metrics.Histogram;
+import com.projeto_musique.agent.metrics.Metrics;
+
+/**
+ * Metrics of the audio pipeline, shared by the player classes.
+ */
+final class PlayerMetrics {
+
+    /**
+     * Live buffer running dry while playing.
+     */
+    static final Counter LIVE_UNDERRUNS = Metrics.counter("agent_live_underruns_total",
+            "Live stream buffer underruns while playing");
+
+    /**
+     * Fades from the live stream to local content.
+     */
+    static final Counter FAILOVERS = Metrics.counter("agent_failovers_total",
+            "Switches from the live stream to local content");
+
+    /**
+     * Output line running dry between two writes.
+     */
+    static final Counter OUTPUT_UNDERRUNS = Metrics.counter("agent_output_underruns_total",
+            "Output line buffer found empty before a write");
+
+    /**
+     * Fill level of the output line.
+     */
+    static final Gauge OUTPUT_FILL = Metrics.gauge("agent_output_buffer_fill_ratio",
+            "Audio queued in the output line before the last write, relative to the latency target");
+
+    /**
+     * Latency target of the output line.
+     */
+    static final Gauge OUTPUT_TARGET_SECONDS = Metrics.gauge("agent_output_target_seconds",
+            "Audio the player keeps queued in the output line");
+
+    /**
+     * Time spent in writes to the output line.
+     */
+    static final Histogram OUTPUT_WRITE_SECONDS = Metrics.histogram("agent_output_write_seconds",
+            "Time blocked writing one chunk to the output line", Histogram.SECONDS);
+
+    /**
+     * Pauses of the JVM and late wake-ups of the audio thread.
+     */
+    static final Histogram PAUSE_SECONDS = Metrics.histogram("agent_pause_seconds",
+            "Garbage collector pauses and late wake-ups of the audio thread", Histogram.SECONDS);
+
+    /**
+     * Decode time of local tracks.
+     */
+    static final Histogram LIBRARY_DECODE_SECONDS = Metrics.histogram("agent_library_decode_seconds",
+            "Time to decode one chunk of a local track", Histogram.SECONDS);
+
+    /**
+     * Read and decode time of streamed sounds.
+     */
+    static final Histogram STREAM_CHUNK_SECONDS = Metrics.histogram("agent_stream_chunk_seconds",
+            "Time to receive and decode one chunk of a streamed sound", Histogram.SECONDS);
+
+    /**
+     * Latency between an ad command and the ad being heard.
+     */
+    static final Histogram AD_LATENCY_SECONDS = Metrics.histogram("agent_ad_latency_seconds",
+            "Time from an ad command to the ad reaching the speakers", Histogram.SECONDS);
+
+    /**
+     * Ad spots waiting to be played.
+     */
+    static final Gauge AD_QUEUE_DEPTH = Metrics.gauge("agent_ad_queue_depth",
+            "Ad spots queued and not playing yet");
+
+    /**
+     * Normal ad spots cut short by an urgent one.
+     */
+    static final Counter AD_PREEMPTIONS = Metrics.counter("agent_ad_preemptions_total",
+            "Normal ad spots faded out for an urgent spot and queued again");
+
+    /**
+     * Connections of the live stream after the first one.
+     */
+    static final Counter STREAM_RECONNECTS = Metrics.counter("agent_stream_reconnects_total",
+            "Live stream connections opened again after ending or failing");
+
+    /**
+     * HTTP connections resumed underneath the decoder.
+     */
+    static final Counter STREAM_RESUMES = Metrics.counter("agent_stream_resumes_total",
+            "Stalled or dropped HTTP streams resumed underneath the decoder");
+
+    private PlayerMetrics() {
+    }
+
+    /**
+     * Registers the metrics of the player, so they are exposed before anything is recorded.
+     */
+    static void register() {
+        // Loading the class registers every metric above.
+    }
+
+}
@@ -0,0 +1,376 @@
+package com.projeto_musique.agent.core.player;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts signed 16-bit little-endian PCM from one sample rate to another with a polyphase
+ * windowed-sinc filter.
+ * <p>
+ * The ratio between the rates is reduced to {@code up / down}; every output frame is computed
+ * from the input frames around its position with the filter phase matching its fractional
+ * offset. The filter banks are computed once per ratio and shared, and every buffer is allocated
+ * up front, so reading allocates nothing.
+ * </p>
+ */
+final class Resampler extends FilterInputStream {
+
+    /**
+     * Input frames on each side of an output frame used by the filter, at unity ratio.
+     */
+    private static final int HALF_TAPS = 16;
+
+    /**
+     * Cutoff of the filter relative to the lower of the two Nyquist frequencies.
+     */
+    private static final double CUTOFF = 0.95;
+
+    /**
+     * Shape parameter of the Kaiser window.
+     */
+    private static final double KAISER_BETA = 8.0;
+
+    /**
+     * Input frames read per refill.
+     */
+    private static final int BLOCK_FRAMES = 1024;
+
+    /**
+     * Filter banks by ratio, shared by every resampler with the same ratio.
+     */
+    private static final Map<Long, float[]> banks = new ConcurrentHashMap<>();
+
+    /**
+     * Number of channels of the stream.
+     */
+    private final int channels;
+
+    /**
+     * Output frames per {@link #down} input frames.
+     */
+    private final int up;
+
+    /**
+     * Input frames per {@link #up} output frames.
+     */
+    private final int down;
+
+    /**
+     * Input frames on each side of an output frame used by the filter.
+     */
+    private final int halfTaps;
+
+    /**
+     * Coefficients of every phase, {@code 2 * halfTaps} per phase.
+     */
+    private final float[] bank;
+
+    /**
+     * Input frames around the current position, interleaved.
+     */
+    private final float[] history;
+
+    /**
+     * Input bytes waiting to be converted.
+     */
+    private final byte[] input;
+
+    /**
+     * Output bytes waiting to be read.
+     */
+    private final byte[] output;
+
+    /**
+     * Valid frames in {@link #history}.
+     */
+    private int historyFrames;
+
+    /**
+     * Input frame preceding the next output frame, as an index in {@link #history}.
+     */
+    private int position;
+
+    /**
+     * Offset of the next output frame past {@link #position}, in {@code 1 / up} of a frame.
+     */
+    private int phase;
+
+    /**
+     * Bytes of an incomplete frame at the start of {@link #input}.
+     */
+    private int inputLeftover;
+
+    /**
+     * Read position in {@link #output}.
+     */
+    private int outputPosition;
+
+    /**
+     * Valid bytes in {@link #output}.
+     */
+    private int outputLimit;
+
+    /**
+     * Set once the source reached its end.
+     */
+    private boolean ended;
+
+    /**
+     * Set once the tail of the filter was flushed after the end of the source.
+     */
+    private boolean flushed;
+
+    /**
+     * @param in       signed 16-bit little-endian PCM source
+     * @param channels number of channels of the source
+     * @param fromRate sample rate of the source
+     * @param toRate   sample rate to produce
+     */
+    Resampler(InputStream in, int channels, int fromRate, int toRate) {
+        super(in);
+        int gcd = gcd(fromRate, toRate);
+        this.channels = channels;
+        this.up = toRate / gcd;
+        this.down = fromRate / gcd;
+        this.halfTaps = (int) Math.ceil(HALF_TAPS * Math.max(1.0, (double) down / up));
+        this.bank = banks.computeIfAbsent(((long) up << 32) | down, ratio -> design(up, down, halfTaps));
+
+        int capacity = 2 * halfTaps + BLOCK_FRAMES;
+        this.history = new float[capacity * channels];
+        this.input = new byte[BLOCK_FRAMES * channels * 2];
+        this.output = new byte[(BLOCK_FRAMES * up / down + 2) * channels * 2];
+
+        // Silence before the first frame, so the first output frame lines up with it.
+        this.historyFrames = halfTaps - 1;
+        this.position = halfTaps - 1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (outputPosition == outputLimit && !refill())
+            return -1;
+        return output[outputPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (outputPosition == outputLimit && !refill())
+            return -1;
+
+        int n = Math.min(len, outputLimit - outputPosition);
+        System.arraycopy(output, outputPosition, b, off, n);
+        outputPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return outputLimit - outputPosition;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (outputPosition < outputLimit || refill())) {
+            int step = (int) Math.min(n - skipped, outputLimit - outputPosition);
+            outputPosition += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Produces the next output bytes, reading the source as needed.
+     *
+     * @return false once the source ended and every output frame was read
+     * @throws IOException if the source fails
+     */
+    private boolean refill() throws IOException {
+        while (true) {
+            outputPosition = 0;
+            outputLimit = produce() * channels * 2;
+            if (outputLimit > 0)
+                return true;
+
+            if (ended) {
+                if (flushed)
+                    return false;
+                flushed = true;
+                appendSilence(halfTaps);
+            } else {
+                fill();
+            }
+        }
+    }
+
+    /**
+     * Reads one block of the source into the history.
+     *
+     * @throws IOException if the source fails
+     */
+    private void fill() throws IOException {
+        compact();
+
+        int frameSize = channels * 2;
+        int room = Math.min(BLOCK_FRAMES, history.length / channels - historyFrames) * frameSize;
+        int r = in.read(input, inputLeftover, room - inputLeftover);
+        if (r < 0) {
+            ended = true;
+            return;
+        }
+
+        int filled = inputLeftover + r;
+        int frames = filled / frameSize;
+        int base = historyFrames * channels;
+        for (int s = 0, b = 0; s < frames * channels; s++, b += 2)
+            history[base + s] = (short) ((input[b + 1] << 8) | (input[b] & 0xff));
+
+        historyFrames += frames;
+        inputLeftover = filled - frames * frameSize;
+        System.arraycopy(input, frames * frameSize, input, 0, inputLeftover);
+    }
+
+    /**
+     * Appends silence to the history, flushing the tail of the filter.
+     *
+     * @param frames of silence
+     */
+    private void appendSilence(int frames) {
+        compact();
+        int count = Math.min(frames, history.length / channels - historyFrames);
+        Arrays.fill(history, historyFrames * channels, (historyFrames + count) * channels, 0f);
+        historyFrames += count;
+    }
+
+    /**
+     * Drops the history frames the filter no longer needs.
+     */
+    private void compact() {
+        int drop = position - (halfTaps - 1);
+        if (drop <= 0)
+            return;
+
+        System.arraycopy(history, drop * channels, history, 0, (historyFrames - drop) * channels);
+        historyFrames -= drop;
+        position -= drop;
+    }
+
+    /**
+     * Computes as many output frames as the history and the output buffer allow.
+     *
+     * @return number of frames written to {@link #output}
+     */
+    private int produce() {
+        int taps = 2 * halfTaps;
+        int capacity = output.length / (channels * 2);
+        int frames = 0;
+
+        while (frames < capacity && position + halfTaps < historyFrames) {
+            int coefficients = phase * taps;
+            int first = (position - halfTaps + 1) * channels;
+            int out = frames * channels * 2;
+
+            if (channels == 2) {
+                float left = 0, right = 0;
+                for (int t = 0, s = first; t < taps; t++, s += 2) {
+                    float c = bank[coefficients + t];
+                    left += c * history[s];
+                    right += c * history[s + 1];
+                }
+                put(out, left);
+                put(out + 2, right);
+            } else {
+                for (int ch = 0; ch < channels; ch++) {
+                    float sum = 0;
+                    for (int t = 0, s = first + ch; t < taps; t++, s += channels)
+                        sum += bank[coefficients + t] * history[s];
+                    put(out + ch * 2, sum);
+                }
+            }
+
+            frames++;
+            phase += down;
+            position += phase / up;
+            phase %= up;
+        }
+
+        return frames;
+    }
+
+    /**
+     * Writes a sample to {@link #output}, clipped to 16 bits.
+     *
+     * @param offset in the output
+     * @param value  of the sample
+     */
+    private void put(int offset, float value) {
+        int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        output[offset] = (byte) sample;
+        output[offset + 1] = (byte) (sample >> 8);
+    }
+
+    /**
+     * Designs the filter bank of a ratio: a Kaiser-windowed sinc low-pass, split in {@code up}
+     * phases and normalized to unity gain per phase.
+     *
+     * @param up       output frames per {@code down} input frames
+     * @param down     input frames per {@code up} output frames
+     * @param halfTaps input frames on each side of an output frame
+     * @return the coefficients of every phase, {@code 2 * halfTaps} per phase
+     */
+    private static float[] design(int up, int down, int halfTaps) {
+        int taps = 2 * halfTaps;
+        double cutoff = CUTOFF * Math.min(1.0, (double) up / down);
+        double norm = bessel0(KAISER_BETA);
+        float[] bank = new float[up * taps];
+
+        for (int p = 0; p < up; p++) {
+            double fraction = (double) p / up;
+            double sum = 0;
+            for (int t = 0; t < taps; t++) {
+                // Distance from the output frame to input frame t of the window.
+                double x = t - (halfTaps - 1) - fraction;
+                double r = x / halfTaps;
+                double window = Math.abs(r) >= 1 ? 0 : bessel0(KAISER_BETA * Math.sqrt(1 - r * r)) / norm;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+                bank[p * taps + t] = (float) (sinc * window);
+                sum += bank[p * taps + t];
+            }
+            for (int t = 0; t < taps; t++)
+                bank[p * taps + t] /= (float) sum;
+        }
+
+        return bank;
+    }
+
+    /**
+     * Zeroth order modified Bessel function of the first kind, used by the Kaiser window.
+     *
+     * @param x argument
+     * @return I0(x)
+     */
+    private static double bessel0(double x) {
+        double sum = 1, term = 1;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.logging.RateLimitFilter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+/**
+ * Input stream over an HTTP resource that survives stalls and dropped connections.
+ * <p>
+ * Reads time out when no byte arrives for {@link #STALL_TIMEOUT_MS}. A stalled, failed or
+ * prematurely ended connection is reopened underneath the reader: with a {@code Range} request
+ * at the current offset when the server accepts ranges, by skipping what was already read for
+ * other finite resources, or by simply carrying on for live streams, whose decoder resyncs on the
+ * next frame header. Only after {@link #MAX_RESUMES} failed attempts in a row does the reader
+ * see the error.
+ * </p>
+ */
+@Slf4j
+final class ResumableHttpStream extends InputStream {
+
+    /**
+     * Time allowed to establish a connection.
+     */
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+
+    /**
+     * Time without any byte received after which a connection is considered stalled.
+     */
+    private static final int STALL_TIMEOUT_MS = 2000;
+
+    /**
+     * Consecutive reconnection attempts before giving up.
+     */
+    private static final int MAX_RESUMES = 5;
+
+    /**
+     * Delay before a reconnection attempt, multiplied by the attempt number.
+     */
+    private static final long RESUME_DELAY_MS = 100;
+
+    /**
+     * URL of the resource.
+     */
+    private final URL url;
+
+    /**
+     * Total length of the resource, or -1 for live streams and unknown lengths.
+     */
+    private long length = -1;
+
+    /**
+     * Whether the server accepts range requests.
+     */
+    private boolean acceptsRanges;
+
+    /**
+     * Bytes delivered to the reader so far.
+     */
+    private long offset;
+
+    /**
+     * Buffer of {@link #read()}.
+     */
+    private final byte[] single = new byte[1];
+
+    /**
+     * Current connection.
+     */
+    private volatile HttpURLConnection connection;
+
+    /**
+     * Body of the current connection.
+     */
+    private InputStream body;
+
+    /**
+     * Set once the reader closed the stream.
+     */
+    private volatile boolean closed;
+
+    private ResumableHttpStream(URL url) {
+        this.url = url;
+    }
+
+    /**
+     * Opens an HTTP resource.
+     *
+     * @param url of the resource
+     * @return a stream positioned at the start of the resource
+     * @throws IOException if the first connection fails
+     */
+    static ResumableHttpStream open(URL url) throws IOException {
+        ResumableHttpStream stream = new ResumableHttpStream(url);
+        stream.connect();
+        return stream;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        int attempt = 0;
+        while (true) {
+            if (closed)
+                throw new IOException("Stream closed");
+
+            IOException failure;
+            try {
+                int count = body.read(b, off, len);
+                if (count > 0) {
+                    offset += count;
+                    return count;
+                }
+                if (length >= 0 && offset >= length)
+                    return -1;
+                failure = new IOException("Connection ended at byte " + offset);
+            } catch (SocketTimeoutException e) {
+                failure = new IOException("Stalled for " + STALL_TIMEOUT_MS + " ms at byte " + offset, e);
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (closed)
+                throw failure;
+            if (++attempt > MAX_RESUMES)
+                throw failure;
+
+            log.warn(RateLimitFilter.REPEATED, "Resuming {} at byte {} (attempt {}): {}", url, offset, attempt, failure.getMessage());
+            PlayerMetrics.STREAM_RESUMES.inc();
+            resume(attempt);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        disconnect();
+    }
+
+    /**
+     * Waits before the given attempt, then reopens the resource at the current offset.
+     * A failed attempt leaves an empty body, so the next read fails and tries again.
+     *
+     * @param attempt number of the attempt, starting at 1
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void resume(int attempt) throws InterruptedIOException {
+        disconnect();
+        try {
+            Thread.sleep(RESUME_DELAY_MS * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resuming " + url);
+        }
+
+        try {
+            connect();
+        } catch (IOException e) {
+            log.warn("Failed to resume {}: {}", url, e.toString());
+            body = InputStream.nullInputStream();
+        }
+    }
+
+    /**
+     * Opens a connection positioned at the current offset.
+     *
+     * @throws IOException if the connection fails or the server answers with an error
+     */
+    private void connect() throws IOException {
+        HttpURLConnection opened = (HttpURLConnection) url.openConnection();
+        opened.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        opened.setReadTimeout(STALL_TIMEOUT_MS);
+        if (offset > 0 && acceptsRanges)
+            opened.setRequestProperty("Range", "bytes=" + offset + "-");
+
+        int status = opened.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+            opened.disconnect();
+            throw new IOException("Unexpected status " + status + " for " + url);
+        }
+
+        InputStream stream = opened.getInputStream();
+        if (offset == 0) {
+            length = opened.getContentLengthLong();
+            acceptsRanges = "bytes".equalsIgnoreCase(opened.getHeaderField("Accept-Ranges"));
+        } else if (status == HttpURLConnection.HTTP_OK && length >= 0) {
+            stream.skipNBytes(offset);
+        }
+
+        connection = opened;
+        body = stream;
+    }
+
+    /**
+     * Closes the current connection, if any.
+     */
+    private void disconnect() {
+        HttpURLConnection current = connection;
+        if (current != null)
+            current.disconnect();
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.projeto_musique.agent.core.player;
+
+/**
+ * Plain Java loops, one sample at a time. Used wherever the Vector API is not available.
+ */
+final class ScalarKernels implements PcmKernels {
+
+    @Override
+    public void decode(byte[] source, short[] stereo, int offset, int frames, int channels) {
+        if (channels == 2) {
+            for (int s = offset * 2, b = 0; s < (offset + frames) * 2; s++, b += 2) {
+                stereo[s] = (short) ((source[b + 1] << 8) | (source[b] & 0xff));
+            }
+        } else {
+            for (int f = offset, b = 0; f < offset + frames; f++, b += 2) {
+                short sample = (short) ((source[b + 1] << 8) | (source[b] & 0xff));
+                stereo[f * 2] = sample;
+                stereo[f * 2 + 1] = sample;
+            }
+        }
+    }
+
+    @Override
+    public void accumulate(short[] samples, int[] accumulator, int count, float gain) {
+        int fixed = PcmKernels.fixedGain(gain);
+        for (int s = 0; s < count; s++) {
+            accumulator[s] += (samples[s] * fixed) >> GAIN_BITS;
+        }
+    }
+
+    @Override
+    public void encode(int[] accumulator, byte[] output, int count) {
+        for (int s = 0, b = 0; s < count; s++, b += 2) {
+            int sample = accumulator[s];
+            if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+            else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+
+            output[b] = (byte) sample;
+            output[b + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    @Override
+    public void clip(int[] accumulator, short[] output, int count) {
+        for (int s = 0; s < count; s++) {
+            output[s] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, accumulator[s]));
+        }
+    }
+
+}
@@ -8,6 +8,49 @@ import com.projeto_musique.agent.models.SoundData;
  */
 public interface SoundPlayer {
 
+    /**
+     * Receives playback events. Methods may be called from the audio thread and must return quickly.
+     */
+    interface Listener {
+
+        /**
+         * The output is open and the main sound started.
+         */
+        void onPlaying();
+
+        /**
+         * The main sound is starving or the player fell back to local content.
+         */
+        void onDegraded();
+
+        /**
+         * The main sound is healthy again.
+         */
+        void onRecovered();
+
+        /**
+         * Playback stopped on its own and will not recover.
+         *
+         * @param cause of the failure
+         */
+        void onFailed(Exception cause);
+
+    }
+
+    /**
+     * Set the listener of the playback events.
+     *
+     * @param listener to be notified
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Get the output ready while the sound data is still being fetched, so that the next play
+     * starts as soon as the data is known.
+     */
+    default void prepare() {
+    }
+
     /**
      * Play the sound passing his data.
      *
@@ -16,11 +59,30 @@ public interface SoundPlayer {
     void play(SoundData soundData);
 
     /**
-     * Play an advertisement sound from a substring URL.
+     * Queue an advertisement sound, played after the spots of the same or a higher priority
+     * queued before it.
+     *
+     * @param adUrl    URL of the ad sound
+     * @param priority of the spot
+     */
+    void playAd(String adUrl, AdPriority priority);
+
+    /**
+     * Queue a normal advertisement sound.
+     *
+     * @param adUrl URL of the ad sound
+     */
+    default void playAd(String adUrl) {
+        playAd(adUrl, AdPriority.NORMAL);
+    }
+
+    /**
+     * Prepare an advertisement so that a later play starts instantly.
      *
-     * @param adUrl URL substring of the ad sound
+     * @param adUrl URL of the ad sound
      */
-    void playAd(String adUrl);
+    default void prefetchAd(String adUrl) {
+    }
 
     /**
      * Stop the sound.
@@ -0,0 +1,131 @@
+package com.projeto_musique.agent.core.player;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Voice fed incrementally by a decoding thread through a {@link PcmRingBuffer}.
+ * <p>
+ * Only a bounded window of PCM is kept in memory: the decoder waits while the window is full
+ * and the audio thread plays whatever is already decoded. A starved voice contributes silence
+ * instead of blocking the mix, and ends once the decoder finished and the window is drained.
+ * </p>
+ */
+@Slf4j
+public class StreamingVoice extends Voice {
+
+    /**
+     * Decoded audio waiting to be mixed.
+     */
+    private final PcmRingBuffer ring;
+
+    /**
+     * Set by the decoder once no more audio will be written.
+     */
+    private volatile boolean decoderDone;
+
+    public StreamingVoice(int windowFrames, float gain) {
+        super(gain);
+        this.ring = new PcmRingBuffer(windowFrames);
+    }
+
+    /**
+     * Decodes the PCM stream into the window until it ends or the voice is stopped.
+     * Runs on the calling thread; {@code onReady} is invoked once the first
+     * {@code readyFrames} frames are buffered, or earlier if the stream is shorter.
+     *
+     * @param input       signed 16-bit little-endian PCM source
+     * @param channels    number of channels in the source, 1 or 2
+     * @param readyFrames frames to buffer before the voice is announced as ready
+     * @param onReady     callback announcing the voice can join the mix
+     * @throws IOException if the source fails before the voice became ready
+     */
+    public void decode(InputStream input, int channels, int readyFrames, Runnable onReady) throws IOException {
+        int chunkFrames = Math.min(4096, ring.capacity());
+        byte[] bytes = new byte[chunkFrames * channels * 2];
+        short[] stereo = new short[chunkFrames * Mixer.CHANNELS];
+        int frameSize = channels * 2;
+        int leftover = 0;
+        long decoded = 0;
+        boolean ready = false;
+
+        try {
+            while (!isStopped()) {
+                long start = System.nanoTime();
+                int r = input.read(bytes, leftover, bytes.length - leftover);
+                if (r < 0)
+                    break;
+                PlayerMetrics.STREAM_CHUNK_SECONDS.observeSince(start);
+
+                int filled = leftover + r;
+                int frames = filled / frameSize;
+                leftover = filled - frames * frameSize;
+
+                PcmCodec.decode(bytes, stereo, 0, frames, channels);
+                System.arraycopy(bytes, frames * frameSize, bytes, 0, leftover);
+
+                int offset = 0;
+                while (offset < frames && !isStopped()) {
+                    int written = ring.write(stereo, offset, frames - offset);
+                    if (written == 0)
+                        ring.awaitSpace(chunkFrames);
+                    offset += written;
+                }
+
+                decoded += frames;
+                if (!ready && decoded >= readyFrames) {
+                    ready = true;
+                    onReady.run();
+                }
+            }
+        } catch (IOException e) {
+            if (!ready)
+                throw e;
+            log.error("Streaming voice source failed, playing what was decoded", e);
+        } finally {
+            decoderDone = true;
+        }
+
+        if (!ready && decoded > 0 && !isStopped())
+            onReady.run();
+    }
+
+    /**
+     * @return number of decoded frames waiting to be mixed
+     */
+    public int buffered() {
+        return ring.available();
+    }
+
+    /**
+     * @return true once the decoder will not write anymore
+     */
+    public boolean isDecoderDone() {
+        return decoderDone;
+    }
+
+    /**
+     * @return true once the decoder finished and every decoded frame was read
+     */
+    public boolean isDrained() {
+        return decoderDone && ring.available() == 0;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        ring.close();
+    }
+
+    @Override
+    protected int read(short[] buffer, int frames) {
+        boolean done = decoderDone;
+        int read = ring.read(buffer, frames);
+        if (read == 0 && done)
+            return -1;
+        return read;
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.projeto_musique.agent.core.player;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Loops written with the incubating Vector API, processing as many samples per instruction as
+ * the CPU allows (SSE/AVX on x86, NEON on ARM). The tails shorter than a vector are handled
+ * one sample at a time.
+ * <p>
+ * Bytes are reinterpreted as samples in the native byte order, so this class must only be used
+ * on little-endian platforms. Loading it fails with a {@link LinkageError} when the JVM was not
+ * started with {@code --add-modules jdk.incubator.vector}.
+ * </p>
+ */
+final class VectorKernels implements PcmKernels {
+
+    /**
+     * Bytes per decode step.
+     */
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+    /**
+     * Samples per decode step, made of the bytes of one {@link #BYTES} vector.
+     */
+    private static final VectorSpecies<Short> DECODED = ShortVector.SPECIES_PREFERRED;
+
+    /**
+     * Samples per accumulate and encode step, widened to ints.
+     */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * Shorts matching {@link #INTS} lane for lane.
+     */
+    private static final VectorSpecies<Short> NARROW = VectorSpecies.of(short.class, VectorShape.forBitSize(INTS.vectorBitSize() / 2));
+
+    /**
+     * Duplicates the first half of the lanes, for mono to stereo.
+     */
+    private static final VectorShuffle<Short> LOWER_TWICE = VectorShuffle.fromOp(DECODED, lane -> lane / 2);
+
+    /**
+     * Duplicates the second half of the lanes, for mono to stereo.
+     */
+    private static final VectorShuffle<Short> UPPER_TWICE = VectorShuffle.fromOp(DECODED, lane -> DECODED.length() / 2 + lane / 2);
+
+    @Override
+    public void decode(byte[] source, short[] stereo, int offset, int frames, int channels) {
+        int step = DECODED.length();
+        int samples = frames * channels;
+        int s = 0;
+        for (; s <= samples - step; s += step) {
+            ShortVector decoded = ByteVector.fromArray(BYTES, source, s * 2).reinterpretAsShorts();
+            if (channels == 2) {
+                decoded.intoArray(stereo, offset * 2 + s);
+            } else {
+                decoded.rearrange(LOWER_TWICE).intoArray(stereo, (offset + s) * 2);
+                decoded.rearrange(UPPER_TWICE).intoArray(stereo, (offset + s) * 2 + step);
+            }
+        }
+
+        if (channels == 2) {
+            for (int b = s * 2; s < samples; s++, b += 2) {
+                stereo[offset * 2 + s] = (short) ((source[b + 1] << 8) | (source[b] & 0xff));
+            }
+        } else {
+            for (int f = offset + s, b = s * 2; f < offset + frames; f++, b += 2) {
+                short sample = (short) ((source[b + 1] << 8) | (source[b] & 0xff));
+                stereo[f * 2] = sample;
+                stereo[f * 2 + 1] = sample;
+            }
+        }
+    }
+
+    @Override
+    public void accumulate(short[] samples, int[] accumulator, int count, float gain) {
+        int fixed = PcmKernels.fixedGain(gain);
+        int step = INTS.length();
+        int s = 0;
+        for (; s <= count - step; s += step) {
+            IntVector widened = (IntVector) ShortVector.fromArray(NARROW, samples, s).convertShape(VectorOperators.S2I, INTS, 0);
+            IntVector scaled = widened.mul(fixed).lanewise(VectorOperators.ASHR, GAIN_BITS);
+            scaled.add(IntVector.fromArray(INTS, accumulator, s)).intoArray(accumulator, s);
+        }
+
+        for (; s < count; s++) {
+            accumulator[s] += (samples[s] * fixed) >> GAIN_BITS;
+        }
+    }
+
+    @Override
+    public void encode(int[] accumulator, byte[] output, int count) {
+        int step = INTS.length();
+        int s = 0;
+        for (; s <= count - step; s += step) {
+            IntVector clipped = IntVector.fromArray(INTS, accumulator, s).max(Short.MIN_VALUE).min(Short.MAX_VALUE);
+            clipped.convertShape(VectorOperators.I2S, NARROW, 0).reinterpretAsBytes().intoArray(output, s * 2);
+        }
+
+        for (int b = s * 2; s < count; s++, b += 2) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, accumulator[s]));
+            output[b] = (byte) sample;
+            output[b + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    @Override
+    public void clip(int[] accumulator, short[] output, int count) {
+        int step = INTS.length();
+        int s = 0;
+        for (; s <= count - step; s += step) {
+            IntVector clipped = IntVector.fromArray(INTS, accumulator, s).max(Short.MIN_VALUE).min(Short.MAX_VALUE);
+            ((ShortVector) clipped.convertShape(VectorOperators.I2S, NARROW, 0)).intoArray(output, s);
+        }
+
+        for (; s < count; s++) {
+            output[s] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, accumulator[s]));
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.projeto_musique.agent.core.player;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single source of audio mixed by the {@link Mixer}.
+ * <p>
+ * Voices are produced on any thread and handed to the mixer, but {@link #read(short[], int)}
+ * is only ever called from the audio thread. Implementations must not allocate while reading.
+ * Samples are always delivered as interleaved stereo 16-bit PCM.
+ * </p>
+ * <p>
+ * Gain changes are requested from any thread as {@link GainRamp}s and picked up by the audio
+ * thread at the start of the next mix cycle, which then computes the gain of every frame
+ * against the output frame position.
+ * </p>
+ */
+public abstract class Voice {
+
+    /**
+     * Gain change waiting to be picked up by the audio thread.
+     */
+    private final AtomicReference<GainRamp> pendingRamp = new AtomicReference<>();
+
+    /**
+     * Gain outside of ramps, or target of the ramp in progress.
+     */
+    private volatile float gain;
+
+    /**
+     * Set when the voice should be removed from the mix on the next cycle.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Ramp in progress. Only touched by the audio thread.
+     */
+    private GainRamp ramp;
+
+    /**
+     * Gain at the start of the ramp in progress. Only touched by the audio thread.
+     */
+    private float rampFrom;
+
+    /**
+     * Output frame at which the ramp in progress starts. Only touched by the audio thread.
+     */
+    private long rampStart;
+
+    protected Voice(float gain) {
+        this.gain = gain;
+    }
+
+    /**
+     * Reads up to {@code frames} stereo frames into the buffer.
+     *
+     * @param buffer destination for interleaved stereo samples
+     * @param frames maximum number of frames to read
+     * @return number of frames read, or -1 when the voice has no more audio
+     */
+    protected abstract int read(short[] buffer, int frames);
+
+    /**
+     * Releases any resource held by the voice. Called once, after the voice leaves the mix.
+     */
+    protected void close() {
+    }
+
+    /**
+     * @return the gain outside of ramps, or the target of the ramp in progress
+     */
+    public float getGain() {
+        return gain;
+    }
+
+    /**
+     * Sets the gain from the next mix cycle on, without a ramp.
+     *
+     * @param gain linear gain (0.0 to 1.0)
+     */
+    public void setGain(float gain) {
+        rampGain(new GainRamp(gain, GainRamp.NOW, 0, GainRamp.Curve.LINEAR));
+    }
+
+    /**
+     * Ramps the gain to a target, starting with the next mix cycle.
+     *
+     * @param target         gain to reach
+     * @param durationFrames length of the ramp in frames
+     * @param curve          shape of the ramp
+     */
+    public void fadeTo(float target, int durationFrames, GainRamp.Curve curve) {
+        rampGain(new GainRamp(target, GainRamp.NOW, durationFrames, curve));
+    }
+
+    /**
+     * Requests a gain envelope, replacing any ramp not picked up yet.
+     *
+     * @param ramp to be applied
+     */
+    public void rampGain(GainRamp ramp) {
+        pendingRamp.set(ramp);
+    }
+
+    /**
+     * Asks the mixer to drop this voice.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Picks up a requested ramp and tells whether the gain varies during the cycle. Audio thread only.
+     *
+     * @param position output frame of the start of the cycle
+     * @param frames   length of the cycle
+     * @return true if {@link #gainAt(long)} must be evaluated per frame, false if the gain is constant
+     */
+    final boolean prepareGain(long position, int frames) {
+        GainRamp requested = pendingRamp.getAndSet(null);
+        if (requested != null) {
+            rampFrom = ramp == null ? gain : gainAt(position);
+            rampStart = requested.startFrame() == GainRamp.NOW ? position : requested.startFrame();
+            ramp = requested;
+            gain = requested.target();
+        }
+
+        if (ramp == null)
+            return false;
+
+        if (position >= rampStart + ramp.durationFrames()) {
+            ramp = null;
+            return false;
+        }
+
+        return position + frames > rampStart;
+    }
+
+    /**
+     * Gain of the voice at an output frame. Audio thread only.
+     *
+     * @param frame output frame position
+     * @return linear gain at that frame
+     */
+    final float gainAt(long frame) {
+        if (ramp == null)
+            return gain;
+        if (frame < rampStart)
+            return rampFrom;
+
+        long elapsed = frame - rampStart;
+        if (elapsed >= ramp.durationFrames())
+            return ramp.target();
+
+        float t = (float) elapsed / ramp.durationFrames();
+        return rampFrom + (ramp.target() - rampFrom) * ramp.curve().apply(t);
+    }
+
+}
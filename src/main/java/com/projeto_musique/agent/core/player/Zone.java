@@ -0,0 +1,75 @@
+package com.projeto_musique.agent.core.player;
+
+import com.projeto_musique.agent.Properties;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Area of a store served by its own output device.
+ *
+ * @param name   of the zone, used in the logs
+ * @param device part of the name of the audio device, or null for the default device;
+ *               {@code "null"} or {@code "wav:<path>"} for a headless output, see {@link HeadlessLine}
+ * @param gain   linear gain of everything played in the zone (0.0 to 1.0)
+ * @param ads    whether ads are played in the zone
+ */
+public record Zone(String name, String device, float gain, boolean ads) {
+
+    /**
+     * Single zone on the default device, playing everything at full volume.
+     */
+    public static final Zone DEFAULT = new Zone("main", null, 1.0f, true);
+
+    /**
+     * Parses the zones of the configuration. Zones are separated by {@code ;} and written
+     * {@code name|device|gain|ads}, for instance {@code floor|PCH|1.0|true;cafe|USB|0.6|false}.
+     * The device is matched against the names of the audio devices; a blank device is the default
+     * one. For runs without a sound card, the device {@code null} drops the audio and
+     * {@code wav:<path>} writes it to a file, both played on a clock sped up by
+     * {@value Properties#ENV_HEADLESS_SPEED_KEY}. Without zones, the default device plays everything.
+     *
+     * @param value of {@value Properties#ENV_OUTPUT_ZONES_KEY}
+     * @return the zones, at least one
+     */
+    public static List<Zone> parseAll(String value) {
+        List<Zone> zones = new ArrayList<>();
+        for (String entry : value.split(";")) {
+            if (entry.isBlank())
+                continue;
+
+            String[] fields = entry.split("\\|", -1);
+            String device = fields.length > 1 && !fields[1].isBlank() ? fields[1].trim() : null;
+            float gain = fields.length > 2 && !fields[2].isBlank() ? Float.parseFloat(fields[2].trim()) : 1.0f;
+            boolean ads = fields.length <= 3 || fields[3].isBlank() || Boolean.parseBoolean(fields[3].trim());
+            zones.add(new Zone(fields[0].trim(), device, gain, ads));
+        }
+
+        if (zones.isEmpty())
+            zones.add(DEFAULT);
+        return zones;
+    }
+
+    /**
+     * Finds the first audio device whose name contains the device of the zone.
+     *
+     * @param info of the line to open on it
+     * @return the device
+     * @throws LineUnavailableException if no such device can play the line
+     */
+    javax.sound.sampled.Mixer findDevice(Line.Info info) throws LineUnavailableException {
+        String wanted = device.toLowerCase(Locale.ROOT);
+        for (javax.sound.sampled.Mixer.Info candidate : AudioSystem.getMixerInfo()) {
+            javax.sound.sampled.Mixer mixer = AudioSystem.getMixer(candidate);
+            if (candidate.getName().toLowerCase(Locale.ROOT).contains(wanted) && mixer.isLineSupported(info))
+                return mixer;
+        }
+
+        throw new LineUnavailableException("No output device matching '" + device + "' for zone " + name);
+    }
+
+}
@@ -0,0 +1,348 @@
+package com.projeto_musique.agent.core.player;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Output line of one {@link Zone}, fed by the audio thread of the {@link MP3} player.
+ * <p>
+ * The zone mixes the main bus, and the ad bus when ads are routed to it, with its own gain, and
+ * ducks its main bus while ads play. Devices do not share a clock, so a zone drifting away from
+ * the first zone is kept in step by repeating or dropping a single frame now and then.
+ * </p>
+ * <p>
+ * The drift is measured from how many frames each line played since a common starting point.
+ * Lines report their position in steps of a period, so the difference is smoothed over several
+ * seconds before it is acted on, and at most one frame is corrected every 100 milliseconds.
+ * </p>
+ */
+@Slf4j
+final class ZoneOutput {
+
+    /**
+     * Smoothed drift from the first zone above which a frame is repeated or dropped, about 5 milliseconds.
+     */
+    private static final int DRIFT_FRAMES = Decoder.SAMPLE_RATE / 200;
+
+    /**
+     * Time constant of the smoothing of the drift, 5 seconds.
+     */
+    private static final int DRIFT_SMOOTHING_FRAMES = Decoder.SAMPLE_RATE * 5;
+
+    /**
+     * Frames written between two corrections at least, 100 milliseconds.
+     */
+    private static final int CORRECTION_INTERVAL_FRAMES = Decoder.SAMPLE_RATE / 10;
+
+    /**
+     * Jump of the measured drift after which it is measured again from scratch, 100 milliseconds.
+     * Only an underrun or a flush of a line moves it that fast.
+     */
+    private static final int RESYNC_FRAMES = Decoder.SAMPLE_RATE / 10;
+
+    /**
+     * Configuration of the zone.
+     */
+    private final Zone zone;
+
+    /**
+     * Mixes the buses for this zone.
+     */
+    private final Mixer mixer;
+
+    /**
+     * PCM written to the line, with room for a repeated frame.
+     */
+    private final byte[] output;
+
+    /**
+     * Voice of the main bus while playing.
+     */
+    private volatile Voice main;
+
+    /**
+     * Output line opened ahead of the next play, if any.
+     */
+    private volatile CompletableFuture<SourceDataLine> preparedLine;
+
+    /**
+     * Line being written while playing. Only written by the audio thread.
+     */
+    private volatile SourceDataLine line;
+
+    /**
+     * Set once the drift is being measured. Only touched by the audio thread.
+     */
+    private boolean measuring;
+
+    /**
+     * Difference between the position of the line and the one of the first zone when the drift
+     * started being measured. Only touched by the audio thread.
+     */
+    private long positionOffset;
+
+    /**
+     * Frames repeated minus frames dropped since the drift started being measured. Only touched
+     * by the audio thread.
+     */
+    private long corrected;
+
+    /**
+     * Smoothed drift from the first zone, in frames. Only touched by the audio thread.
+     */
+    private double drift;
+
+    /**
+     * Frames written since the last correction. Only touched by the audio thread.
+     */
+    private int sinceCorrection;
+
+    /**
+     * @param zone      configuration of the zone
+     * @param maxFrames largest number of frames written per cycle
+     */
+    ZoneOutput(Zone zone, int maxFrames) {
+        this.zone = zone;
+        this.mixer = new Mixer(maxFrames, voice -> {
+        });
+        this.output = new byte[(maxFrames + 1) * Mixer.FRAME_SIZE];
+    }
+
+    /**
+     * @return configuration of the zone
+     */
+    Zone zone() {
+        return zone;
+    }
+
+    /**
+     * Opens the line in the background, so the next play does not wait for it.
+     *
+     * @param lineFrames size of the line buffer, in frames
+     * @param executor   running the opening
+     */
+    void prepare(int lineFrames, Executor executor) {
+        if (preparedLine != null)
+            return;
+
+        try {
+            preparedLine = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return openLine(lineFrames);
+                } catch (LineUnavailableException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            log.warn("Unable to open the output line of zone {} ahead of time: workers are saturated", zone.name());
+        }
+    }
+
+    /**
+     * Starts the line and plugs the buses into the zone.
+     *
+     * @param mainBus    samples of the main sound of the current cycle
+     * @param adBus      samples of the ads of the current cycle
+     * @param lineFrames size of the line buffer, in frames
+     * @throws LineUnavailableException if the device of the zone is not available
+     */
+    void start(short[] mainBus, short[] adBus, int lineFrames) throws LineUnavailableException {
+        line = takePreparedLine(lineFrames);
+        line.start();
+
+        Voice voice = new BusVoice(mainBus, zone.gain());
+        main = voice;
+        mixer.addVoice(voice);
+        if (zone.ads())
+            mixer.addVoice(new BusVoice(adBus, zone.gain()));
+    }
+
+    /**
+     * @return frames queued in the line
+     */
+    int queuedFrames() {
+        return (line.getBufferSize() - line.available()) / Mixer.FRAME_SIZE;
+    }
+
+    /**
+     * @return size of the line buffer, in frames
+     */
+    int bufferFrames() {
+        return line.getBufferSize() / Mixer.FRAME_SIZE;
+    }
+
+    /**
+     * @param frames of audio
+     * @return how long the line takes to play them, in nanoseconds
+     */
+    long durationNanos(int frames) {
+        if (line instanceof HeadlessLine headless)
+            return headless.durationNanos(frames);
+        return (long) frames * 1_000_000_000L / Decoder.SAMPLE_RATE;
+    }
+
+    /**
+     * Mixes the buses and writes them to the line, one frame longer or shorter if the zone
+     * drifted away from the first one.
+     *
+     * @param frames    in the buses
+     * @param reference first zone, pacing the others
+     */
+    void write(int frames, ZoneOutput reference) {
+        int length = mixer.mix(output, frames);
+
+        int correction = reference == this ? 0 : correction(frames, reference.line.getLongFramePosition());
+        if (correction > 0) {
+            System.arraycopy(output, length - Mixer.FRAME_SIZE, output, length, Mixer.FRAME_SIZE);
+            length += Mixer.FRAME_SIZE;
+        } else if (correction < 0) {
+            length -= Mixer.FRAME_SIZE;
+        }
+
+        line.write(output, 0, length);
+    }
+
+    /**
+     * Updates the drift from the first zone and tells whether a frame should be corrected.
+     * A zone whose line played more frames than the first one is ahead and gets a frame repeated.
+     *
+     * @param frames            about to be written
+     * @param referencePosition frames played by the line of the first zone
+     * @return 1 to repeat a frame, -1 to drop one, 0 to leave the chunk as is
+     */
+    private int correction(int frames, long referencePosition) {
+        long position = line.getLongFramePosition();
+        if (position <= 0 || referencePosition <= 0)
+            return 0;
+
+        double measured = position - referencePosition - positionOffset - corrected;
+        if (!measuring || Math.abs(measured - drift) > RESYNC_FRAMES) {
+            measuring = true;
+            positionOffset = position - referencePosition;
+            corrected = 0;
+            drift = 0;
+            sinceCorrection = 0;
+            return 0;
+        }
+
+        drift += (measured - drift) * Math.min(1.0, (double) frames / DRIFT_SMOOTHING_FRAMES);
+        sinceCorrection += frames;
+        if (sinceCorrection < CORRECTION_INTERVAL_FRAMES || Math.abs(drift) <= DRIFT_FRAMES)
+            return 0;
+
+        int correction = drift > 0 ? 1 : -1;
+        corrected += correction;
+        drift -= correction;
+        sinceCorrection = 0;
+        return correction;
+    }
+
+    /**
+     * Ramps the main bus of the zone, relative to the gain of the zone.
+     *
+     * @param gain           to reach
+     * @param durationFrames length of the ramp
+     */
+    void fadeMain(float gain, int durationFrames) {
+        Voice voice = main;
+        if (voice != null)
+            voice.fadeTo(zone.gain() * gain, durationFrames, GainRamp.Curve.S_CURVE);
+    }
+
+    /**
+     * Unplugs the buses and closes the line.
+     *
+     * @param drain whether to play what is queued in the line first
+     */
+    void close(boolean drain) {
+        main = null;
+        mixer.clear();
+        measuring = false;
+        if (line == null)
+            return;
+
+        if (drain)
+            line.drain();
+        line.close();
+        line = null;
+    }
+
+    /**
+     * Stops and flushes the line from another thread, so a write or a drain the audio thread is
+     * blocked in returns. The audio thread still closes the line.
+     */
+    void abort() {
+        SourceDataLine playing = line;
+        if (playing != null) {
+            playing.stop();
+            playing.flush();
+        }
+    }
+
+    /**
+     * Closes the line opened by {@link #prepare(int, Executor)} if playback will not use it.
+     */
+    void discardPreparedLine() {
+        CompletableFuture<SourceDataLine> prepared = preparedLine;
+        preparedLine = null;
+        if (prepared != null)
+            prepared.thenAccept(SourceDataLine::close);
+    }
+
+    /**
+     * Returns the line opened by {@link #prepare(int, Executor)}, or opens one now if there is
+     * none or it failed.
+     *
+     * @param lineFrames size of the line buffer, in frames
+     * @return the open line
+     * @throws LineUnavailableException if the device of the zone is not available
+     */
+    private SourceDataLine takePreparedLine(int lineFrames) throws LineUnavailableException {
+        CompletableFuture<SourceDataLine> prepared = preparedLine;
+        preparedLine = null;
+        if (prepared != null) {
+            try {
+                return prepared.join();
+            } catch (Exception e) {
+                log.warn("Output line of zone {} prepared ahead of time is not usable, opening it again: {}", zone.name(), e.getMessage());
+            }
+        }
+
+        return openLine(lineFrames);
+    }
+
+    /**
+     * Opens the line of the zone in the format produced by the mixer, without starting it.
+     * A headless device gets a {@link HeadlessLine} instead of a line of the sound card.
+     *
+     * @param lineFrames size of the line buffer, in frames
+     * @return the open line
+     * @throws LineUnavailableException if the device of the zone is not available
+     */
+    private SourceDataLine openLine(int lineFrames) throws LineUnavailableException {
+        AudioFormat format = Decoder.format(Mixer.CHANNELS);
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+
+        SourceDataLine opened;
+        if (HeadlessLine.handles(zone.device())) {
+            opened = HeadlessLine.create(zone.device(), format);
+        } else if (zone.device() == null) {
+            opened = (SourceDataLine) AudioSystem.getLine(info);
+        } else {
+            javax.sound.sampled.Mixer device = zone.findDevice(info);
+            log.debug("Zone {} plays on {}", zone.name(), device.getMixerInfo().getName());
+            opened = (SourceDataLine) device.getLine(info);
+        }
+        opened.open(format, lineFrames * Mixer.FRAME_SIZE);
+        return opened;
+    }
+
+}
@@ -1,31 +1,92 @@
 package com.projeto_musique.agent.http;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.projeto_musique.agent.logging.RateLimitFilter;
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Histogram;
+import com.projeto_musique.agent.metrics.Metrics;
 import com.projeto_musique.agent.models.exceptions.RequestException;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Implementation of an http request sender.
+ * <p>
+ * Requests are sent asynchronously over a single shared client, which keeps connections alive
+ * between requests and prefers HTTP/2. Responses are negotiated with gzip and parsed straight
+ * from the response stream, without buffering the body into a string first.
+ * </p>
  */
 @Slf4j
 public class Client {
 
+    /**
+     * Time allowed to establish a connection.
+     */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * Time allowed for a whole request, until the response headers are received.
+     */
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * Time allowed for a whole request, until its response body is parsed. A server stalling
+     * in the middle of the body is given up after it.
+     */
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(20);
+
+    /**
+     * Latency of the requests.
+     */
+    private static final Histogram REQUEST_SECONDS = Metrics.histogram("agent_http_request_seconds",
+            "Time from sending a request to its response being parsed", Histogram.SECONDS);
+
+    /**
+     * Requests that failed or were answered with an error.
+     */
+    private static final Counter REQUEST_ERRORS = Metrics.counter("agent_http_request_errors_total",
+            "Requests that failed or were answered with a status of 300 or more");
+
     /**
      * Default mapper by jackson.
      */
     private static final ObjectMapper mapper = new ObjectMapper();
 
     /**
-     * Default http client by java.
+     * Readers of the response types, created once per type.
+     */
+    private static final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    /**
+     * Shared http client, reusing its connections across requests.
      */
-    private static final HttpClient client = HttpClient.newHttpClient();
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
 
     /**
      * Client method to send requests with body.
@@ -39,25 +100,7 @@ public class Client {
      * @throws RequestException if status code is bigger or equals than 300, an error message with the response will be triggered
      */
     public static <T> T send(String uri, Object body, Map<String, String> headers, Method method, Class<T> responseModelType) throws RequestException {
-        log.debug("Sending {} request to: {} with body: {}", method.name(), uri, body);
-
-        try {
-            String jsonBody = mapper.writeValueAsString(body);
-
-            HttpRequest.Builder builder = HttpRequest.newBuilder()
-                    .uri(URI.create(uri))
-                    .header("Content-Type", "application/json");
-
-            headers.forEach(builder::header);
-
-            HttpRequest request = builder.method(method.name(), HttpRequest.BodyPublishers.ofString(jsonBody))
-                    .build();
-
-            return sendRequest(request, responseModelType);
-        } catch (IOException | InterruptedException e) {
-            log.error("Error sending request", e);
-            throw new RequestException(e.getMessage(), e);
-        }
+        return await(sendAsync(uri, body, headers, method, responseModelType));
     }
 
     /**
@@ -71,45 +114,220 @@ public class Client {
      * @throws RequestException if status code is bigger or equals than 300, an error message with the response will be triggered
      */
     public static <T> T send(String uri, Map<String, String> headers, Method method, Class<T> responseModelType) throws RequestException {
-        log.debug("Sending {} request to: {} without body", method.name(), uri);
+        return await(sendAsync(uri, headers, method, responseModelType));
+    }
+
+    /**
+     * Sends a request with body without blocking.
+     *
+     * @param uri               of the request
+     * @param body              of the request
+     * @param method            used by http client
+     * @param responseModelType the type of response expected
+     * @param <T>               generic for the response expected
+     * @return the response model, or a future failed with a {@link RequestException}
+     */
+    public static <T> CompletableFuture<T> sendAsync(String uri, Object body, Map<String, String> headers, Method method, Class<T> responseModelType) {
+        log.debug(RateLimitFilter.REPEATED, "Sending {} request to: {} with body", method.name(), uri);
 
+        byte[] jsonBody;
         try {
-            HttpRequest.Builder builder = HttpRequest.newBuilder()
-                    .uri(URI.create(uri))
-                    .header("Content-Type", "application/json");
+            jsonBody = mapper.writeValueAsBytes(body);
+        } catch (IOException e) {
+            log.error("Error serializing request body", e);
+            return CompletableFuture.failedFuture(new RequestException(e.getMessage(), e));
+        }
+
+        return sendRequest(newRequest(uri, headers, method, HttpRequest.BodyPublishers.ofByteArray(jsonBody)), responseModelType);
+    }
 
-            headers.forEach(builder::header);
+    /**
+     * Sends a request without body without blocking.
+     *
+     * @param uri               of the request
+     * @param method            used by http client
+     * @param responseModelType the type of response expected
+     * @param <T>               generic for the response expected
+     * @return the response model, or a future failed with a {@link RequestException}
+     */
+    public static <T> CompletableFuture<T> sendAsync(String uri, Map<String, String> headers, Method method, Class<T> responseModelType) {
+        log.debug(RateLimitFilter.REPEATED, "Sending {} request to: {} without body", method.name(), uri);
 
-            HttpRequest request = builder.method(method.name(), HttpRequest.BodyPublishers.noBody())
-                    .build();
+        return sendRequest(newRequest(uri, headers, method, HttpRequest.BodyPublishers.noBody()), responseModelType);
+    }
 
-            return sendRequest(request, responseModelType);
-        } catch (IOException | InterruptedException e) {
-            log.error("Error sending request", e);
-            throw new RequestException(e.getMessage(), e);
+    /**
+     * Waits for a request sent with one of the async methods.
+     *
+     * @param response future of the response model
+     * @param <T>      generic for the response expected
+     * @return the response model
+     * @throws RequestException if the request failed or the wait was interrupted
+     */
+    public static <T> T await(CompletableFuture<T> response) throws RequestException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.cancel(true);
+            throw new RequestException("Interrupted while waiting for response", e);
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof RequestException requestException)
+                throw requestException;
+            throw new RequestException(describe(cause), cause);
         }
     }
 
     /**
-     * Private method to send the request and handle the response.
+     * Builds a request with the default headers.
+     *
+     * @param uri       of the request
+     * @param headers   added to the request
+     * @param method    used by http client
+     * @param publisher of the request body
+     * @return the request
+     */
+    private static HttpRequest newRequest(String uri, Map<String, String> headers, Method method, HttpRequest.BodyPublisher publisher) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(uri))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip");
+
+        headers.forEach(builder::header);
+
+        return builder.method(method.name(), publisher).build();
+    }
+
+    /**
+     * Private method to send the request and handle the response. The response is abandoned,
+     * and its connection released, if it is not parsed within {@link #RESPONSE_TIMEOUT}.
      *
      * @param request           to be sent
      * @param responseModelType the type of response expected
      * @param <T>               generic for the response expected
+     * @return the response model, or a future failed with a {@link RequestException}
+     * if the request fails or the response status code is 300 or greater
+     */
+    private static <T> CompletableFuture<T> sendRequest(HttpRequest request, Class<T> responseModelType) {
+        long start = System.nanoTime();
+
+        CompletableFuture<HttpResponse<InputStream>> exchange = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        return exchange
+                .thenApply(response -> {
+                    log.debug(RateLimitFilter.REPEATED, "Response received with status: {} in {} ms", response.statusCode(), (System.nanoTime() - start) / 1_000_000);
+                    return readResponse(response, responseModelType);
+                })
+                .orTimeout(RESPONSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((result, e) -> {
+                    REQUEST_SECONDS.observeSince(start);
+                    if (e != null)
+                        REQUEST_ERRORS.inc();
+                    if (e instanceof TimeoutException)
+                        abort(exchange);
+                })
+                .exceptionallyCompose(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof UncheckedIOException unchecked)
+                        cause = unchecked.getCause();
+                    if (cause instanceof RequestException)
+                        return CompletableFuture.failedFuture(cause);
+                    if (cause instanceof TimeoutException) {
+                        log.error("No response from {} within {} s", request.uri(), RESPONSE_TIMEOUT.toSeconds());
+                        return CompletableFuture.failedFuture(new RequestException("Response timed out after " + RESPONSE_TIMEOUT.toSeconds() + " s", cause));
+                    }
+
+                    log.error("Error sending request", cause);
+                    return CompletableFuture.failedFuture(new RequestException(describe(cause), cause));
+                });
+    }
+
+    /**
+     * Abandons a timed out exchange: cancels it while the headers are awaited, or closes the
+     * body so the thread parsing it stops waiting for the rest.
+     *
+     * @param exchange of the request
+     */
+    private static void abort(CompletableFuture<HttpResponse<InputStream>> exchange) {
+        exchange.cancel(true);
+        exchange.thenAccept(response -> {
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                log.debug("Unable to close the abandoned response: {}", e.toString());
+            }
+        });
+    }
+
+    /**
+     * Parses the response body, or fails with its content if the status code is 300 or greater.
+     *
+     * @param response          with the body still to be read
+     * @param responseModelType the type of response expected
+     * @param <T>               generic for the response expected
      * @return the response model
-     * @throws IOException          If an I/O error occurs when sending or receiving
-     * @throws InterruptedException If the operation is interrupted
-     * @throws RequestException     If the response status code is 300 or greater
      */
-    private static <T> T sendRequest(HttpRequest request, Class<T> responseModelType) throws IOException, InterruptedException, RequestException {
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    private static <T> T readResponse(HttpResponse<InputStream> response, Class<T> responseModelType) {
+        try (InputStream body = decode(response)) {
+            if (response.statusCode() >= 300)
+                throw new CompletionException(new RequestException("Status code: " + response.statusCode() + " " + new String(body.readAllBytes(), StandardCharsets.UTF_8),
+                        response.statusCode(), retryAfter(response)));
+
+            return readers.computeIfAbsent(responseModelType, mapper::readerFor).readValue(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Undoes the content encoding of a response.
+     *
+     * @param response to be read
+     * @return the decoded body
+     * @throws IOException if the gzip header cannot be read
+     */
+    private static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+        boolean gzip = response.headers().firstValue("Content-Encoding")
+                .map("gzip"::equalsIgnoreCase)
+                .orElse(false);
 
-        log.debug("Response received with status: {} and body: {}", response.statusCode(), response.body());
+        return gzip ? new GZIPInputStream(response.body()) : response.body();
+    }
 
-        if (response.statusCode() >= 300)
-            throw new RequestException("Status code: " + response.statusCode() + " " + response.body());
+    /**
+     * Reads the {@code Retry-After} header of a response, given either in seconds or as an http date.
+     *
+     * @param response to be read
+     * @return the delay asked by the server, or null if there is none or it cannot be parsed
+     */
+    private static Duration retryAfter(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").map(String::trim).orElse(null);
+        if (value == null || value.isEmpty())
+            return null;
 
-        return mapper.readValue(response.body(), responseModelType);
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            try {
+                Duration delay = Duration.between(Instant.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+                return delay.isNegative() ? Duration.ZERO : delay;
+            } catch (DateTimeParseException ignored) {
+                log.debug("Ignoring unreadable Retry-After: {}", value);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Message of a failure, falling back to its type for exceptions without message.
+     *
+     * @param cause of the failure
+     * @return a description of the failure
+     */
+    private static String describe(Throwable cause) {
+        return cause.getMessage() != null ? cause.getMessage() : cause.toString();
     }
 
 }
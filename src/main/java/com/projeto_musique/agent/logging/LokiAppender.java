@@ -0,0 +1,595 @@
+package com.projeto_musique.agent.logging;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Gauge;
+import com.projeto_musique.agent.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Ships the log events to Loki in compressed batches, spooling them to disk while Loki cannot be
+ * reached.
+ * <p>
+ * Events are formatted by the layout and collected into a batch, which is closed once it holds
+ * {@link #setBatchSize(int) batchSize} events or is {@link #setFlushMillis(long) flushMillis} old.
+ * Closed batches are encoded as a gzipped push request and sent by a shipper thread. A batch that
+ * cannot be sent is written to the spool directory as is; the shipper then waits with an
+ * exponential backoff before trying again, and once Loki accepts a batch, sends the spooled ones
+ * oldest first. The spool is bounded, its oldest batches being deleted first.
+ * </p>
+ * <p>
+ * The appender does nothing if no URL is configured. It must not log through SLF4J, its
+ * problems are reported to the logback status instead.
+ * </p>
+ */
+public class LokiAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+    /**
+     * Extension of the spooled batches.
+     */
+    private static final String SPOOL_EXTENSION = ".json.gz";
+
+    /**
+     * Extension of a batch being written to the spool.
+     */
+    private static final String PART_EXTENSION = ".part";
+
+    /**
+     * Batches of events kept in memory while a push is in progress, before new events are dropped.
+     */
+    private static final int MAX_PENDING_BATCHES = 10;
+
+    /**
+     * Shortest wait after a failed push.
+     */
+    private static final long MIN_BACKOFF_MS = 2000;
+
+    /**
+     * Longest wait after a failed push.
+     */
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    /**
+     * Batches written to the spool.
+     */
+    private static final Counter SPOOLED = Metrics.counter("agent_log_batches_spooled_total",
+            "Log batches written to disk because Loki could not be reached");
+
+    /**
+     * Batches accepted by Loki.
+     */
+    private static final Counter SHIPPED = Metrics.counter("agent_log_batches_shipped_total",
+            "Log batches accepted by Loki, spooled ones included");
+
+    /**
+     * Size of the spool.
+     */
+    private static final Gauge SPOOL_BYTES = Metrics.gauge("agent_log_spool_bytes",
+            "Log batches waiting on disk to be sent to Loki");
+
+    /**
+     * Encoder of the push requests.
+     */
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Events of the batch being collected, guarded by this.
+     */
+    private final List<Entry> batch = new ArrayList<>();
+
+    /**
+     * Spooled batches, oldest first, loaded from the directory once at start. Guarded by itself.
+     */
+    private final ArrayDeque<SpooledBatch> spooled = new ArrayDeque<>();
+
+    /**
+     * Total size of the spooled batches. Guarded by {@link #spooled}.
+     */
+    private long spoolBytes;
+
+    /**
+     * Sequence number of the spooled batches, telling apart those spooled in the same millisecond.
+     */
+    private final AtomicInteger spoolSequence = new AtomicInteger();
+
+    /**
+     * Push endpoint of Loki, blank to disable the appender.
+     */
+    private String url;
+
+    /**
+     * Labels of every stream, written {@code key=value,key=value}.
+     */
+    private String labels = "app=musique-agent";
+
+    /**
+     * Formats the events into log lines.
+     */
+    private Layout<ILoggingEvent> layout;
+
+    /**
+     * Events per batch.
+     */
+    private int batchSize = 500;
+
+    /**
+     * Longest time an event waits in a batch before the batch is sent.
+     */
+    private long flushMillis = 2000;
+
+    /**
+     * Directory of the spooled batches.
+     */
+    private String spoolDirectory = "cache/log-spool";
+
+    /**
+     * Largest size of the spool.
+     */
+    private long spoolMaxBytes = 64L * 1024 * 1024;
+
+    /**
+     * Labels parsed from {@link #labels}.
+     */
+    private Map<String, String> parsedLabels;
+
+    /**
+     * Client sending the batches.
+     */
+    private HttpClient client;
+
+    /**
+     * Spool directory, resolved.
+     */
+    private Path spool;
+
+    /**
+     * Thread sending the batches.
+     */
+    private Thread shipper;
+
+    /**
+     * {@link System#nanoTime()} when the first event of the batch was collected, guarded by this.
+     */
+    private long batchStart;
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public void setLabels(String labels) {
+        this.labels = labels;
+    }
+
+    public void setLayout(Layout<ILoggingEvent> layout) {
+        this.layout = layout;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setFlushMillis(long flushMillis) {
+        this.flushMillis = flushMillis;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+
+    @Override
+    public void start() {
+        if (layout == null) {
+            addError("No layout set for " + getName());
+            return;
+        }
+        super.start();
+
+        if (url == null || url.isBlank()) {
+            addInfo("No Loki URL configured, " + getName() + " is disabled");
+            return;
+        }
+
+        parsedLabels = parseLabels(labels);
+        spool = Path.of(spoolDirectory);
+        try {
+            Files.createDirectories(spool);
+        } catch (IOException e) {
+            addWarn("Log spool unavailable, batches will be dropped while Loki is unreachable: " + spool, e);
+            spool = null;
+        }
+        loadSpool();
+
+        client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+
+        shipper = new Thread(this::ship, "Log-Shipper");
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted())
+            return;
+        super.stop();
+
+        if (shipper != null) {
+            synchronized (this) {
+                notifyAll();
+            }
+            try {
+                shipper.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            // Whatever is left is spooled for the next run.
+            byte[] last = takeBatch(true);
+            if (last != null)
+                spool(last);
+        }
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        if (shipper == null)
+            return;
+
+        Entry entry = new Entry(event.getTimeStamp(), event.getLevel().toString().toLowerCase(Locale.ROOT), layout.doLayout(event));
+        synchronized (this) {
+            if (batch.size() >= batchSize * MAX_PENDING_BATCHES)
+                return;
+            if (batch.isEmpty())
+                batchStart = System.nanoTime();
+            batch.add(entry);
+            if (batch.size() >= batchSize)
+                notifyAll();
+        }
+    }
+
+    /**
+     * Sends the batches until the appender is stopped. While batches are spooled, new ones are
+     * spooled behind them, so Loki receives every stream in order.
+     */
+    private void ship() {
+        long backoff = 0;
+        long retryAt = 0;
+
+        while (isStarted()) {
+            byte[] payload;
+            try {
+                payload = awaitBatch();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (System.nanoTime() < retryAt) {
+                if (payload != null)
+                    spool(payload);
+                continue;
+            }
+
+            boolean delivered;
+            if (payload != null && isSpoolEmpty()) {
+                delivered = push(payload);
+                if (!delivered)
+                    spool(payload);
+            } else {
+                if (payload != null)
+                    spool(payload);
+                delivered = sendSpooled();
+            }
+
+            if (delivered) {
+                backoff = 0;
+            } else {
+                backoff = backoff == 0 ? MIN_BACKOFF_MS : Math.min(MAX_BACKOFF_MS, backoff * 2);
+                retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            }
+        }
+    }
+
+    /**
+     * Waits until the batch is full or old enough, then takes it.
+     *
+     * @return the batch encoded as a push request, or null if there was nothing to send
+     * @throws InterruptedException if the appender is stopping
+     */
+    private byte[] awaitBatch() throws InterruptedException {
+        synchronized (this) {
+            long flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+            while (batch.size() < batchSize && isStarted()) {
+                long wait = batch.isEmpty() ? flushNanos : batchStart + flushNanos - System.nanoTime();
+                if (wait <= 0)
+                    break;
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+                if (batch.isEmpty())
+                    return null;
+            }
+        }
+        return takeBatch(false);
+    }
+
+    /**
+     * Takes the events collected so far and encodes them.
+     *
+     * @param all whether to take every event, or at most one batch
+     * @return the push request, gzipped, or null if there was no event
+     */
+    private byte[] takeBatch(boolean all) {
+        List<Entry> entries;
+        synchronized (this) {
+            if (batch.isEmpty())
+                return null;
+            int count = all ? batch.size() : Math.min(batchSize, batch.size());
+            List<Entry> taken = batch.subList(0, count);
+            entries = new ArrayList<>(taken);
+            taken.clear();
+            batchStart = System.nanoTime();
+        }
+        return encode(entries);
+    }
+
+    /**
+     * Encodes events as a Loki push request, one stream per level.
+     *
+     * @param entries to be encoded
+     * @return the request body, gzipped
+     */
+    private byte[] encode(List<Entry> entries) {
+        Map<String, List<Entry>> streams = new LinkedHashMap<>();
+        for (Entry entry : entries)
+            streams.computeIfAbsent(entry.level(), level -> new ArrayList<>()).add(entry);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+             JsonGenerator json = mapper.getFactory().createGenerator(gzip)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("streams");
+            for (Map.Entry<String, List<Entry>> stream : streams.entrySet()) {
+                json.writeStartObject();
+                json.writeObjectFieldStart("stream");
+                for (Map.Entry<String, String> label : parsedLabels.entrySet())
+                    json.writeStringField(label.getKey(), label.getValue());
+                json.writeStringField("level", stream.getKey());
+                json.writeEndObject();
+
+                json.writeArrayFieldStart("values");
+                for (Entry entry : stream.getValue()) {
+                    json.writeStartArray();
+                    json.writeString(entry.timestamp() + "000000");
+                    json.writeString(entry.line());
+                    json.writeEndArray();
+                }
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sends a push request to Loki.
+     *
+     * @param payload gzipped push request
+     * @return true if Loki took the batch, or rejected it for good; false if it should be sent again later
+     */
+    private boolean push(byte[] payload) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofSeconds(10))
+                .header("Content-Type", "application/json")
+                .header("Content-Encoding", "gzip")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload))
+                .build();
+
+        try {
+            int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            if (status / 100 == 2) {
+                SHIPPED.inc();
+                return true;
+            }
+            if (status / 100 == 4 && status != 429) {
+                addError("Loki rejected a log batch with status " + status + ", dropping it");
+                return true;
+            }
+            addWarn("Loki answered " + status + ", spooling the log batch");
+            return false;
+        } catch (IOException e) {
+            addWarn("Loki unreachable, spooling the log batch: " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Lists the batches left in the spool by the previous runs, deleting the ones whose writing
+     * was interrupted.
+     */
+    private void loadSpool() {
+        if (spool == null)
+            return;
+
+        List<Path> files;
+        try (Stream<Path> listed = Files.list(spool)) {
+            files = listed.sorted().toList();
+        } catch (IOException e) {
+            addWarn("Unable to list the log spool", e);
+            return;
+        }
+
+        synchronized (spooled) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(PART_EXTENSION)) {
+                    delete(file);
+                } else if (name.endsWith(SPOOL_EXTENSION)) {
+                    long size = sizeOf(file);
+                    spooled.addLast(new SpooledBatch(file, size));
+                    spoolBytes += size;
+                }
+            }
+            SPOOL_BYTES.set(spoolBytes);
+        }
+    }
+
+    /**
+     * Writes a batch to the spool, deleting the oldest ones over the size limit.
+     *
+     * @param payload gzipped push request
+     */
+    private void spool(byte[] payload) {
+        if (spool == null)
+            return;
+
+        SpooledBatch written;
+        try {
+            String name = String.format("%013d-%06d", System.currentTimeMillis(), spoolSequence.getAndIncrement() % 1_000_000);
+            Path temporary = spool.resolve(name + PART_EXTENSION);
+            Files.write(temporary, payload);
+            written = new SpooledBatch(spool.resolve(name + SPOOL_EXTENSION), payload.length);
+            Files.move(temporary, written.file(), StandardCopyOption.ATOMIC_MOVE);
+            SPOOLED.inc();
+        } catch (IOException e) {
+            addWarn("Unable to spool a log batch, dropping it", e);
+            return;
+        }
+
+        synchronized (spooled) {
+            spooled.addLast(written);
+            spoolBytes += written.size();
+            while (spoolBytes > spoolMaxBytes && !spooled.isEmpty()) {
+                SpooledBatch oldest = spooled.removeFirst();
+                spoolBytes -= oldest.size();
+                delete(oldest.file());
+            }
+            SPOOL_BYTES.set(spoolBytes);
+        }
+    }
+
+    /**
+     * Sends the spooled batches, oldest first, until one fails.
+     *
+     * @return true if the spool is now empty
+     */
+    private boolean sendSpooled() {
+        while (true) {
+            SpooledBatch oldest;
+            synchronized (spooled) {
+                oldest = spooled.peekFirst();
+            }
+            if (oldest == null)
+                return true;
+
+            try {
+                if (!push(Files.readAllBytes(oldest.file())))
+                    return false;
+            } catch (IOException e) {
+                addWarn("Dropping unreadable spooled log batch: " + oldest.file(), e);
+            }
+
+            synchronized (spooled) {
+                if (spooled.remove(oldest)) {
+                    spoolBytes -= oldest.size();
+                    SPOOL_BYTES.set(spoolBytes);
+                }
+            }
+            delete(oldest.file());
+        }
+    }
+
+    /**
+     * @return true if no batch is waiting in the spool
+     */
+    private boolean isSpoolEmpty() {
+        synchronized (spooled) {
+            return spooled.isEmpty();
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            addWarn("Unable to delete spooled log batch: " + file, e);
+        }
+    }
+
+    /**
+     * @param labels written {@code key=value,key=value}
+     * @return the labels by key
+     */
+    private static Map<String, String> parseLabels(String labels) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String label : labels.split(",")) {
+            int equals = label.indexOf('=');
+            if (equals > 0)
+                parsed.put(label.substring(0, equals).trim(), label.substring(equals + 1).trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * A batch waiting in the spool.
+     *
+     * @param file of the batch
+     * @param size of the file, in bytes
+     */
+    private record SpooledBatch(Path file, long size) {
+    }
+
+    /**
+     * A formatted log event.
+     *
+     * @param timestamp in milliseconds since the epoch
+     * @param level     of the event, in lower case
+     * @param line      formatted by the layout
+     */
+    private record Entry(long timestamp, String level, String line) {
+
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.projeto_musique.agent.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Metrics;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the log events to a background writer, so logging never blocks the thread logging.
+ * <p>
+ * Events go through a bounded lock-free queue and are passed by a single writer thread to the
+ * attached appenders. Once the queue is three quarters full, debug and trace events are dropped;
+ * once it is full, every event is. The number of dropped events is logged by the writer as soon
+ * as it catches up.
+ * </p>
+ */
+public class QueueAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+
+    /**
+     * How long the writer sleeps when the queue is empty.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Time given to the writer to empty the queue when stopping.
+     */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    /**
+     * Events dropped because the queue was full.
+     */
+    private static final Counter DROPPED = Metrics.counter("agent_log_events_dropped_total",
+            "Log events dropped because the log writer fell behind");
+
+    /**
+     * Appenders the events are written to.
+     */
+    private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+
+    /**
+     * Events waiting to be written.
+     */
+    private final Queue<ILoggingEvent> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of events in the queue.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Events dropped since the last report.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Maximum number of events in the queue.
+     */
+    private int capacity = 8192;
+
+    /**
+     * Thread writing the events.
+     */
+    private volatile Thread writer;
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void start() {
+        if (!appenders.iteratorForAppenders().hasNext()) {
+            addError("No appender attached to " + getName());
+            return;
+        }
+
+        Thread thread = new Thread(this::write, "Log-Writer");
+        thread.setDaemon(true);
+        writer = thread;
+        super.start();
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted())
+            return;
+        super.stop();
+
+        Thread thread = writer;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        int queued = size.incrementAndGet();
+        if (queued > capacity || (queued > capacity * 3 / 4 && !event.getLevel().isGreaterOrEqual(Level.INFO))) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            DROPPED.inc();
+            return;
+        }
+
+        event.prepareForDeferredProcessing();
+        queue.offer(event);
+    }
+
+    /**
+     * Writes the queued events until the appender is stopped and the queue is empty.
+     */
+    private void write() {
+        while (true) {
+            ILoggingEvent event = queue.poll();
+            if (event == null) {
+                reportDropped();
+                if (!isStarted())
+                    return;
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+
+            size.decrementAndGet();
+            try {
+                appenders.appendLoopOnAppenders(event);
+            } catch (RuntimeException e) {
+                addError("Log appender failed", e);
+            }
+        }
+    }
+
+    /**
+     * Logs the number of events dropped since the last report, if any.
+     */
+    private void reportDropped() {
+        long count = dropped.getAndSet(0);
+        if (count == 0)
+            return;
+
+        LoggerContext loggerContext = (LoggerContext) getContext();
+        LoggingEvent report = new LoggingEvent(QueueAppender.class.getName(), loggerContext.getLogger(QueueAppender.class),
+                Level.WARN, "{} log events dropped, the log writer fell behind", null, new Object[]{count});
+        appenders.appendLoopOnAppenders(report);
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> appender) {
+        appenders.addAppender(appender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return appenders.detachAppender(name);
+    }
+
+}
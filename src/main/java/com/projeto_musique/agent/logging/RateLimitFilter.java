@@ -0,0 +1,181 @@
+package com.projeto_musique.agent.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import com.projeto_musique.agent.metrics.Counter;
+import com.projeto_musique.agent.metrics.Metrics;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often the messages of hot loops are logged, so a loop retrying every few hundred
+ * milliseconds cannot flood the console and the log collector.
+ * <p>
+ * Only messages logged with the {@link #REPEATED} marker are limited; every other message goes
+ * through untouched. Messages are told apart by their logger and format string, whatever their
+ * arguments. Each one may be logged {@link #setBurst(int) burst} times per
+ * {@link #setPeriodSeconds(int) period}; the rest of the period it is dropped before any
+ * formatting. A timer reports the number of dropped messages at the end of every period. Only
+ * messages up to {@link #setMaxLevel(String) maxLevel} are limited, so errors always get through;
+ * messages below the level of their logger are not counted.
+ * </p>
+ */
+public class RateLimitFilter extends TurboFilter {
+
+    /**
+     * Marks the messages of loops that may repeat them many times a minute.
+     */
+    public static final Marker REPEATED = MarkerFactory.getMarker("REPEATED");
+
+    /**
+     * Format of the message reporting the dropped messages.
+     */
+    private static final String SUPPRESSED_FORMAT = "{} similar messages suppressed in the last {} s: {}";
+
+    /**
+     * Messages dropped by the filter.
+     */
+    private static final Counter SUPPRESSED = Metrics.counter("agent_log_events_suppressed_total",
+            "Log events dropped because the same message was logged too often");
+
+    /**
+     * Counts of the period in progress, by logger and format string.
+     */
+    private final Map<Logger, Map<String, Window>> windows = new ConcurrentHashMap<>();
+
+    /**
+     * Timer closing the periods, while the filter is started.
+     */
+    private ScheduledExecutorService timer;
+
+    /**
+     * Messages logged per period before the next ones are dropped.
+     */
+    private int burst = 5;
+
+    /**
+     * Length of a period, in seconds.
+     */
+    private int periodSeconds = 60;
+
+    /**
+     * Highest level limited, the messages above it are never dropped.
+     */
+    private Level maxLevel = Level.WARN;
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public void setPeriodSeconds(int periodSeconds) {
+        this.periodSeconds = periodSeconds;
+    }
+
+    public void setMaxLevel(String maxLevel) {
+        this.maxLevel = Level.toLevel(maxLevel, Level.WARN);
+    }
+
+    @Override
+    public void start() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "Log-RateLimit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::closePeriod, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        timer = executor;
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        closePeriod();
+    }
+
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t) {
+        if (marker == null || format == null || !marker.contains(REPEATED) || level.toInt() > maxLevel.toInt()
+                || !level.isGreaterOrEqual(logger.getEffectiveLevel()))
+            return FilterReply.NEUTRAL;
+
+        Window window = window(logger, format);
+        if (window.count.getAndIncrement() < burst)
+            return FilterReply.NEUTRAL;
+
+        window.suppressed.incrementAndGet();
+        SUPPRESSED.inc();
+        return FilterReply.DENY;
+    }
+
+    /**
+     * Finds the counts of a message, only allocating the first time the message is seen.
+     *
+     * @param logger of the message
+     * @param format string of the message
+     * @return the counts of the message
+     */
+    private Window window(Logger logger, String format) {
+        Map<String, Window> formats = windows.get(logger);
+        if (formats == null)
+            formats = windows.computeIfAbsent(logger, key -> new ConcurrentHashMap<>());
+
+        Window window = formats.get(format);
+        if (window == null)
+            window = formats.computeIfAbsent(format, key -> new Window());
+        return window;
+    }
+
+    /**
+     * Starts a new period for every message, reporting the ones dropped during the last one and
+     * forgetting the messages that were not logged at all.
+     */
+    private void closePeriod() {
+        for (Map.Entry<Logger, Map<String, Window>> entry : windows.entrySet()) {
+            Logger logger = entry.getKey();
+            Map<String, Window> formats = entry.getValue();
+            for (Map.Entry<String, Window> message : formats.entrySet()) {
+                Window window = message.getValue();
+                long suppressed = window.suppressed.getAndSet(0);
+                if (window.count.getAndSet(0) == 0)
+                    formats.remove(message.getKey(), window);
+                if (suppressed > 0)
+                    logger.warn(SUPPRESSED_FORMAT, suppressed, periodSeconds, message.getKey());
+            }
+            if (formats.isEmpty())
+                windows.remove(logger, formats);
+        }
+    }
+
+    /**
+     * Counts of one message during the period in progress.
+     */
+    private static final class Window {
+
+        /**
+         * Messages logged or dropped during the period.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Messages dropped during the period.
+         */
+        private final AtomicLong suppressed = new AtomicLong();
+
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.projeto_musique.agent.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter. Increments are lock-free and do not allocate.
+ */
+public final class Counter implements Metric {
+
+    /**
+     * Name of the metric.
+     */
+    private final String name;
+
+    /**
+     * Description of the metric.
+     */
+    private final String help;
+
+    /**
+     * Current count.
+     */
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void inc() {
+        count.increment();
+    }
+
+    /**
+     * Adds to the counter.
+     *
+     * @param amount to be added, not negative
+     */
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    /**
+     * @return current count
+     */
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        Metrics.header(out, name, help, "counter");
+        out.append(name).append(' ').append(count.sum()).append('\n');
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.projeto_musique.agent.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Value that goes up and down, either set by the code or read from a supplier at scrape time.
+ * Setting it is a single volatile write.
+ */
+public final class Gauge implements Metric {
+
+    /**
+     * Name of the metric.
+     */
+    private final String name;
+
+    /**
+     * Description of the metric.
+     */
+    private final String help;
+
+    /**
+     * Supplier of the value, or null if the value is set.
+     */
+    private final DoubleSupplier supplier;
+
+    /**
+     * Value last set.
+     */
+    private volatile double value;
+
+    Gauge(String name, String help, DoubleSupplier supplier) {
+        this.name = name;
+        this.help = help;
+        this.supplier = supplier;
+    }
+
+    /**
+     * Sets the value. Ignored by gauges read from a supplier.
+     *
+     * @param value new value
+     */
+    public void set(double value) {
+        this.value = value;
+    }
+
+    /**
+     * @return current value
+     */
+    public double get() {
+        return supplier != null ? supplier.getAsDouble() : value;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        Metrics.header(out, name, help, "gauge");
+        out.append(name).append(' ');
+        Metrics.appendValue(out, get());
+        out.append('\n');
+    }
+
+}
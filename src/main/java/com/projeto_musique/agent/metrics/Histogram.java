@@ -0,0 +1,98 @@
+package com.projeto_musique.agent.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of observed values over fixed buckets. Observations are lock-free and do not allocate.
+ */
+public final class Histogram implements Metric {
+
+    /**
+     * Buckets for durations in seconds, from a millisecond to ten seconds.
+     */
+    public static final double[] SECONDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /**
+     * Name of the metric.
+     */
+    private final String name;
+
+    /**
+     * Description of the metric.
+     */
+    private final String help;
+
+    /**
+     * Upper bounds of the buckets, ascending.
+     */
+    private final double[] bounds;
+
+    /**
+     * Observations per bucket, not cumulative; the last one counts values above every bound.
+     */
+    private final LongAdder[] buckets;
+
+    /**
+     * Sum of the observed values.
+     */
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(String name, String help, double[] bounds) {
+        this.name = name;
+        this.help = help;
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int b = 0; b < buckets.length; b++)
+            buckets[b] = new LongAdder();
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value observed
+     */
+    public void observe(double value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket])
+            bucket++;
+
+        buckets[bucket].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records a duration in seconds.
+     *
+     * @param startNanos {@link System#nanoTime()} at the start of the duration
+     */
+    public void observeSince(long startNanos) {
+        observe((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        Metrics.header(out, name, help, "histogram");
+
+        long cumulative = 0;
+        for (int b = 0; b < bounds.length; b++) {
+            cumulative += buckets[b].sum();
+            out.append(name).append("_bucket{le=\"");
+            Metrics.appendValue(out, bounds[b]);
+            out.append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += buckets[bounds.length].sum();
+
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ");
+        Metrics.appendValue(out, sum.sum());
+        out.append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.projeto_musique.agent.metrics;
+
+/**
+ * A metric exposed in the Prometheus text format.
+ */
+public interface Metric {
+
+    /**
+     * @return name of the metric
+     */
+    String name();
+
+    /**
+     * Appends the metric, with its HELP and TYPE lines, in the Prometheus text format.
+     *
+     * @param out destination of the exposition
+     */
+    void write(StringBuilder out);
+
+}
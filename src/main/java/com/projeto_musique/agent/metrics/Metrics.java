@@ -0,0 +1,131 @@
+package com.projeto_musique.agent.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the metrics of the agent.
+ * <p>
+ * Metrics are registered once, usually in static fields of the class recording them, and
+ * recorded without locks from any thread, including the audio thread. The registry only
+ * walks them when the metrics are scraped.
+ * </p>
+ */
+public final class Metrics {
+
+    /**
+     * Every registered metric, in registration order.
+     */
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a counter.
+     *
+     * @param name of the metric, ending with {@code _total}
+     * @param help description of the metric
+     * @return the counter
+     */
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    /**
+     * Registers a gauge set by the code.
+     *
+     * @param name of the metric
+     * @param help description of the metric
+     * @return the gauge
+     */
+    public static Gauge gauge(String name, String help) {
+        return register(new Gauge(name, help, null));
+    }
+
+    /**
+     * Registers a gauge read from a supplier when the metrics are scraped.
+     *
+     * @param name     of the metric
+     * @param help     description of the metric
+     * @param supplier of the value, called from the scraping thread
+     * @return the gauge
+     */
+    public static Gauge gauge(String name, String help, DoubleSupplier supplier) {
+        return register(new Gauge(name, help, supplier));
+    }
+
+    /**
+     * Registers a histogram.
+     *
+     * @param name    of the metric
+     * @param help    description of the metric
+     * @param buckets upper bounds of the buckets, ascending
+     * @return the histogram
+     */
+    public static Histogram histogram(String name, String help, double[] buckets) {
+        return register(new Histogram(name, help, buckets));
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     *
+     * @return the exposition
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics)
+            metric.write(out);
+        return out.toString();
+    }
+
+    /**
+     * Adds a metric to the registry.
+     *
+     * @param metric to be registered
+     * @param <M>    type of the metric
+     * @return the metric
+     * @throws IllegalArgumentException if a metric with the same name is already registered
+     */
+    private static <M extends Metric> M register(M metric) {
+        for (Metric registered : metrics) {
+            if (registered.name().equals(metric.name()))
+                throw new IllegalArgumentException("Metric already registered: " + metric.name());
+        }
+
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Appends the HELP and TYPE lines of a metric.
+     *
+     * @param out  destination of the exposition
+     * @param name of the metric
+     * @param help description of the metric
+     * @param type of the metric
+     */
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Appends a value as Prometheus expects it.
+     *
+     * @param out   destination of the exposition
+     * @param value to be written
+     */
+    static void appendValue(StringBuilder out, double value) {
+        if (Double.isNaN(value))
+            out.append("NaN");
+        else if (Double.isInfinite(value))
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else
+            out.append(value);
+    }
+
+}
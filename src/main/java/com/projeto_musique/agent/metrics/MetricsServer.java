@@ -0,0 +1,95 @@
+package com.projeto_musique.agent.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP endpoint serving {@link Metrics#scrape()} on {@code /metrics}.
+ * Requests are answered one at a time on a single daemon thread.
+ */
+@Slf4j
+public final class MetricsServer {
+
+    /**
+     * Content type of the Prometheus text format.
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Underlying server.
+     */
+    private final HttpServer server;
+
+    /**
+     * Thread answering the requests.
+     */
+    private final ExecutorService executor;
+
+    private MetricsServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts serving the metrics.
+     *
+     * @param host to bind to
+     * @param port to listen on
+     * @return the running server
+     * @throws IOException if the port cannot be bound
+     */
+    public static MetricsServer start(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "Metrics-Server");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server.createContext("/metrics", MetricsServer::handle);
+        server.setExecutor(executor);
+        server.start();
+        log.info("Serving metrics on http://{}:{}/metrics", host, port);
+
+        return new MetricsServer(server, executor);
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answers a scrape.
+     *
+     * @param exchange of the request
+     * @throws IOException if the response cannot be written
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.projeto_musique.agent.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Metrics of the JVM running the agent, read when the metrics are scraped, so the cost of
+ * an agent can be compared across load runs.
+ */
+public final class ProcessMetrics {
+
+    private ProcessMetrics() {
+    }
+
+    /**
+     * Registers the metrics of the process.
+     */
+    public static void register() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (os instanceof com.sun.management.OperatingSystemMXBean process) {
+            Metrics.gauge("agent_process_cpu_seconds", "CPU time used by the process, in seconds",
+                    () -> process.getProcessCpuTime() / 1e9);
+        }
+        Metrics.gauge("agent_heap_used_bytes", "Heap memory in use",
+                () -> memory.getHeapMemoryUsage().getUsed());
+        Metrics.gauge("agent_non_heap_used_bytes", "Memory in use outside the heap, direct buffers excluded",
+                () -> memory.getNonHeapMemoryUsage().getUsed());
+        Metrics.gauge("agent_threads", "Live threads of the process",
+                threads::getThreadCount);
+    }
+
+}
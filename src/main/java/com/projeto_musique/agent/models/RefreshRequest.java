@@ -0,0 +1,8 @@
+package com.projeto_musique.agent.models;
+
+/**
+ * Body of the token refresh endpoint.
+ */
+public record RefreshRequest(String refreshToken) {
+
+}
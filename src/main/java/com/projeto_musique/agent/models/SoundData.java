@@ -1,10 +1,21 @@
 package com.projeto_musique.agent.models;
 
+import com.projeto_musique.agent.core.library.Playlist;
+
 /**
  * Sound data to be passed to the sound processor.
  *
  * @param streamURL If the sound comes as a stream, it is passed in this argument.
+ * @param playlist  If the sound comes from the local library, it is passed in this argument.
  */
-public record SoundData(String streamURL) {
+public record SoundData(String streamURL, Playlist playlist) {
+
+    public SoundData(String streamURL) {
+        this(streamURL, null);
+    }
+
+    public SoundData(Playlist playlist) {
+        this(null, playlist);
+    }
 
 }
@@ -1,16 +1,60 @@
 package com.projeto_musique.agent.models.exceptions;
 
+import java.time.Duration;
+
 /**
  * If a response from a request isn't between 200 and 300 status codes, this exception will be triggered.
  */
 public class RequestException extends Exception {
 
+    /**
+     * Status code of the response, 0 if no response was received.
+     */
+    private final int status;
+
+    /**
+     * Delay asked by the server with a {@code Retry-After} header, or null.
+     */
+    private final Duration retryAfter;
+
     public RequestException(String message) {
-        super(message);
+        this(message, 0, null);
     }
 
     public RequestException(String message, Throwable cause) {
         super(message, cause);
+        this.status = 0;
+        this.retryAfter = null;
+    }
+
+    public RequestException(String message, int status, Duration retryAfter) {
+        super(message);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return the status code of the response, 0 if no response was received
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the delay asked by the server before the next request, or null
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Whether the request failed because the server could not be reached or is overloaded,
+     * rather than because it rejected the request itself.
+     *
+     * @return true if no response was received, or the status is 408, 429 or 5xx
+     */
+    public boolean isRetryable() {
+        return status == 0 || status == 408 || status == 429 || status >= 500;
     }
 
 }
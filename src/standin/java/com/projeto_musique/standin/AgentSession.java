@@ -0,0 +1,284 @@
+package com.projeto_musique.standin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Socket.IO session of one agent, over Engine.IO 4 on a WebSocket.
+ * <p>
+ * The session speaks the part of the protocol the agent uses: the Engine.IO open and heartbeat,
+ * the connection to the default namespace, and events with acknowledgements. Once connected the
+ * agent is asked to identify; a valid access token makes it join, after which commands can be
+ * sent to it. The time until a command is acknowledged as queued, and until it is reported done,
+ * is recorded in the {@link Agents} statistics.
+ * </p>
+ */
+@Slf4j
+final class AgentSession {
+
+    /**
+     * Interval between two heartbeats sent to the agent.
+     */
+    static final long PING_INTERVAL_MS = 25000;
+
+    /**
+     * Time allowed to the agent to answer a heartbeat.
+     */
+    static final long PING_TIMEOUT_MS = 20000;
+
+    /**
+     * WebSocket of the session.
+     */
+    private final WebSocket socket;
+
+    /**
+     * Registry of the sessions.
+     */
+    private final Agents agents;
+
+    /**
+     * Tokens checked on identification.
+     */
+    private final Tokens tokens;
+
+    /**
+     * Id of the session.
+     */
+    private final String sid = UUID.randomUUID().toString();
+
+    /**
+     * Id of the next acknowledgement asked.
+     */
+    private final AtomicInteger nextAckId = new AtomicInteger();
+
+    /**
+     * {@link System#nanoTime()} commands were sent at, by acknowledgement id.
+     */
+    private final Map<Integer, Long> pendingAcks = new ConcurrentHashMap<>();
+
+    /**
+     * {@link System#nanoTime()} commands were sent at, by command id.
+     */
+    private final Map<String, Long> pendingCommands = new ConcurrentHashMap<>();
+
+    /**
+     * Username of the agent once it identified.
+     */
+    private volatile String username;
+
+    /**
+     * {@link System#currentTimeMillis()} the agent was last heard of.
+     */
+    private volatile long lastSeen = System.currentTimeMillis();
+
+    AgentSession(WebSocket socket, Agents agents, Tokens tokens) {
+        this.socket = socket;
+        this.agents = agents;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Opens the Engine.IO session and handles the packets of the agent until it leaves.
+     */
+    void run() {
+        try {
+            Map<String, Object> open = Map.of(
+                    "sid", sid,
+                    "upgrades", List.of(),
+                    "pingInterval", PING_INTERVAL_MS,
+                    "pingTimeout", PING_TIMEOUT_MS,
+                    "maxPayload", 1_000_000);
+            socket.send("0" + Exchange.mapper.writeValueAsString(open));
+
+            String packet;
+            while ((packet = socket.read()) != null) {
+                lastSeen = System.currentTimeMillis();
+                if (!handle(packet))
+                    break;
+            }
+        } catch (IOException e) {
+            log.debug("Session {} of {} lost: {}", sid, username, e.toString());
+        } finally {
+            agents.leave(this);
+            socket.close();
+        }
+    }
+
+    /**
+     * @return whether the agent identified and joined
+     */
+    boolean joined() {
+        return username != null;
+    }
+
+    /**
+     * Sends a heartbeat, or closes the session if the agent stopped answering them.
+     */
+    void ping() {
+        if (System.currentTimeMillis() - lastSeen > PING_INTERVAL_MS + PING_TIMEOUT_MS) {
+            log.info("Agent {} stopped answering, closing its session", username);
+            socket.close();
+            return;
+        }
+        send("2");
+    }
+
+    /**
+     * Sends an ad to play, asking for an acknowledgement.
+     *
+     * @param id       of the command
+     * @param url      of the ad
+     * @param priority of the spot, {@code normal} or {@code urgent}
+     */
+    void playAudio(String id, String url, String priority) {
+        int ackId = nextAckId.incrementAndGet();
+        long now = System.nanoTime();
+        pendingAcks.put(ackId, now);
+        pendingCommands.put(id, now);
+        emit(ackId, "playAudio", Map.of("id", id, "url", url, "priority", priority));
+    }
+
+    /**
+     * Handles an Engine.IO packet.
+     *
+     * @param packet received
+     * @return false if the session is over
+     */
+    private boolean handle(String packet) throws IOException {
+        if (packet.isEmpty())
+            return true;
+
+        switch (packet.charAt(0)) {
+            case '1' -> {
+                return false;
+            }
+            case '2' -> send("3" + packet.substring(1));
+            case '4' -> {
+                return handleSocketIo(packet.substring(1));
+            }
+            default -> {
+                // Pongs only refresh the last time the agent was heard of.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a Socket.IO packet of the default namespace.
+     *
+     * @param packet received, without its Engine.IO type
+     * @return false if the session is over
+     */
+    private boolean handleSocketIo(String packet) throws IOException {
+        if (packet.isEmpty())
+            return true;
+
+        char type = packet.charAt(0);
+        int start = 1;
+        while (start < packet.length() && Character.isDigit(packet.charAt(start)))
+            start++;
+        String ackId = packet.substring(1, start);
+        String data = packet.substring(start);
+
+        switch (type) {
+            case '0' -> {
+                send("40" + Exchange.mapper.writeValueAsString(Map.of("sid", sid)));
+                emit(0, "identify", null);
+            }
+            case '1' -> {
+                return false;
+            }
+            case '2' -> onEvent(Exchange.mapper.readTree(data));
+            case '3' -> onAck(Integer.parseInt(ackId), Exchange.mapper.readTree(data));
+            default -> log.debug("Ignoring Socket.IO packet: {}", packet);
+        }
+        return true;
+    }
+
+    /**
+     * Handles an event sent by the agent.
+     *
+     * @param event array of the event name and its arguments
+     */
+    private void onEvent(JsonNode event) {
+        String name = event.path(0).asText();
+        switch (name) {
+            case "identification" -> {
+                String user = tokens.verify(event.path(1).asText(null), Tokens.ACCESS);
+                if (user == null) {
+                    log.info("Session {} sent an invalid token, disconnecting it", sid);
+                    send("41");
+                    socket.close();
+                    return;
+                }
+                username = user;
+                emit(0, "join", user);
+                agents.join(this);
+            }
+            case "commandAck" -> {
+                JsonNode ack = event.path(1);
+                Long sentAt = pendingCommands.remove(ack.path("id").asText());
+                agents.recordAck(ack.path("status").asText(), sentAt, true);
+            }
+            default -> log.debug("Ignoring event {} of {}", name, username);
+        }
+    }
+
+    /**
+     * Handles the acknowledgement of a command, sent when the agent queued or rejected it.
+     *
+     * @param ackId of the command
+     * @param args  of the acknowledgement
+     */
+    private void onAck(int ackId, JsonNode args) {
+        Long sentAt = pendingAcks.remove(ackId);
+        JsonNode ack = args.path(0);
+        String status = ack.path("status").asText();
+        if (!"queued".equals(status))
+            pendingCommands.remove(ack.path("id").asText());
+        agents.recordAck(status, sentAt, false);
+    }
+
+    /**
+     * Sends an event.
+     *
+     * @param ackId    asked for, 0 for none
+     * @param name     of the event
+     * @param argument of the event, or null
+     */
+    private void emit(int ackId, String name, Object argument) {
+        try {
+            List<Object> event = argument == null ? List.of(name) : List.of(name, argument);
+            send("42" + (ackId > 0 ? ackId : "") + Exchange.mapper.writeValueAsString(event));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends a packet, closing the session if the connection failed.
+     *
+     * @param packet to be sent
+     */
+    private void send(String packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            log.debug("Unable to send to {}: {}", username, e.toString());
+            socket.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return username != null ? username : sid;
+    }
+
+}
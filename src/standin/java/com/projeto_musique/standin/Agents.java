@@ -0,0 +1,208 @@
+package com.projeto_musique.standin;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Agents connected to the stand-in, and what became of the commands sent to them.
+ */
+@Slf4j
+final class Agents {
+
+    /**
+     * Sessions currently open, joined or not.
+     */
+    private final Set<AgentSession> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Commands sent.
+     */
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * Sequence of the command ids.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Acknowledgements received, by status.
+     */
+    private final Map<String, LongAdder> acks = new ConcurrentHashMap<>();
+
+    /**
+     * Time from sending a command to the agent queueing it.
+     */
+    private final Latency queuedLatency = new Latency();
+
+    /**
+     * Time from sending a command to the agent reporting it done.
+     */
+    private final Latency doneLatency = new Latency();
+
+    /**
+     * @param session opened, not joined yet
+     */
+    void open(AgentSession session) {
+        sessions.add(session);
+    }
+
+    /**
+     * @param session that identified
+     */
+    void join(AgentSession session) {
+        log.info("Agent {} joined, {} sessions open", session, sessions.size());
+    }
+
+    /**
+     * @param session closed
+     */
+    void leave(AgentSession session) {
+        if (sessions.remove(session))
+            log.info("Agent {} left, {} sessions open", session, sessions.size());
+    }
+
+    /**
+     * Sends a heartbeat to every session.
+     */
+    void ping() {
+        for (AgentSession session : sessions)
+            session.ping();
+    }
+
+    /**
+     * Sends an ad to every joined agent.
+     *
+     * @param url      of the ad
+     * @param priority of the spot
+     * @return the number of agents it was sent to
+     */
+    int playAudio(String url, String priority) {
+        String id = "standin-" + sequence.incrementAndGet();
+        int count = 0;
+        for (AgentSession session : sessions) {
+            if (session.joined()) {
+                session.playAudio(id, url, priority);
+                count++;
+            }
+        }
+        sent.addAndGet(count);
+        log.info("Sent {} ({}) to {} agents: {}", id, priority, count, url);
+        return count;
+    }
+
+    /**
+     * Records an acknowledgement.
+     *
+     * @param status of the command
+     * @param sentAt {@link System#nanoTime()} the command was sent at, or null if unknown
+     * @param done   whether this is the report of the execution rather than of the queueing
+     */
+    void recordAck(String status, Long sentAt, boolean done) {
+        acks.computeIfAbsent(status, key -> new LongAdder()).increment();
+        if (sentAt != null)
+            (done ? doneLatency : queuedLatency).record(System.nanoTime() - sentAt);
+    }
+
+    /**
+     * @return the statistics, as served on the admin endpoint
+     */
+    Map<String, Object> stats() {
+        Map<String, Long> statuses = new TreeMap<>();
+        acks.forEach((status, count) -> statuses.put(status, count.sum()));
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessions.size());
+        stats.put("joined", sessions.stream().filter(AgentSession::joined).count());
+        stats.put("commandsSent", sent.get());
+        stats.put("acks", statuses);
+        stats.put("queuedLatencyMs", queuedLatency.summary());
+        stats.put("doneLatencyMs", doneLatency.summary());
+        return stats;
+    }
+
+    /**
+     * Distribution of latencies in fixed buckets, cheap to record from any thread.
+     */
+    private static final class Latency {
+
+        /**
+         * Upper bounds of the buckets, in milliseconds.
+         */
+        private static final long[] BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, Long.MAX_VALUE};
+
+        /**
+         * Latencies per bucket.
+         */
+        private final LongAdder[] counts = new LongAdder[BOUNDS_MS.length];
+
+        /**
+         * Sum of the latencies, in nanoseconds.
+         */
+        private final LongAdder sumNanos = new LongAdder();
+
+        /**
+         * Longest latency, in nanoseconds.
+         */
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Latency() {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            long millis = nanos / 1_000_000;
+            int bucket = 0;
+            while (millis > BOUNDS_MS[bucket])
+                bucket++;
+            counts[bucket].increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * @return the count, mean, maximum and the bucket bounds of the median and 95th percentile
+         */
+        Map<String, Object> summary() {
+            long count = 0;
+            for (LongAdder bucket : counts)
+                count += bucket.sum();
+
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", count);
+            summary.put("mean", count == 0 ? 0 : sumNanos.sum() / count / 1e6);
+            summary.put("max", maxNanos.get() / 1e6);
+            summary.put("p50", quantile(count, 0.5));
+            summary.put("p95", quantile(count, 0.95));
+            return summary;
+        }
+
+        /**
+         * @param count of latencies recorded
+         * @param q     quantile wanted
+         * @return the upper bound of the bucket holding it, -1 if unbounded, 0 without latencies
+         */
+        private long quantile(long count, double q) {
+            if (count == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(count * q);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i].sum();
+                if (seen >= rank)
+                    return BOUNDS_MS[i] == Long.MAX_VALUE ? -1 : BOUNDS_MS[i];
+            }
+            return -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,280 @@
+package com.projeto_musique.standin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One HTTP/1.1 request read from a connection, and its response.
+ * <p>
+ * Only what the agent sends is supported: a request line, headers and a body of a known length.
+ * Every response closes the connection, which keeps the server to one request per connection.
+ * </p>
+ */
+final class Exchange {
+
+    /**
+     * Largest request line or header accepted.
+     */
+    private static final int MAX_LINE = 8192;
+
+    /**
+     * Largest request body accepted.
+     */
+    private static final int MAX_BODY = 1024 * 1024;
+
+    /**
+     * Mapper of the JSON bodies.
+     */
+    static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Connection of the request.
+     */
+    final Socket socket;
+
+    /**
+     * Input of the connection, positioned after the request.
+     */
+    final InputStream in;
+
+    /**
+     * Output of the connection.
+     */
+    final OutputStream out;
+
+    /**
+     * Method of the request.
+     */
+    final String method;
+
+    /**
+     * Path of the request, without the query.
+     */
+    final String path;
+
+    /**
+     * Parameters of the query.
+     */
+    final Map<String, String> query;
+
+    /**
+     * Headers of the request, by lower case name.
+     */
+    final Map<String, String> headers;
+
+    /**
+     * Body of the request, empty if there is none.
+     */
+    final byte[] body;
+
+    private Exchange(Socket socket, InputStream in, String method, String target, Map<String, String> headers, byte[] body) throws IOException {
+        this.socket = socket;
+        this.in = in;
+        this.out = socket.getOutputStream();
+        this.method = method;
+        this.headers = headers;
+        this.body = body;
+
+        int question = target.indexOf('?');
+        this.path = question < 0 ? target : target.substring(0, question);
+        this.query = parseQuery(question < 0 ? "" : target.substring(question + 1));
+    }
+
+    /**
+     * Reads the next request of a connection.
+     *
+     * @param socket connection of the request
+     * @return the request, or null if the connection was closed before one arrived
+     * @throws IOException if the request cannot be read or is malformed
+     */
+    static Exchange read(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty())
+            return null;
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3)
+            throw new IOException("Malformed request line: " + requestLine);
+
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+
+        int length = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+        if (length < 0 || length > MAX_BODY)
+            throw new IOException("Unsupported body length: " + length);
+
+        return new Exchange(socket, in, parts[0], parts[1], headers, in.readNBytes(length));
+    }
+
+    /**
+     * @param name of the header, in lower case
+     * @return its value, or null
+     */
+    String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return the bearer token of the request, or null
+     */
+    String bearerToken() {
+        String authorization = header("authorization");
+        return authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7) ? authorization.substring(7).trim() : null;
+    }
+
+    /**
+     * @return the URL of the server as seen by the client
+     */
+    String baseUrl() {
+        String host = header("host");
+        return "http://" + (host != null ? host : socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort());
+    }
+
+    /**
+     * Sends a complete response.
+     *
+     * @param status      of the response
+     * @param contentType of the body
+     * @param content     of the response
+     * @throws IOException if the connection fails
+     */
+    void respond(int status, String contentType, byte[] content) throws IOException {
+        writeHead(status, contentType, content.length, Map.of());
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Sends a JSON response.
+     *
+     * @param status of the response
+     * @param value  serialized as the body
+     * @throws IOException if the connection fails
+     */
+    void respondJson(int status, Object value) throws IOException {
+        respond(status, "application/json", mapper.writeValueAsBytes(value));
+    }
+
+    /**
+     * Sends an error with a plain text message.
+     *
+     * @param status  of the response
+     * @param message of the error
+     * @param headers added to the response
+     * @throws IOException if the connection fails
+     */
+    void respondError(int status, String message, Map<String, String> headers) throws IOException {
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        writeHead(status, "text/plain; charset=utf-8", content.length, headers);
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Starts a response whose body is written until the connection closes.
+     *
+     * @param contentType of the body
+     * @return the output to write the body to
+     * @throws IOException if the connection fails
+     */
+    OutputStream respondStreaming(String contentType) throws IOException {
+        writeHead(200, contentType, -1, Map.of());
+        return out;
+    }
+
+    /**
+     * Writes the status line and the headers of a response.
+     *
+     * @param status        of the response
+     * @param contentType   of the body
+     * @param contentLength of the body, or -1 if unknown
+     * @param extra         headers added to the response
+     * @throws IOException if the connection fails
+     */
+    private void writeHead(int status, String contentType, long contentLength, Map<String, String> extra) throws IOException {
+        StringBuilder head = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Connection: close\r\n");
+        if (contentLength >= 0)
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        extra.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Reads a line ending with CRLF.
+     *
+     * @param in input of the connection
+     * @return the line without its ending, or null at the end of the input
+     * @throws IOException if the line is too long or the connection fails
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            if (line.size() >= MAX_LINE)
+                throw new IOException("Line too long");
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param raw query of the request
+     * @return its parameters, the last value winning
+     */
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String pair : raw.split("&")) {
+            if (pair.isEmpty())
+                continue;
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            parameters.put(name, value);
+        }
+        return parameters;
+    }
+
+    /**
+     * @param status of a response
+     * @return its reason phrase
+     */
+    private static String reason(int status) {
+        return switch (status) {
+            case 101 -> "Switching Protocols";
+            case 200 -> "OK";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 503 -> "Service Unavailable";
+            default -> "Status";
+        };
+    }
+
+}
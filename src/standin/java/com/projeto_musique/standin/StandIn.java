@@ -0,0 +1,417 @@
+package com.projeto_musique.standin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.projeto_musique.agent.Properties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the Musique backend, so agents can run against it in CI and load runs.
+ * <p>
+ * It serves what the agent uses, on a single port: the login and token refresh on
+ * {@code /api/auth}, the stream URL on {@code /api/company/stream}, the Socket.IO commands on
+ * {@code /socket.io/} ({@code identify}, {@code join} and {@code playAudio}), a live MP3 stream
+ * looping a file on {@code /stream.mp3}, and ads on {@code /ads/}. Any username and password are
+ * accepted. Point agents at it with {@code BASE_URL=http://host:port}.
+ * </p>
+ * <p>
+ * Ads are sent to every joined agent with {@code /admin/play?priority=urgent&url=...}, or
+ * periodically with {@value #ENV_AD_INTERVAL_SECONDS_KEY}; {@code /admin/stats} reports the
+ * agents and the time they took to queue and play the ads. {@value #ENV_FAILURE_RATIO_KEY}
+ * answers that share of the API requests with a 503 and a {@code Retry-After}, to exercise the
+ * reconnection of the agents.
+ * </p>
+ */
+@Slf4j
+public final class StandIn {
+
+    static final String ENV_PORT_KEY = "STANDIN_PORT";
+
+    static final int DEFAULT_PORT = 8080;
+
+    static final String ENV_PUBLIC_URL_KEY = "STANDIN_PUBLIC_URL";
+
+    static final String ENV_STREAM_FILE_KEY = "STANDIN_STREAM_FILE";
+
+    static final String ENV_STREAM_KBPS_KEY = "STANDIN_STREAM_KBPS";
+
+    static final String ENV_ADS_DIR_KEY = "STANDIN_ADS_DIR";
+
+    static final String ENV_AD_INTERVAL_SECONDS_KEY = "STANDIN_AD_INTERVAL_SECONDS";
+
+    static final String ENV_TOKEN_SECONDS_KEY = "STANDIN_TOKEN_SECONDS";
+
+    static final String ENV_FAILURE_RATIO_KEY = "STANDIN_FAILURE_RATIO";
+
+    static final String ENV_RETRY_AFTER_SECONDS_KEY = "STANDIN_RETRY_AFTER_SECONDS";
+
+    /**
+     * Lifetime of the refresh tokens, in seconds.
+     */
+    private static final long REFRESH_SECONDS = 7 * 24 * 3600;
+
+    /**
+     * Time allowed to a client to send its request.
+     */
+    private static final int REQUEST_TIMEOUT_MS = 10000;
+
+    /**
+     * Size of the chunks the live stream is written in.
+     */
+    private static final int STREAM_CHUNK = 4096;
+
+    /**
+     * Bundled ad, served as {@code /ads/ad.mp3}.
+     */
+    private static final String BUNDLED_AD = "ad.mp3";
+
+    /**
+     * Issues and checks the tokens.
+     */
+    private final Tokens tokens;
+
+    /**
+     * Agents connected to the command socket.
+     */
+    private final Agents agents = new Agents();
+
+    /**
+     * MP3 frames looped by the live stream.
+     */
+    private final byte[] stream;
+
+    /**
+     * Bundled ad.
+     */
+    private final byte[] bundledAd;
+
+    /**
+     * Directory of additional ads, or null.
+     */
+    private final Path adsDir;
+
+    /**
+     * Rate of the live stream in kbit/s, 0 to send it as fast as the agent reads it.
+     */
+    private final int streamKbps;
+
+    /**
+     * Share of the API requests answered with a 503.
+     */
+    private final double failureRatio;
+
+    /**
+     * Delay asked with the 503 answers, in seconds.
+     */
+    private final int retryAfterSeconds;
+
+    /**
+     * Threads handling the connections, one per connection.
+     */
+    private final ExecutorService connections = Executors.newCachedThreadPool(daemon("StandIn-Connection"));
+
+    /**
+     * Thread sending the heartbeats and the periodic ads.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemon("StandIn-Scheduler"));
+
+    private StandIn(Tokens tokens, byte[] stream, byte[] bundledAd, Path adsDir, int streamKbps, double failureRatio, int retryAfterSeconds) {
+        this.tokens = tokens;
+        this.stream = stream;
+        this.bundledAd = bundledAd;
+        this.adsDir = adsDir;
+        this.streamKbps = streamKbps;
+        this.failureRatio = failureRatio;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(Properties.getEnv(ENV_PORT_KEY, String.valueOf(DEFAULT_PORT)).trim());
+        String streamFile = Properties.getEnv(ENV_STREAM_FILE_KEY, "");
+        String adsDir = Properties.getEnv(ENV_ADS_DIR_KEY, "");
+
+        StandIn standIn = new StandIn(
+                new Tokens(Long.parseLong(Properties.getEnv(ENV_TOKEN_SECONDS_KEY, "3600").trim()), REFRESH_SECONDS),
+                stripTags(streamFile.isBlank() ? resource("stream.mp3") : Files.readAllBytes(Path.of(streamFile))),
+                resource(BUNDLED_AD),
+                adsDir.isBlank() ? null : Path.of(adsDir),
+                Integer.parseInt(Properties.getEnv(ENV_STREAM_KBPS_KEY, "0").trim()),
+                Double.parseDouble(Properties.getEnv(ENV_FAILURE_RATIO_KEY, "0").trim()),
+                Integer.parseInt(Properties.getEnv(ENV_RETRY_AFTER_SECONDS_KEY, "5").trim())
+        );
+
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port), 1024);
+
+        String publicUrl = Properties.getEnv(ENV_PUBLIC_URL_KEY, "http://localhost:" + server.getLocalPort());
+        int adInterval = Integer.parseInt(Properties.getEnv(ENV_AD_INTERVAL_SECONDS_KEY, "0").trim());
+        standIn.start(publicUrl + "/ads/" + BUNDLED_AD, adInterval);
+
+        log.info("Stand-in backend listening on {}", publicUrl);
+        standIn.serve(server);
+    }
+
+    /**
+     * Schedules the heartbeats and, if asked, the periodic ads.
+     *
+     * @param adUrl           of the periodic ads
+     * @param intervalSeconds between two periodic ads, 0 for none
+     */
+    private void start(String adUrl, int intervalSeconds) {
+        scheduler.scheduleAtFixedRate(agents::ping, AgentSession.PING_INTERVAL_MS, AgentSession.PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (intervalSeconds > 0) {
+            scheduler.scheduleAtFixedRate(() -> agents.playAudio(adUrl, "normal"), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+            log.info("Sending {} to every agent every {} s", adUrl, intervalSeconds);
+        }
+    }
+
+    /**
+     * Accepts connections until the process ends.
+     *
+     * @param server socket to accept from
+     */
+    private void serve(ServerSocket server) throws IOException {
+        while (true) {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+            connections.execute(() -> handle(socket));
+        }
+    }
+
+    /**
+     * Serves the request of a connection, then closes it.
+     *
+     * @param socket of the connection
+     */
+    private void handle(Socket socket) {
+        try (socket) {
+            Exchange exchange = Exchange.read(socket);
+            if (exchange != null)
+                route(exchange);
+        } catch (IOException e) {
+            log.debug("Connection from {} ended: {}", socket.getRemoteSocketAddress(), e.toString());
+        } catch (RuntimeException e) {
+            log.error("Request from {} failed", socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    /**
+     * Dispatches a request to its handler.
+     *
+     * @param exchange of the request
+     */
+    private void route(Exchange exchange) throws IOException {
+        log.debug("{} {}", exchange.method, exchange.path);
+        String path = exchange.path;
+
+        if (path.startsWith("/api/") && failureRatio > 0 && ThreadLocalRandom.current().nextDouble() < failureRatio) {
+            exchange.respondError(503, "Injected failure", Map.of("Retry-After", String.valueOf(retryAfterSeconds)));
+            return;
+        }
+
+        switch (path) {
+            case "/api/auth" -> login(exchange);
+            case "/api/auth/refresh" -> refresh(exchange);
+            case "/api/company/stream" -> streamUrl(exchange);
+            case "/stream.mp3" -> liveStream(exchange);
+            case "/admin/play" -> adminPlay(exchange);
+            case "/admin/stats" -> exchange.respondJson(200, agents.stats());
+            default -> {
+                if (path.startsWith("/socket.io"))
+                    socketIo(exchange);
+                else if (path.startsWith("/ads/"))
+                    ad(exchange, path.substring("/ads/".length()));
+                else
+                    exchange.respondError(404, "Not found: " + path, Map.of());
+            }
+        }
+    }
+
+    /**
+     * Logs in with any username and password.
+     */
+    private void login(Exchange exchange) throws IOException {
+        if (!"POST".equals(exchange.method)) {
+            exchange.respondError(405, "POST only", Map.of());
+            return;
+        }
+
+        JsonNode body = Exchange.mapper.readTree(exchange.body);
+        String username = body.path("username").asText("");
+        if (username.isBlank()) {
+            exchange.respondError(400, "Missing username", Map.of());
+            return;
+        }
+        exchange.respondJson(200, tokens.loginResult(username));
+    }
+
+    /**
+     * Exchanges a refresh token for new tokens.
+     */
+    private void refresh(Exchange exchange) throws IOException {
+        JsonNode body = Exchange.mapper.readTree(exchange.body);
+        String username = tokens.verify(body.path("refreshToken").asText(null), Tokens.REFRESH);
+        if (username == null) {
+            exchange.respondError(401, "Invalid refresh token", Map.of());
+            return;
+        }
+        exchange.respondJson(200, tokens.loginResult(username));
+    }
+
+    /**
+     * Answers the stream URL in the markup the backend uses.
+     */
+    private void streamUrl(Exchange exchange) throws IOException {
+        if (tokens.verify(exchange.bearerToken(), Tokens.ACCESS) == null) {
+            exchange.respondError(401, "Invalid access token", Map.of());
+            return;
+        }
+        exchange.respondJson(200, Map.of("stream", "<a href=\"" + exchange.baseUrl() + "/stream.mp3\">"));
+    }
+
+    /**
+     * Sends the looped MP3 until the agent disconnects, at the configured rate if any.
+     */
+    private void liveStream(Exchange exchange) throws IOException {
+        OutputStream out = exchange.respondStreaming("audio/mpeg");
+        long start = System.nanoTime();
+        long sent = 0;
+        int offset = 0;
+        while (true) {
+            int length = Math.min(STREAM_CHUNK, stream.length - offset);
+            out.write(stream, offset, length);
+            sent += length;
+            offset = (offset + length) % stream.length;
+
+            if (streamKbps > 0) {
+                long due = start + sent * 8_000_000L / streamKbps;
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    sleepNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Serves an ad, from the ads directory or the bundled one.
+     *
+     * @param name of the file
+     */
+    private void ad(Exchange exchange, String name) throws IOException {
+        if (name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            exchange.respondError(400, "Invalid ad name", Map.of());
+            return;
+        }
+
+        Path file = adsDir == null ? null : adsDir.resolve(name);
+        if (file != null && Files.isRegularFile(file))
+            exchange.respond(200, "audio/mpeg", Files.readAllBytes(file));
+        else if (BUNDLED_AD.equals(name))
+            exchange.respond(200, "audio/mpeg", bundledAd);
+        else
+            exchange.respondError(404, "No such ad: " + name, Map.of());
+    }
+
+    /**
+     * Upgrades to a WebSocket and runs the Socket.IO session on this thread until it ends.
+     */
+    private void socketIo(Exchange exchange) throws IOException {
+        if (!WebSocket.isUpgrade(exchange) || !"websocket".equals(exchange.query.get("transport"))) {
+            exchange.respondError(400, "Only the websocket transport is supported", Map.of());
+            return;
+        }
+
+        AgentSession session = new AgentSession(WebSocket.accept(exchange), agents, tokens);
+        exchange.socket.setSoTimeout(0);
+        agents.open(session);
+        session.run();
+    }
+
+    /**
+     * Sends an ad to every joined agent.
+     */
+    private void adminPlay(Exchange exchange) throws IOException {
+        String url = exchange.query.getOrDefault("url", exchange.baseUrl() + "/ads/" + BUNDLED_AD);
+        String priority = exchange.query.getOrDefault("priority", "normal");
+        exchange.respondJson(200, Map.of("sent", agents.playAudio(url, priority)));
+    }
+
+    /**
+     * Reads a bundled audio file.
+     *
+     * @param name of the file
+     * @return its content
+     * @throws IOException if it is missing
+     */
+    private static byte[] resource(String name) throws IOException {
+        try (InputStream in = StandIn.class.getResourceAsStream("/audio/" + name)) {
+            if (in == null)
+                throw new IOException("Missing bundled audio: " + name);
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Removes the ID3 tags of an MP3 file, which would break the stream when it loops.
+     *
+     * @param mp3 content of the file
+     * @return the MP3 frames only
+     */
+    static byte[] stripTags(byte[] mp3) {
+        int start = 0;
+        if (mp3.length >= 10 && mp3[0] == 'I' && mp3[1] == 'D' && mp3[2] == '3') {
+            int size = (mp3[6] & 0x7f) << 21 | (mp3[7] & 0x7f) << 14 | (mp3[8] & 0x7f) << 7 | (mp3[9] & 0x7f);
+            start = Math.min(mp3.length, 10 + size + ((mp3[5] & 0x10) != 0 ? 10 : 0));
+        }
+
+        int end = mp3.length;
+        if (end - start >= 128 && mp3[end - 128] == 'T' && mp3[end - 127] == 'A' && mp3[end - 126] == 'G')
+            end -= 128;
+
+        if (start >= end)
+            throw new IllegalArgumentException("No MP3 frames in the stream file");
+        return Arrays.copyOfRange(mp3, start, end);
+    }
+
+    private static void sleepNanos(long nanos) throws IOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    /**
+     * @param name prefix of the thread names
+     * @return a factory of daemon threads
+     */
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.projeto_musique.standin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tokens issued by the stand-in, shaped like JWTs so the agent reads their expiry the same way
+ * as the real ones. They are not signed: the stand-in only checks their type and expiry.
+ */
+final class Tokens {
+
+    /**
+     * Header of every token.
+     */
+    private static final String HEADER = encode("{\"alg\":\"none\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+
+    /**
+     * Type of the tokens sent with the requests.
+     */
+    static final String ACCESS = "access";
+
+    /**
+     * Type of the tokens exchanged for new ones.
+     */
+    static final String REFRESH = "refresh";
+
+    /**
+     * Lifetime of the access tokens, in seconds.
+     */
+    private final long accessSeconds;
+
+    /**
+     * Lifetime of the refresh tokens, in seconds.
+     */
+    private final long refreshSeconds;
+
+    /**
+     * @param accessSeconds  lifetime of the access tokens
+     * @param refreshSeconds lifetime of the refresh tokens
+     */
+    Tokens(long accessSeconds, long refreshSeconds) {
+        this.accessSeconds = accessSeconds;
+        this.refreshSeconds = refreshSeconds;
+    }
+
+    /**
+     * Builds the body of a login or refresh answer, as the backend sends it.
+     *
+     * @param username the tokens are issued to
+     * @return the body
+     */
+    Map<String, Object> loginResult(String username) {
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("id", Math.abs(username.hashCode()));
+        user.put("username", username);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("user", user);
+        result.put("accessToken", Map.of("token", issue(username, ACCESS, accessSeconds), "expiresIn", String.valueOf(accessSeconds)));
+        result.put("refreshToken", Map.of("token", issue(username, REFRESH, refreshSeconds), "expiresIn", String.valueOf(refreshSeconds)));
+        return result;
+    }
+
+    /**
+     * Checks a token.
+     *
+     * @param token received from the agent, may be null
+     * @param type  expected
+     * @return the username it was issued to, or null if it is invalid, of another type or expired
+     */
+    String verify(String token, String type) {
+        if (token == null)
+            return null;
+
+        String[] parts = token.split("\\.");
+        if (parts.length != 3 || !parts[0].equals(HEADER))
+            return null;
+
+        try {
+            JsonNode claims = Exchange.mapper.readTree(Base64.getUrlDecoder().decode(parts[1]));
+            if (!type.equals(claims.path("typ").asText()) || claims.path("exp").asLong() <= Instant.now().getEpochSecond())
+                return null;
+            return claims.path("sub").asText(null);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param username the token is issued to
+     * @param type     of the token
+     * @param seconds  before it expires
+     * @return the token
+     */
+    private static String issue(String username, String type, long seconds) {
+        Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("sub", username);
+        claims.put("typ", type);
+        claims.put("iat", Instant.now().getEpochSecond());
+        claims.put("exp", Instant.now().getEpochSecond() + seconds);
+
+        try {
+            return HEADER + "." + encode(Exchange.mapper.writeValueAsBytes(claims)) + "." + encode("standin".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+}
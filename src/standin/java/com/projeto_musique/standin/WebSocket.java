@@ -0,0 +1,225 @@
+package com.projeto_musique.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Server side of a WebSocket connection (RFC 6455), limited to text messages.
+ * <p>
+ * Fragmented messages are reassembled, pings are answered and a close is echoed. Messages are
+ * read by a single thread; sending and closing may happen from any thread.
+ * </p>
+ */
+final class WebSocket {
+
+    /**
+     * Suffix of the key in the accept header, fixed by the RFC.
+     */
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * Largest message accepted.
+     */
+    private static final int MAX_MESSAGE = 1024 * 1024;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    /**
+     * Connection of the WebSocket.
+     */
+    private final Socket connection;
+
+    /**
+     * Input of the connection.
+     */
+    private final InputStream in;
+
+    /**
+     * Output of the connection.
+     */
+    private final OutputStream out;
+
+    /**
+     * Set once a close frame was sent.
+     */
+    private volatile boolean closed;
+
+    private WebSocket(Socket connection, InputStream in, OutputStream out) {
+        this.connection = connection;
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Whether a request asks to upgrade to a WebSocket.
+     *
+     * @param exchange of the request
+     * @return true for a WebSocket handshake
+     */
+    static boolean isUpgrade(Exchange exchange) {
+        return "websocket".equalsIgnoreCase(exchange.header("upgrade")) && exchange.header("sec-websocket-key") != null;
+    }
+
+    /**
+     * Accepts the upgrade of a request.
+     *
+     * @param exchange of the handshake
+     * @return the WebSocket
+     * @throws IOException if the connection fails
+     */
+    static WebSocket accept(Exchange exchange) throws IOException {
+        String accept;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((exchange.header("sec-websocket-key") + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            accept = Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        String head = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+        exchange.out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        exchange.out.flush();
+        return new WebSocket(exchange.socket, exchange.in, exchange.out);
+    }
+
+    /**
+     * Reads the next text message, answering the control frames met on the way.
+     *
+     * @return the message, or null once the client closed the connection
+     * @throws IOException if the connection fails or the client breaks the protocol
+     */
+    String read() throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            int first = in.read();
+            if (first < 0)
+                return null;
+            int second = readByte();
+
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            long length = second & 0x7F;
+            if (length == 126)
+                length = (readByte() << 8) | readByte();
+            else if (length == 127)
+                length = readLong();
+            if (length > MAX_MESSAGE || message.size() + length > MAX_MESSAGE)
+                throw new IOException("Message too long: " + length);
+
+            byte[] mask = (second & 0x80) != 0 ? in.readNBytes(4) : null;
+            byte[] payload = in.readNBytes((int) length);
+            if (payload.length < length)
+                throw new EOFException();
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] ^= mask[i & 3];
+            }
+
+            switch (opcode) {
+                case OP_TEXT, OP_CONTINUATION -> {
+                    message.write(payload);
+                    if (fin)
+                        return message.toString(StandardCharsets.UTF_8);
+                }
+                case OP_PING -> send(OP_PONG, payload);
+                case OP_CLOSE -> {
+                    close();
+                    return null;
+                }
+                default -> {
+                    // Pongs and binary frames are not used by the agent.
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a text message.
+     *
+     * @param text of the message
+     * @throws IOException if the connection fails
+     */
+    void send(String text) throws IOException {
+        send(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a close frame and closes the connection, which ends a pending {@link #read()}.
+     */
+    void close() {
+        if (closed)
+            return;
+        try {
+            send(OP_CLOSE, new byte[0]);
+        } catch (IOException ignored) {
+            // The connection is going away anyway.
+        }
+        closed = true;
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // Nothing left to release.
+        }
+    }
+
+    /**
+     * Sends a single unmasked frame.
+     *
+     * @param opcode  of the frame
+     * @param payload of the frame
+     * @throws IOException if the connection fails
+     */
+    private synchronized void send(int opcode, byte[] payload) throws IOException {
+        if (closed)
+            throw new IOException("WebSocket closed");
+
+        int header = payload.length < 126 ? 2 : payload.length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[header + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (header == 2) {
+            frame[1] = (byte) payload.length;
+        } else if (header == 4) {
+            frame[1] = 126;
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++)
+                frame[2 + i] = (byte) ((long) payload.length >>> (56 - 8 * i));
+        }
+        System.arraycopy(payload, 0, frame, header, payload.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+
+    private long readLong() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | readByte();
+        return value;
+    }
+
+}